@@ -32,9 +32,6 @@ public final class ColorComposite extends RGBComposite {
     }
 
     static class Context extends RGBCompositeContext {
-        private final float[] sHSB = new float[3];
-        private final float[] dHSB = new float[3];
-
         public Context(float alpha, ColorModel srcColorModel, ColorModel dstColorModel) {
             super(alpha, srcColorModel, dstColorModel);
         }
@@ -43,6 +40,10 @@ public final class ColorComposite extends RGBComposite {
         public void composeRGB(int[] src, int[] dst, float alpha) {
             int w = src.length;
 
+            // local, because the rows can be composed in parallel
+            float[] sHSB = new float[3];
+            float[] dHSB = new float[3];
+
             for (int i = 0; i < w; i += 4) {
                 int sr = src[i];
                 int dir = dst[i];
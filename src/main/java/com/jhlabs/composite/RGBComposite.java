@@ -16,11 +16,19 @@ limitations under the License.
 
 package com.jhlabs.composite;
 
+import pixelitor.ThreadPool;
+
 import java.awt.Composite;
 import java.awt.CompositeContext;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
 import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
 
 public abstract class RGBComposite implements Composite {
     protected float extraAlpha;
@@ -86,8 +94,19 @@ public abstract class RGBComposite implements Composite {
 
         public abstract void composeRGB(int[] src, int[] dst, float alpha);
 
+        // the bit masks of the R, G, B, A bands of packed (A)RGB rasters,
+        // in the order in which getPixels returns the samples
+        private static final int[] ARGB_MASKS = {0xFF_00_00, 0xFF_00, 0xFF, 0xFF_00_00_00};
+
+        // smaller areas are not worth splitting into parallel bands
+        private static final int MIN_PIXELS_FOR_PARALLEL = 64 * 1024;
+
         @Override
         public void compose(Raster src, Raster dstIn, WritableRaster dstOut) {
+            if (isPackedARGB(src) && isPackedARGB(dstIn) && isPackedARGB(dstOut)) {
+                composePacked(src, dstIn, dstOut);
+                return;
+            }
             float alpha = this.alpha;
 
             int[] srcPix = null;
@@ -111,5 +130,93 @@ public abstract class RGBComposite implements Composite {
                 dstOut.setPixels(x, y, w, 1, dstPix);
             }
         }
+
+        /**
+         * Does the same as the generic compose, but reads and writes the
+         * packed int pixels directly, without going through the sample
+         * model, and composes the rows in parallel for larger areas.
+         */
+        private void composePacked(Raster src, Raster dstIn, WritableRaster dstOut) {
+            int x = dstOut.getMinX();
+            int y0 = dstOut.getMinY();
+            int w = dstOut.getWidth();
+            int h = dstOut.getHeight();
+
+            // the rows can't be composed in parallel if they could
+            // read pixels written by other rows of the same call
+            DataBuffer outBuffer = dstOut.getDataBuffer();
+            boolean parallel = (long) w * h >= MIN_PIXELS_FOR_PARALLEL
+                    && src.getDataBuffer() != outBuffer
+                    && (dstIn.getDataBuffer() != outBuffer || sameLayout(dstIn, dstOut));
+
+            if (parallel) {
+                ThreadPool.processBands(h, w, (startY, endY) ->
+                        composePackedRows(src, dstIn, dstOut, x, y0 + startY, w, y0 + endY), NULL_TRACKER);
+            } else {
+                composePackedRows(src, dstIn, dstOut, x, y0, w, y0 + h);
+            }
+        }
+
+        private void composePackedRows(Raster src, Raster dstIn, WritableRaster dstOut,
+                                       int x, int startY, int w, int endY) {
+            float alpha = this.alpha;
+            int[] srcPix = new int[4 * w];
+            int[] dstPix = new int[4 * w];
+
+            int[] srcData = ((DataBufferInt) src.getDataBuffer()).getData();
+            int[] dstInData = ((DataBufferInt) dstIn.getDataBuffer()).getData();
+            int[] dstOutData = ((DataBufferInt) dstOut.getDataBuffer()).getData();
+
+            for (int y = startY; y < endY; y++) {
+                unpack(srcData, offsetOf(src, x, y), srcPix, w);
+                unpack(dstInData, offsetOf(dstIn, x, y), dstPix, w);
+                composeRGB(srcPix, dstPix, alpha);
+                pack(dstPix, dstOutData, offsetOf(dstOut, x, y), w);
+            }
+        }
+
+        private static void unpack(int[] data, int offset, int[] pix, int w) {
+            for (int i = 0, j = 0; i < w; i++, j += 4) {
+                int p = data[offset + i];
+                pix[j] = (p >> 16) & 0xFF;
+                pix[j + 1] = (p >> 8) & 0xFF;
+                pix[j + 2] = p & 0xFF;
+                pix[j + 3] = p >>> 24;
+            }
+        }
+
+        // the bands are masked, but not clamped, just like in setPixels
+        private static void pack(int[] pix, int[] data, int offset, int w) {
+            for (int i = 0, j = 0; i < w; i++, j += 4) {
+                data[offset + i] = ((pix[j] << 16) & 0xFF_00_00)
+                        | ((pix[j + 1] << 8) & 0xFF_00)
+                        | (pix[j + 2] & 0xFF)
+                        | (pix[j + 3] << 24);
+            }
+        }
+
+        // the index of the given pixel in the data array of the raster
+        private static int offsetOf(Raster raster, int x, int y) {
+            var sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            return raster.getDataBuffer().getOffset()
+                    + (y - raster.getSampleModelTranslateY()) * sampleModel.getScanlineStride()
+                    + x - raster.getSampleModelTranslateX();
+        }
+
+        private static boolean sameLayout(Raster a, Raster b) {
+            return a.getMinX() == b.getMinX()
+                    && a.getMinY() == b.getMinY()
+                    && offsetOf(a, a.getMinX(), a.getMinY()) == offsetOf(b, b.getMinX(), b.getMinY())
+                    && ((SinglePixelPackedSampleModel) a.getSampleModel()).getScanlineStride()
+                    == ((SinglePixelPackedSampleModel) b.getSampleModel()).getScanlineStride();
+        }
+
+        private static boolean isPackedARGB(Raster raster) {
+            return raster.getDataBuffer() instanceof DataBufferInt
+                    && raster.getDataBuffer().getNumBanks() == 1
+                    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                    && Arrays.equals(ARGB_MASKS,
+                    ((SinglePixelPackedSampleModel) raster.getSampleModel()).getBitMasks());
+        }
     }
 }
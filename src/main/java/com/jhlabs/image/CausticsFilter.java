@@ -21,7 +21,6 @@ import pixelitor.ThreadPool;
 
 import java.awt.Rectangle;
 import java.util.Random;
-import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -240,14 +239,9 @@ public class CausticsFilter extends WholeImageFilter {
 
         pt = createProgressTracker(outHeight);
 
-        Future<?>[] futures = new Future[outHeight];
-        for (int y = 0; y < outHeight; y++) {
-            int finalY = y;
-            int finalV = v;
-            Runnable lineTask = () -> calculateLine(outWidth, outHeight, pixels, finalV, rs, d, finalY);
-            futures[y] = ThreadPool.submit(lineTask);
-        }
-        ThreadPool.waitFor(futures, pt);
+        int finalV = v;
+        ThreadPool.processRows(outHeight, outWidth, y ->
+                calculateLine(outWidth, outHeight, pixels, finalV, rs, d, y), pt);
 
         finishProgressTracker();
 
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jhlabs.image;
+
+import com.jhlabs.math.FFT;
+import pixelitor.ThreadPool;
+import pixelitor.utils.ProgressTracker;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Convolves the channels of an ARGB image with a big kernel
+ * by multiplying them in the frequency space.
+ *
+ * The image is split into overlapping tiles with power of two sizes,
+ * which are processed in parallel. The tile size is chosen for each
+ * image size so that the total work is minimal. The spectrum of the
+ * kernel is calculated only once for every tile size, so the same
+ * instance should be reused while the kernel doesn't change.
+ *
+ * The pixels outside the image are taken from the nearest edge.
+ */
+public class FFTConvolver {
+    private static final int MIN_TILE_SIZE = 16;
+
+    // bigger tiles are only used if the kernel doesn't fit into this
+    private static final int MAX_TILE_SIZE = 1024;
+
+    private static final int NUM_CHANNELS = 4;
+
+    private final float[] kernel;
+    private final int kernelWidth;
+    private final int kernelHeight;
+    private final int kernelCenterX;
+    private final int kernelCenterY;
+
+    // the spectra of the kernel, by the tile sizes
+    private final Map<Long, float[][]> spectra = new HashMap<>();
+
+    /**
+     * Creates a convolver for the given kernel, which is stored by rows,
+     * and has its center at (kernelWidth / 2, kernelHeight / 2).
+     */
+    public FFTConvolver(float[] kernel, int kernelWidth, int kernelHeight) {
+        if (kernel.length != kernelWidth * kernelHeight) {
+            throw new IllegalArgumentException("kernel.length = " + kernel.length
+                    + ", kernelWidth = " + kernelWidth + ", kernelHeight = " + kernelHeight);
+        }
+        this.kernel = kernel;
+        this.kernelWidth = kernelWidth;
+        this.kernelHeight = kernelHeight;
+        kernelCenterX = kernelWidth / 2;
+        kernelCenterY = kernelHeight / 2;
+    }
+
+    /**
+     * Returns the number of tiles for the given image size, which
+     * are also the work units of the progress tracking.
+     */
+    public int countTiles(int width, int height) {
+        var layout = new TileLayout(width, height);
+        return layout.numTilesX * layout.numTilesY;
+    }
+
+    /**
+     * Returns the convolved pixels, with the values rounded
+     * and clamped to the 0..255 range.
+     *
+     * The inputCurves, if not null, contain four lookup tables
+     * (for alpha, red, green and blue), which transform the
+     * channel values before the convolution.
+     */
+    public int[] convolve(int[] inPixels, int width, int height,
+                          float[][] inputCurves, ProgressTracker pt) {
+        var layout = new TileLayout(width, height);
+        float[][] spectrum = getSpectrum(layout.tileWidth, layout.tileHeight);
+        float[][] curves = inputCurves != null ? inputCurves : createIdentityCurves();
+
+        int[] outPixels = new int[width * height];
+
+        // The tile buffers are big, therefore they are reused by the
+        // tasks running one after the other on the same thread.
+        // At most one set of buffers is created for each thread.
+        Queue<TileBuffers> freeBuffers = new ConcurrentLinkedQueue<>();
+
+        int numTiles = layout.numTilesX * layout.numTilesY;
+        ThreadPool.processRows(numTiles, layout.tileWidth * layout.tileHeight, tile -> {
+            TileBuffers buffers = freeBuffers.poll();
+            if (buffers == null) {
+                buffers = new TileBuffers(layout.tileWidth * layout.tileHeight);
+            }
+            convolveTile(tile, layout, spectrum, curves, buffers, inPixels, outPixels, width, height);
+            freeBuffers.add(buffers);
+        }, pt);
+
+        return outPixels;
+    }
+
+    private void convolveTile(int tile, TileLayout layout, float[][] spectrum, float[][] curves,
+                              TileBuffers buffers, int[] inPixels, int[] outPixels,
+                              int width, int height) {
+        int tileWidth = layout.tileWidth;
+        int tileHeight = layout.tileHeight;
+
+        // the first output pixel of the tile
+        int outX = (tile % layout.numTilesX) * layout.stepX;
+        int outY = (tile / layout.numTilesX) * layout.stepY;
+
+        // the first input pixel of the tile, the pixels before
+        // the output contribute through the kernel
+        int left = kernelWidth - 1 - kernelCenterX;
+        int top = kernelHeight - 1 - kernelCenterY;
+        int inX = outX - left;
+        int inY = outY - top;
+
+        // Two real channels are packed into the real and imaginary
+        // parts of a complex number. As the kernel is real, they
+        // can be separated after the convolution.
+        float[] aRe = buffers.alphaRed[0];
+        float[] rIm = buffers.alphaRed[1];
+        float[] gRe = buffers.greenBlue[0];
+        float[] bIm = buffers.greenBlue[1];
+
+        int i = 0;
+        for (int y = 0; y < tileHeight; y++) {
+            int imageY = ImageMath.clamp(inY + y, 0, height - 1);
+            int offset = imageY * width;
+            for (int x = 0; x < tileWidth; x++) {
+                int imageX = ImageMath.clamp(inX + x, 0, width - 1);
+                int rgb = inPixels[offset + imageX];
+                aRe[i] = curves[0][rgb >>> 24];
+                rIm[i] = curves[1][(rgb >>> 16) & 0xFF];
+                gRe[i] = curves[2][(rgb >>> 8) & 0xFF];
+                bIm[i] = curves[3][rgb & 0xFF];
+                i++;
+            }
+        }
+
+        FFT fft = layout.fft;
+        fft.transform2D(aRe, rIm, tileWidth, tileHeight, true);
+        fft.transform2D(gRe, bIm, tileWidth, tileHeight, true);
+
+        float[] kRe = spectrum[0];
+        float[] kIm = spectrum[1];
+        int tileSize = tileWidth * tileHeight;
+        for (i = 0; i < tileSize; i++) {
+            float re = aRe[i];
+            float im = rIm[i];
+            aRe[i] = re * kRe[i] - im * kIm[i];
+            rIm[i] = re * kIm[i] + im * kRe[i];
+
+            re = gRe[i];
+            im = bIm[i];
+            gRe[i] = re * kRe[i] - im * kIm[i];
+            bIm[i] = re * kIm[i] + im * kRe[i];
+        }
+
+        fft.transform2D(aRe, rIm, tileWidth, tileHeight, false);
+        fft.transform2D(gRe, bIm, tileWidth, tileHeight, false);
+
+        int outWidth = Math.min(layout.stepX, width - outX);
+        int outHeight = Math.min(layout.stepY, height - outY);
+        for (int y = 0; y < outHeight; y++) {
+            int tileIndex = (y + top) * tileWidth + left;
+            int outIndex = (outY + y) * width + outX;
+            for (int x = 0; x < outWidth; x++) {
+                int a = toByte(aRe[tileIndex]);
+                int r = toByte(rIm[tileIndex]);
+                int g = toByte(gRe[tileIndex]);
+                int b = toByte(bIm[tileIndex]);
+                outPixels[outIndex++] = (a << 24) | (r << 16) | (g << 8) | b;
+                tileIndex++;
+            }
+        }
+    }
+
+    private static int toByte(float value) {
+        return ImageMath.clamp((int) (value + 0.5f), 0, 255);
+    }
+
+    private synchronized float[][] getSpectrum(int tileWidth, int tileHeight) {
+        long key = ((long) tileWidth << 32) | tileHeight;
+        return spectra.computeIfAbsent(key, k -> calcSpectrum(tileWidth, tileHeight));
+    }
+
+    private float[][] calcSpectrum(int tileWidth, int tileHeight) {
+        float[][] spectrum = new float[2][tileWidth * tileHeight];
+
+        // the kernel center goes to (0, 0), the
+        // negative offsets wrap around to the end
+        for (int ky = 0; ky < kernelHeight; ky++) {
+            int y = Math.floorMod(ky - kernelCenterY, tileHeight);
+            for (int kx = 0; kx < kernelWidth; kx++) {
+                int x = Math.floorMod(kx - kernelCenterX, tileWidth);
+                spectrum[0][y * tileWidth + x] = kernel[ky * kernelWidth + kx];
+            }
+        }
+
+        new FFT(Math.max(log2(tileWidth), log2(tileHeight)))
+                .transform2D(spectrum[0], spectrum[1], tileWidth, tileHeight, true);
+        return spectrum;
+    }
+
+    private static float[][] createIdentityCurves() {
+        float[][] curves = new float[NUM_CHANNELS][256];
+        for (int c = 0; c < NUM_CHANNELS; c++) {
+            for (int v = 0; v < 256; v++) {
+                curves[c][v] = v;
+            }
+        }
+        return curves;
+    }
+
+    private static int log2(int powerOfTwo) {
+        return Integer.numberOfTrailingZeros(powerOfTwo);
+    }
+
+    /**
+     * The tile size chosen for an image size
+     */
+    private class TileLayout {
+        private int tileWidth;
+        private int tileHeight;
+
+        // the number of output pixels of a tile
+        private final int stepX;
+        private final int stepY;
+
+        private final int numTilesX;
+        private final int numTilesY;
+
+        // FFT instances can be shared, they contain
+        // only the precalculated weighting factors
+        private final FFT fft;
+
+        TileLayout(int width, int height) {
+            // The cost of a tile is proportional to n*log(n) for its
+            // n pixels, but the kernel overlap is wasted. Small tiles
+            // waste more on the overlap, while tiles bigger than the
+            // image waste the part outside the image.
+            double minCost = Double.POSITIVE_INFINITY;
+            for (int tw = firstTileSize(kernelWidth); tw <= lastTileSize(kernelWidth, width); tw *= 2) {
+                for (int th = firstTileSize(kernelHeight); th <= lastTileSize(kernelHeight, height); th *= 2) {
+                    int tilesX = ceilDiv(width, tw - kernelWidth + 1);
+                    int tilesY = ceilDiv(height, th - kernelHeight + 1);
+                    double cost = (double) tilesX * tilesY * tw * th * (log2(tw) + log2(th));
+                    if (cost < minCost) {
+                        minCost = cost;
+                        tileWidth = tw;
+                        tileHeight = th;
+                    }
+                }
+            }
+
+            stepX = tileWidth - kernelWidth + 1;
+            stepY = tileHeight - kernelHeight + 1;
+            numTilesX = ceilDiv(width, stepX);
+            numTilesY = ceilDiv(height, stepY);
+            fft = new FFT(Math.max(log2(tileWidth), log2(tileHeight)));
+        }
+
+        // the smallest tile size with at least one output pixel
+        private int firstTileSize(int kernelSize) {
+            return Math.max(MIN_TILE_SIZE, nextPowerOfTwo(kernelSize));
+        }
+
+        private int lastTileSize(int kernelSize, int imageSize) {
+            int max = Math.max(MAX_TILE_SIZE, nextPowerOfTwo(2 * kernelSize));
+            // a single tile covering the whole image
+            int single = nextPowerOfTwo(imageSize + kernelSize - 1);
+            return Math.max(firstTileSize(kernelSize), Math.min(max, single));
+        }
+    }
+
+    private static int nextPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    /**
+     * The scratch arrays used while processing a tile
+     */
+    private static class TileBuffers {
+        private final float[][] alphaRed;
+        private final float[][] greenBlue;
+
+        TileBuffers(int size) {
+            alphaRed = new float[2][size];
+            greenBlue = new float[2][size];
+        }
+    }
+}
@@ -19,95 +19,65 @@ package com.jhlabs.image;
 import java.awt.Rectangle;
 
 /**
- * A filter which performs a 3x3 median operation. Useful for removing dust and noise.
+ * A filter which performs a median operation on each channel. Useful for removing dust and noise.
+ * Other percentiles can also be calculated, for example the minimum or the maximum.
  */
 public class MedianFilter extends WholeImageFilter {
+    private int radius = 1;
+    private float percentile = 0.5f;
+
     public MedianFilter(String filterName) {
         super(filterName);
     }
 
-//    private static int median(int[] array) {
-//        int max, maxIndex;
-//
-//        for (int i = 0; i < 4; i++) {
-//            max = 0;
-//            maxIndex = 0;
-//            for (int j = 0; j < 9; j++) {
-//                if (array[j] > max) {
-//                    max = array[j];
-//                    maxIndex = j;
-//                }
-//            }
-//            array[maxIndex] = 0;
-//        }
-//        max = 0;
-//        for (int i = 0; i < 9; i++) {
-//            if (array[i] > max) {
-//                max = array[i];
-//            }
-//        }
-//        return max;
-//    }
+    /**
+     * Set the radius of the square window.
+     *
+     * @param radius the radius
+     * @see #getRadius
+     */
+    public void setRadius(int radius) {
+        this.radius = radius;
+    }
+
+    /**
+     * Get the radius of the square window.
+     *
+     * @return the radius
+     * @see #setRadius
+     */
+    public int getRadius() {
+        return radius;
+    }
 
-    private static int rgbMedian(int[] r, int[] g, int[] b) {
-        int sum, index = 0, min = Integer.MAX_VALUE;
+    /**
+     * Set the percentile calculated in the window.
+     *
+     * @param percentile the percentile, from 0 (minimum) to 1 (maximum), the median is 0.5
+     * @see #getPercentile
+     */
+    public void setPercentile(float percentile) {
+        this.percentile = percentile;
+    }
 
-        for (int i = 0; i < 9; i++) {
-            sum = 0;
-            for (int j = 0; j < 9; j++) {
-                sum += Math.abs(r[i] - r[j]);
-                sum += Math.abs(g[i] - g[j]);
-                sum += Math.abs(b[i] - b[j]);
-            }
-            if (sum < min) {
-                min = sum;
-                index = i;
-            }
-        }
-        return index;
+    /**
+     * Get the percentile calculated in the window.
+     *
+     * @return the percentile
+     * @see #setPercentile
+     */
+    public float getPercentile() {
+        return percentile;
     }
 
     @Override
     protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int index = 0;
-        int[] argb = new int[9];
-        int[] r = new int[9];
-        int[] g = new int[9];
-        int[] b = new int[9];
-        int[] outPixels = new int[width * height];
-
-        pt = createProgressTracker(height);
+        PercentileEngine engine = new PercentileEngine(width, height, radius);
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int k = 0;
-                for (int dy = -1; dy <= 1; dy++) {
-                    int iy = y + dy;
-                    if (0 <= iy && iy < height) {
-                        int ioffset = iy * width;
-                        for (int dx = -1; dx <= 1; dx++) {
-                            int ix = x + dx;
-                            if (0 <= ix && ix < width) {
-                                int rgb = inPixels[ioffset + ix];
-                                argb[k] = rgb;
-                                r[k] = (rgb >> 16) & 0xff;
-                                g[k] = (rgb >> 8) & 0xff;
-                                b[k] = rgb & 0xff;
-                                k++;
-                            }
-                        }
-                    }
-                }
-                while (k < 9) {
-                    argb[k] = 0xff000000;
-                    r[k] = g[k] = b[k] = 0;
-                    k++;
-                }
-                outPixels[index++] = argb[rgbMedian(r, g, b)];
-            }
-            pt.unitDone();
-        }
+        pt = createProgressTracker(engine.getNumTiles());
+        int[] outPixels = engine.filter(inPixels, percentile, pt);
         finishProgressTracker();
+
         return outPixels;
     }
 
@@ -116,4 +86,3 @@ public class MedianFilter extends WholeImageFilter {
         return "Blur/Median";
     }
 }
-
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jhlabs.image;
+
+import pixelitor.ThreadPool;
+import pixelitor.utils.ProgressTracker;
+
+import java.util.Arrays;
+
+/**
+ * Calculates a percentile (for example the median, the minimum or the
+ * maximum) of each channel in a square window around each pixel,
+ * in constant time per pixel, regardless of the radius.
+ *
+ * It's based on the median filtering algorithm of Perreault and Hébert:
+ * the histograms of the image columns are updated as the window moves
+ * down, and the histogram of the window is updated from the column
+ * histograms as the window moves right. The histograms have a coarse
+ * part (16 levels) and a fine part (256 levels), and the fine part of
+ * the window histogram is updated lazily, only for the needed levels.
+ *
+ * The image is split into tiles, which are processed in parallel.
+ * Near the edges only the pixels inside the image are counted.
+ */
+public class PercentileEngine {
+    private static final int NUM_CHANNELS = 4;
+    private static final int MIN_TILE_SIZE = 256;
+
+    // far enough to the left so that the fine histograms are recalculated
+    private static final int NOT_UPDATED = Integer.MIN_VALUE / 2;
+
+    private final int width;
+    private final int height;
+    private final int radius;
+
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int numTilesX;
+    private final int numTiles;
+
+    public PercentileEngine(int width, int height, int radius) {
+        if (radius < 0 || radius > Character.MAX_VALUE / 2 - 1) {
+            throw new IllegalArgumentException("radius = " + radius);
+        }
+        this.width = width;
+        this.height = height;
+        this.radius = radius;
+
+        // the columns are initialized for every tile,
+        // so the tiles should be bigger than the window
+        tileWidth = Math.max(MIN_TILE_SIZE, 4 * radius);
+        tileHeight = Math.max(MIN_TILE_SIZE / 4, 4 * radius);
+        numTilesX = (width + tileWidth - 1) / tileWidth;
+        int numTilesY = (height + tileHeight - 1) / tileHeight;
+        numTiles = numTilesX * numTilesY;
+    }
+
+    /**
+     * The number of work units reported to the progress tracker
+     */
+    public int getNumTiles() {
+        return numTiles;
+    }
+
+    /**
+     * Returns the filtered ARGB pixels. The percentile must be between
+     * 0 (minimum) and 1 (maximum), the median is at 0.5.
+     */
+    public int[] filter(int[] inPixels, double percentile, ProgressTracker pt) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile = " + percentile);
+        }
+        int[] outPixels = new int[width * height];
+        ThreadPool.processRows(numTiles, tileWidth * tileHeight, tile -> {
+            int x0 = (tile % numTilesX) * tileWidth;
+            int y0 = (tile / numTilesX) * tileHeight;
+            new Tile(x0, y0, Math.min(width, x0 + tileWidth), Math.min(height, y0 + tileHeight))
+                    .filter(inPixels, outPixels, percentile);
+        }, pt);
+        return outPixels;
+    }
+
+    /**
+     * The histograms needed for processing a tile
+     */
+    private class Tile {
+        private final int x0;
+        private final int y0;
+        private final int x1;
+        private final int y1;
+
+        // the first image column with a histogram
+        private final int colStart;
+        private final int numCols;
+
+        // the histograms of the image columns in the window,
+        // for each channel, column and level
+        private final char[] colFine;
+        private final char[] colCoarse;
+
+        // the histogram of the window, for each channel and level
+        private final int[] fine = new int[NUM_CHANNELS * 256];
+        private final int[] coarse = new int[NUM_CHANNELS * 16];
+
+        // the x coordinate for which the fine histogram of the window
+        // is up to date, for each channel and coarse level
+        private final int[] fineX = new int[NUM_CHANNELS * 16];
+
+        private Tile(int x0, int y0, int x1, int y1) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+            colStart = Math.max(0, x0 - radius);
+            numCols = Math.min(width, x1 + radius) - colStart;
+            colFine = new char[NUM_CHANNELS * numCols * 256];
+            colCoarse = new char[NUM_CHANNELS * numCols * 16];
+        }
+
+        private void filter(int[] inPixels, int[] outPixels, double percentile) {
+            for (int y = Math.max(0, y0 - radius); y < Math.min(height, y0 + radius + 1); y++) {
+                updateColumns(inPixels, y, 1);
+            }
+
+            for (int y = y0; y < y1; y++) {
+                if (y > y0) {
+                    if (y - radius - 1 >= 0) {
+                        updateColumns(inPixels, y - radius - 1, -1);
+                    }
+                    if (y + radius < height) {
+                        updateColumns(inPixels, y + radius, 1);
+                    }
+                }
+                int numRows = Math.min(height, y + radius + 1) - Math.max(0, y - radius);
+                filterRow(outPixels, y, numRows, percentile);
+            }
+        }
+
+        private void updateColumns(int[] inPixels, int y, int delta) {
+            int offset = y * width + colStart;
+            for (int col = 0; col < numCols; col++) {
+                int rgb = inPixels[offset + col];
+                for (int c = 0; c < NUM_CHANNELS; c++) {
+                    int v = (rgb >>> (24 - 8 * c)) & 0xFF;
+                    int hist = c * numCols + col;
+                    colFine[(hist << 8) + v] += delta;
+                    colCoarse[(hist << 4) + (v >> 4)] += delta;
+                }
+            }
+        }
+
+        private void filterRow(int[] outPixels, int y, int numRows, double percentile) {
+            Arrays.fill(coarse, 0);
+            Arrays.fill(fineX, NOT_UPDATED);
+            for (int x = Math.max(0, x0 - radius); x < Math.min(width, x0 + radius + 1); x++) {
+                addCoarse(x, 1);
+            }
+
+            int index = y * width + x0;
+            for (int x = x0; x < x1; x++) {
+                if (x > x0) {
+                    if (x + radius < width) {
+                        addCoarse(x + radius, 1);
+                    }
+                    if (x - radius - 1 >= 0) {
+                        addCoarse(x - radius - 1, -1);
+                    }
+                }
+                int numPixels = numRows * (Math.min(width, x + radius + 1) - Math.max(0, x - radius));
+                int rank = (int) (percentile * (numPixels - 1) + 0.5);
+
+                int argb = 0;
+                for (int c = 0; c < NUM_CHANNELS; c++) {
+                    argb = (argb << 8) | findValue(c, x, rank);
+                }
+                outPixels[index++] = argb;
+            }
+        }
+
+        // adds the coarse histograms of the given image column to the window
+        private void addCoarse(int x, int delta) {
+            int col = x - colStart;
+            for (int c = 0; c < NUM_CHANNELS; c++) {
+                int from = (c * numCols + col) << 4;
+                int to = c << 4;
+                for (int i = 0; i < 16; i++) {
+                    coarse[to + i] += delta * colCoarse[from + i];
+                }
+            }
+        }
+
+        // returns the value with the given rank in the window of the given channel
+        private int findValue(int c, int x, int rank) {
+            int level = 0;
+            int count = 0;
+            int coarseStart = c << 4;
+            while (count + coarse[coarseStart + level] <= rank) {
+                count += coarse[coarseStart + level];
+                level++;
+            }
+
+            updateFine(c, level, x);
+
+            int fineStart = (c << 8) + (level << 4);
+            int i = 0;
+            while (count + fine[fineStart + i] <= rank) {
+                count += fine[fineStart + i];
+                i++;
+            }
+            return (level << 4) + i;
+        }
+
+        // brings the fine histogram of the window at the given
+        // channel and coarse level up to date for the given x
+        private void updateFine(int c, int level, int x) {
+            int lastX = fineX[(c << 4) + level];
+            if (lastX == x) {
+                return;
+            }
+            fineX[(c << 4) + level] = x;
+            if (x - lastX > 2 * radius + 1) {
+                // it's faster to add the columns of the window again
+                Arrays.fill(fine, (c << 8) + (level << 4), (c << 8) + (level << 4) + 16, 0);
+                for (int col = Math.max(0, x - radius); col < Math.min(width, x + radius + 1); col++) {
+                    addFine(c, level, col, 1);
+                }
+            } else {
+                for (int xx = lastX + 1; xx <= x; xx++) {
+                    if (xx + radius < width) {
+                        addFine(c, level, xx + radius, 1);
+                    }
+                    if (xx - radius - 1 >= 0) {
+                        addFine(c, level, xx - radius - 1, -1);
+                    }
+                }
+            }
+        }
+
+        private void addFine(int c, int level, int x, int delta) {
+            int from = ((c * numCols + x - colStart) << 8) + (level << 4);
+            int to = (c << 8) + (level << 4);
+            for (int i = 0; i < 16; i++) {
+                fine[to + i] += delta * colFine[from + i];
+            }
+        }
+    }
+}
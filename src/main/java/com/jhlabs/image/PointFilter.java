@@ -17,10 +17,11 @@ limitations under the License.
 package com.jhlabs.image;
 
 import pixelitor.ThreadPool;
+import pixelitor.filters.gui.PreviewArea;
 import pixelitor.utils.ImageUtils;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.util.concurrent.Future;
 
 import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
 
@@ -49,20 +50,28 @@ public abstract class PointFilter extends AbstractBufferedImageOp {
         int[] inPixels = ImageUtils.getPixelsAsArray(src);
         int[] outPixels = ImageUtils.getPixelsAsArray(dst);
 
-        pt = createProgressTracker(height);
-        Future<?>[] futures = new Future[height];
-        for (int y = 0; y < height; y++) {
-            int finalY = y;
-            Runnable calculateLineTask = () -> {
-                for (int x = 0; x < width; x++) {
-                    int index = finalY * width + x;
-                    outPixels[index] = filterRGB(x, finalY, inPixels[index]);
-                }
-            };
-            futures[y] = ThreadPool.submit(calculateLineTask);
+        // in a clipped preview only the visible area is
+        // calculated, the rest is the unchanged source
+        Rectangle area = PreviewArea.claim(width, height);
+        if (area == null) {
+            area = new Rectangle(0, 0, width, height);
+        } else {
+            System.arraycopy(inPixels, 0, outPixels, 0, inPixels.length);
         }
-
-        ThreadPool.waitFor(futures, pt);
+        int startX = area.x;
+        int endX = area.x + area.width;
+        int areaY = area.y;
+
+        pt = createProgressTracker(area.height);
+        ThreadPool.processBands(area.height, area.width, (startBand, endBand) -> {
+            for (int y = areaY + startBand; y < areaY + endBand; y++) {
+                int index = y * width + startX;
+                for (int x = startX; x < endX; x++) {
+                    outPixels[index] = filterRGB(x, y, inPixels[index]);
+                    index++;
+                }
+            }
+        }, pt);
         finishProgressTracker();
 
         return dst;
@@ -73,20 +82,16 @@ public abstract class PointFilter extends AbstractBufferedImageOp {
         int height = src.getHeight();
 
         pt = createProgressTracker(height);
-        Future<?>[] futures = new Future[height];
-        for (int y = 0; y < height; y++) {
-            int finalY = y;
-            Runnable calculateLineTask = () -> {
-                int[] inPixels = new int[width];
-                src.getRGB(0, finalY, width, 1, inPixels, 0, width);
+        ThreadPool.processBands(height, width, (startY, endY) -> {
+            int[] linePixels = new int[width];
+            for (int y = startY; y < endY; y++) {
+                src.getRGB(0, y, width, 1, linePixels, 0, width);
                 for (int x = 0; x < width; x++) {
-                    inPixels[x] = filterRGB(x, finalY, inPixels[x]);
+                    linePixels[x] = filterRGB(x, y, linePixels[x]);
                 }
-                dst.setRGB(0, finalY, width, 1, inPixels, 0, width);
-            };
-            futures[y] = ThreadPool.submit(calculateLineTask);
-        }
-        ThreadPool.waitFor(futures, pt);
+                dst.setRGB(0, y, width, 1, linePixels, 0, width);
+            }
+        }, pt);
         finishProgressTracker();
 
         return dst;
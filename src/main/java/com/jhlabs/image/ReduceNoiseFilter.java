@@ -16,6 +16,8 @@ limitations under the License.
 
 package com.jhlabs.image;
 
+import pixelitor.ThreadPool;
+
 import java.awt.Rectangle;
 
 /**
@@ -53,15 +55,25 @@ public class ReduceNoiseFilter extends WholeImageFilter {
 
     @Override
     protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int index = 0;
-        int[] r = new int[9];
-        int[] g = new int[9];
-        int[] b = new int[9];
         int[] outPixels = new int[width * height];
 
         pt = createProgressTracker(height);
 
-        for (int y = 0; y < height; y++) {
+        ThreadPool.processBands(height, width, (startY, endY) ->
+                filterRows(width, height, startY, endY, inPixels, outPixels), pt);
+
+        finishProgressTracker();
+
+        return outPixels;
+    }
+
+    private static void filterRows(int width, int height, int startY, int endY, int[] inPixels, int[] outPixels) {
+        int index = startY * width;
+        int[] r = new int[9];
+        int[] g = new int[9];
+        int[] b = new int[9];
+
+        for (int y = startY; y < endY; y++) {
             for (int x = 0; x < width; x++) {
                 int k = 0;
                 int irgb = inPixels[index];
@@ -98,12 +110,7 @@ public class ReduceNoiseFilter extends WholeImageFilter {
                 outPixels[index] = (inPixels[index] & 0xff000000) | (smooth(r) << 16) | (smooth(g) << 8) | smooth(b);
                 index++;
             }
-            pt.unitDone();
         }
-
-        finishProgressTracker();
-
-        return outPixels;
     }
 
     @Override
@@ -19,10 +19,7 @@ package com.jhlabs.image;
 import pixelitor.ThreadPool;
 
 import java.awt.Rectangle;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Random;
-import java.util.concurrent.Future;
 
 public class SmearFilter extends WholeImageFilter {
     public static final int CROSSES = 0;
@@ -172,20 +169,11 @@ public class SmearFilter extends WholeImageFilter {
 
         int numShapes = (int) (2 * density * width * height / 2);
 
-        int stride = numShapes / 100 + 1;
-        int estimatedWorkUnits = numShapes / stride;
-        pt = createProgressTracker(estimatedWorkUnits);
+        pt = createProgressTracker(numShapes);
 
-        List<Future<?>> futures = new ArrayList<>(estimatedWorkUnits + 1);
-        for (int i = 0; i < numShapes; i = i + stride) {
-            Runnable r = () -> {
-                for (int j = 0; j < stride; j++) {
-                    renderOneLine(width, height, inPixels, outPixels, sin, cos);
-                }
-            };
-            futures.add(ThreadPool.submit(r));
-        }
-        ThreadPool.waitFor(futures, pt);
+        // each "row" is a line shape, touching about distance pixels
+        ThreadPool.processRows(numShapes, distance, i ->
+                renderOneLine(width, height, inPixels, outPixels, sin, cos), pt);
     }
 
     private void renderOneLine(int width, int height, int[] inPixels, int[] outPixels, float sin, float cos) {
@@ -272,13 +260,11 @@ public class SmearFilter extends WholeImageFilter {
         int numShapes = (int) (2 * density * width * height / radius);
 
         pt = createProgressTracker(numShapes);
-        Future<?>[] futures = new Future[numShapes];
 
-        for (int i = 0; i < numShapes; i++) {
-            Runnable r = () -> renderOneShape(width, height, inPixels, outPixels, radius, radius2);
-            futures[i] = ThreadPool.submit(r);
-        }
-        ThreadPool.waitFor(futures, pt);
+        // each "row" is a shape, touching about (2 * radius + 1)^2 pixels
+        int shapeSize = (2 * radius + 1) * (2 * radius + 1);
+        ThreadPool.processRows(numShapes, shapeSize, i ->
+                renderOneShape(width, height, inPixels, outPixels, radius, radius2), pt);
     }
 
     private void renderOneShape(int width, int height, int[] inPixels, int[] outPixels, int radius, int radius2) {
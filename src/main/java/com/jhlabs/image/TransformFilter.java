@@ -18,12 +18,15 @@ package com.jhlabs.image;
 
 import net.jafama.FastMath;
 import pixelitor.ThreadPool;
+import pixelitor.filters.gui.PreviewArea;
+import pixelitor.utils.ImageUtils;
 
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 
 /**
  * An abstract superclass for filters which distort images in some way. The subclass only needs to override
@@ -256,38 +259,16 @@ public abstract class TransformFilter extends AbstractBufferedImageOp {
     protected BufferedImage filterPixelsNN(BufferedImage dst, int width, int height, int[] inPixels) {
         int srcWidth = width;
         int srcHeight = height;
-        int outWidth = width;
-        int outHeight = height;
-
-        pt = createProgressTracker(outHeight);
-
-        @SuppressWarnings("unchecked")
-        Future<int[]>[] resultLines = new Future[outHeight];
-
-        for (int y = 0; y < outHeight; y++) {
-            float[] out = new float[2];
-            int finalY = y;
-            Callable<int[]> calculateLineTask = () -> {
-                int srcX, srcY;
-                int[] outPixels = new int[outWidth];
-
-                for (int x = 0; x < outWidth; x++) {
-                    transformInverse(x, finalY, out);
-                    srcX = (int) out[0];
-                    srcY = (int) out[1];
-                    // int casting rounds towards zero, so we check out[0] < 0, not srcX < 0
-                    outPixels[x] = getPixelNN(inPixels, srcWidth, srcHeight, srcX, srcY, out);
-                }
 
-                return outPixels;
-
-            };
-            resultLines[finalY] = ThreadPool.submit2(calculateLineTask);
-        }
-        ThreadPool.waitFor2(resultLines, dst, width, pt);
-        finishProgressTracker();
-
-        return dst;
+        return filterPixels(dst, width, height, inPixels, (y, startX, endX, out, outPixels, index) -> {
+            for (int x = startX; x < endX; x++) {
+                transformInverse(x, y, out);
+                int srcX = (int) out[0];
+                int srcY = (int) out[1];
+                // int casting rounds towards zero, so we check out[0] < 0, not srcX < 0
+                outPixels[index++] = getPixelNN(inPixels, srcWidth, srcHeight, srcX, srcY, out);
+            }
+        });
     }
 
     private BufferedImage filterPixelsBilinear(BufferedImage dst, int width, int height, int[] inPixels) {
@@ -295,56 +276,109 @@ public abstract class TransformFilter extends AbstractBufferedImageOp {
         int srcHeight = height;
         int srcWidth1 = width - 1;
         int srcHeight1 = height - 1;
-        int outWidth = width;
-        int outHeight = height;
-//        int outX, outY;
-//		int index = 0;
 
-        pt = createProgressTracker(outHeight);
-
-        @SuppressWarnings("unchecked")
-        Future<int[]>[] resultLines = new Future[outHeight];
+        return filterPixels(dst, width, height, inPixels, (y, startX, endX, out, outPixels, index) -> {
+            for (int x = startX; x < endX; x++) {
+                transformInverse(x, y, out);
+                int srcX = (int) FastMath.floor(out[0]);
+                int srcY = (int) FastMath.floor(out[1]);
+                float xWeight = out[0] - srcX;
+                float yWeight = out[1] - srcY;
+                int nw, ne, sw, se;
 
-        for (int y = 0; y < outHeight; y++) {
-            float[] out = new float[2];
-            int finalY = y;
-            Callable<int[]> calculateLineTask = () -> {
-                int[] outPixels = new int[outWidth];
-                for (int x = 0; x < outWidth; x++) {
-                    transformInverse(x, finalY, out);
-                    int srcX = (int) FastMath.floor(out[0]);
-                    int srcY = (int) FastMath.floor(out[1]);
-                    float xWeight = out[0] - srcX;
-                    float yWeight = out[1] - srcY;
-                    int nw, ne, sw, se;
-
-                    if ((srcX >= 0) && (srcX < srcWidth1) && (srcY >= 0) && (srcY < srcHeight1)) {
-                        // Easy case, all corners are in the image
-                        int i = (srcWidth * srcY) + srcX;
-                        nw = inPixels[i];
-                        ne = inPixels[i + 1];
-                        sw = inPixels[i + srcWidth];
-                        se = inPixels[i + srcWidth + 1];
-                    } else {
-                        // Some of the corners are off the image
-                        nw = getPixelBL(inPixels, srcX, srcY, srcWidth, srcHeight);
-                        ne = getPixelBL(inPixels, srcX + 1, srcY, srcWidth, srcHeight);
-                        sw = getPixelBL(inPixels, srcX, srcY + 1, srcWidth, srcHeight);
-                        se = getPixelBL(inPixels, srcX + 1, srcY + 1, srcWidth, srcHeight);
-                    }
-                    outPixels[x] = ImageMath.bilinearInterpolate(xWeight, yWeight, nw, ne, sw, se);
+                if ((srcX >= 0) && (srcX < srcWidth1) && (srcY >= 0) && (srcY < srcHeight1)) {
+                    // Easy case, all corners are in the image
+                    int i = (srcWidth * srcY) + srcX;
+                    nw = inPixels[i];
+                    ne = inPixels[i + 1];
+                    sw = inPixels[i + srcWidth];
+                    se = inPixels[i + srcWidth + 1];
+                } else {
+                    // Some of the corners are off the image
+                    nw = getPixelBL(inPixels, srcX, srcY, srcWidth, srcHeight);
+                    ne = getPixelBL(inPixels, srcX + 1, srcY, srcWidth, srcHeight);
+                    sw = getPixelBL(inPixels, srcX, srcY + 1, srcWidth, srcHeight);
+                    se = getPixelBL(inPixels, srcX + 1, srcY + 1, srcWidth, srcHeight);
                 }
-                return outPixels;
-            };
+                outPixels[index++] = ImageMath.bilinearInterpolate(xWeight, yWeight, nw, ne, sw, se);
+            }
+        });
+    }
+
+    /**
+     * Calculates the output pixels of one row from startX (inclusive)
+     * to endX (exclusive), storing them from the given index.
+     */
+    @FunctionalInterface
+    private interface RowCalculator {
+        void calcRow(int y, int startX, int endX, float[] out, int[] outPixels, int index);
+    }
 
-            resultLines[finalY] = ThreadPool.submit2(calculateLineTask);
+    /**
+     * Calculates the destination in parallel bands. Only the area
+     * visible in a clipped preview is calculated (see {@link PreviewArea}),
+     * the rest of the destination is the unchanged source.
+     */
+    private BufferedImage filterPixels(BufferedImage dst, int outWidth, int outHeight,
+                                       int[] inPixels, RowCalculator rowCalculator) {
+        Rectangle area = PreviewArea.claim(outWidth, outHeight);
+        if (area == null) {
+            area = new Rectangle(0, 0, outWidth, outHeight);
+        } else {
+            setRGB(dst, 0, 0, outWidth, outHeight, inPixels);
         }
-        ThreadPool.waitFor2(resultLines, dst, width, pt);
+        int startX = area.x;
+        int endX = area.x + area.width;
+        int areaY = area.y;
+        int areaWidth = area.width;
+
+        pt = createProgressTracker(area.height);
+
+        int[] dstPixels = getDirectPixels(dst, outWidth, outHeight);
+        ThreadPool.processBands(area.height, areaWidth, (startBand, endBand) -> {
+            float[] out = new float[2];
+            int startY = areaY + startBand;
+            int endY = areaY + endBand;
+            if (dstPixels != null) {
+                // write directly into the destination raster
+                for (int y = startY; y < endY; y++) {
+                    rowCalculator.calcRow(y, startX, endX, out, dstPixels, y * outWidth + startX);
+                }
+            } else {
+                int[] bandPixels = new int[areaWidth * (endY - startY)];
+                for (int y = startY; y < endY; y++) {
+                    rowCalculator.calcRow(y, startX, endX, out, bandPixels, (y - startY) * areaWidth);
+                }
+                setRGB(dst, startX, startY, areaWidth, endY - startY, bandPixels);
+            }
+        }, pt);
         finishProgressTracker();
 
         return dst;
     }
 
+    /**
+     * Returns the pixel array behind the destination image if the
+     * worker threads can write the results directly into it,
+     * or null if the results have to be copied with setRGB.
+     */
+    private static int[] getDirectPixels(BufferedImage dst, int width, int height) {
+        if (!ImageUtils.hasPackedIntArray(dst)
+                || dst.getWidth() != width || dst.getHeight() != height) {
+            return null;
+        }
+        WritableRaster raster = dst.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+            return null; // a subimage
+        }
+        var sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        var dataBuffer = (DataBufferInt) raster.getDataBuffer();
+        if (sampleModel.getScanlineStride() != width || dataBuffer.getOffset() != 0) {
+            return null;
+        }
+        return dataBuffer.getData();
+    }
+
     private int getPixelBL(int[] pixels, int x, int y, int width, int height) {
         if ((x < 0) || (x >= width)) {  // x out of range
             if ((y < 0) || (y >= height)) { // y also out of range {
@@ -8,10 +8,14 @@
 package pd;
 
 import net.jafama.FastMath;
+import pixelitor.ThreadPool;
 import pixelitor.utils.ProgressTracker;
 import pixelitor.utils.StatusBarProgressTracker;
+import pixelitor.utils.SubtaskProgressTracker;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
 import java.util.Arrays;
 
 /**
@@ -51,13 +55,25 @@ public class CannyEdgeDetector {
     private static final float MAGNITUDE_LIMIT = 1000.0F;
     private static final int MAGNITUDE_MAX = (int) (MAGNITUDE_SCALE * MAGNITUDE_LIMIT);
 
+    // the bits of the edge classes
+    private static final int ABOVE_LOW = 1;
+    private static final int ABOVE_HIGH = 2;
+
+    private static final int EDGE = 0xffffffff;
+    private static final int NOT_EDGE = 0xff000000;
+
+    private static final int MIN_BAND_HEIGHT = 64;
+
+    // the number of float values per pixel in the buffers of a band
+    private static final int NUM_BAND_BUFFERS = 5;
+
     // fields
 
     private int height;
     private int width;
     private int picsize;
-    private int[] data;
-    private int[] magnitude;
+    private byte[] data;
+    private byte[] edgeClasses;
     private BufferedImage sourceImage;
     private BufferedImage edgesImage;
 
@@ -67,10 +83,8 @@ public class CannyEdgeDetector {
     private int gaussianKernelWidth;
     private boolean contrastNormalized;
 
-    private float[] xConv;
-    private float[] yConv;
-    private float[] xGradient;
-    private float[] yGradient;
+    private float[] kernel;
+    private float[] diffKernel;
 
     private ProgressTracker pt;
 
@@ -267,52 +281,62 @@ public class CannyEdgeDetector {
 
     // methods
 
+    /**
+     * Returns the estimated memory (in bytes) needed for processing an
+     * image of the given size with the current parameters.
+     */
+    public long estimateNeededMemory(int width, int height) {
+        long numPixels = (long) width * height;
+        // the luminance and the edge classes, one byte each,
+        // and the edges image with 4 bytes per pixel
+        long pixelMemory = numPixels * (1 + 1 + 4);
+
+        // the float buffers of the bands running in parallel
+        int halo = createKernels(gaussianKernelRadius, gaussianKernelWidth);
+        long bandRows = Math.min(height, getBandHeight(halo)) + 2L * (halo + 1);
+        long bandMemory = Runtime.getRuntime().availableProcessors()
+            * bandRows * width * NUM_BAND_BUFFERS * 4;
+
+        return pixelMemory + bandMemory;
+    }
+
     public void process() {
+        // the luminance rows, the bands and the hysteresis
+        var tracker = new StatusBarProgressTracker("Canny", 2 * sourceImage.getHeight() + 1);
+        process(tracker);
+        tracker.finished();
+    }
+
+    public void process(ProgressTracker pt) {
+        this.pt = pt;
         width = sourceImage.getWidth();
         height = sourceImage.getHeight();
-
-        // the number of computational units are experimental values
-        // that seem to work pretty well
-        pt = new StatusBarProgressTracker("Canny", width + 450);
-
         picsize = width * height;
         initArrays();
 
-        pt.unitsDone(10);
-
         readLuminance();
 
-        pt.unitsDone(50);
-
         if (contrastNormalized) {
             normalizeContrast();
-            pt.unitsDone(10);
         }
 
-        computeGradients(gaussianKernelRadius, gaussianKernelWidth);
         int low = Math.round(lowThreshold * MAGNITUDE_SCALE);
         int high = Math.round(highThreshold * MAGNITUDE_SCALE);
-        performHysteresis(low, high);
-        pt.unitDone();
+        computeEdgeClasses(gaussianKernelRadius, gaussianKernelWidth, low, high);
 
-        thresholdEdges();
+        performHysteresis();
         pt.unitDone();
-
-        writeEdges(data);
-        pt.finished();
     }
 
     // private utility methods
 
     private void initArrays() {
         if (data == null || picsize != data.length) {
-            data = new int[picsize];
-            magnitude = new int[picsize];
-
-            xConv = new float[picsize];
-            yConv = new float[picsize];
-            xGradient = new float[picsize];
-            yGradient = new float[picsize];
+            data = new byte[picsize];
+            edgeClasses = new byte[picsize];
+        }
+        if (edgesImage == null || edgesImage.getWidth() != width || edgesImage.getHeight() != height) {
+            edgesImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
         }
     }
 
@@ -327,11 +351,12 @@ public class CannyEdgeDetector {
     //someone's intellectual property rights. If this concerns you feel free to
     //contact me for an alternative, though less efficient, implementation.
 
-    private void computeGradients(float kernelRadius, int kernelWidth) {
-
-        //generate the gaussian convolution masks
-        float[] kernel = new float[kernelWidth];
-        float[] diffKernel = new float[kernelWidth];
+    /**
+     * Generates the gaussian convolution masks and returns the used kernel width.
+     */
+    private int createKernels(float kernelRadius, int kernelWidth) {
+        kernel = new float[kernelWidth];
+        diffKernel = new float[kernelWidth];
         int kwidth;
         for (kwidth = 0; kwidth < kernelWidth; kwidth++) {
             float g1 = gaussian(kwidth, kernelRadius);
@@ -343,149 +368,248 @@ public class CannyEdgeDetector {
             kernel[kwidth] = (g1 + g2 + g3) / 3.0f / (2.0f * (float) Math.PI * kernelRadius * kernelRadius);
             diffKernel[kwidth] = g3 - g2;
         }
+        return kwidth;
+    }
 
-        pt.unitDone();
-
-        int initX = kwidth - 1;
-        int maxX = width - (kwidth - 1);
-        int initY = width * (kwidth - 1);
-        int maxY = width * (height - (kwidth - 1));
-
-        //perform convolution in x and y directions
-        for (int x = initX; x < maxX; x++) {
-            for (int y = initY; y < maxY; y += width) {
-                int index = x + y;
-                float sumX = data[index] * kernel[0];
-                float sumY = sumX;
-                int xOffset = 1;
-                int yOffset = width;
-                for (; xOffset < kwidth; ) {
-                    sumY += kernel[xOffset] * (data[index - yOffset] + data[index + yOffset]);
-                    sumX += kernel[xOffset] * (data[index - xOffset] + data[index + xOffset]);
-                    yOffset += width;
-                    xOffset++;
-                }
+    // bands much higher than the kernel, so that the
+    // overlapping rows computed twice are relatively few
+    private static int getBandHeight(int kwidth) {
+        return Math.max(MIN_BAND_HEIGHT, 4 * kwidth);
+    }
 
-                yConv[index] = sumY;
-                xConv[index] = sumX;
-            }
+    /**
+     * Calculates the gradients and performs the non-maximal suppression
+     * in parallel, in horizontal bands. Each band calculates its own
+     * convolved and gradient rows, including the rows needed from the
+     * neighboring bands. The result is stored only as edge classes.
+     */
+    private void computeEdgeClasses(float kernelRadius, int kernelWidth, int low, int high) {
+        int kwidth = createKernels(kernelRadius, kernelWidth);
+
+        int bandHeight = getBandHeight(kwidth);
+        int numBands = (height + bandHeight - 1) / bandHeight;
+        var bandPT = new SubtaskProgressTracker(height / (double) numBands, pt);
+        ThreadPool.processRows(numBands, bandHeight * width, band -> {
+            int startY = band * bandHeight;
+            int endY = Math.min(height, startY + bandHeight);
+            new Band(kwidth, startY, endY).computeEdgeClasses(low, high);
+        }, bandPT);
+    }
 
+    /**
+     * The buffers needed for the rows of a band. The convolved values
+     * and the gradients are defined only where the whole kernel fits into
+     * the image, and they are zero elsewhere, as in the original version.
+     */
+    private class Band {
+        private final int kwidth;
+        private final int startY;
+        private final int endY;
+
+        // the rows where the gradients are needed
+        private final int gradStartY;
+        private final int gradEndY;
+
+        // the rows where the convolution in the x direction is needed
+        private final int convStartY;
+        private final int convEndY;
+
+        private final float[] xConv;
+        private final float[] yConv;
+        private final float[] xGradient;
+        private final float[] yGradient;
+        private final float[] gradMagnitude;
+
+        Band(int kwidth, int startY, int endY) {
+            this.kwidth = kwidth;
+            this.startY = startY;
+            this.endY = endY;
+
+            // the rows where the convolution is defined
+            int minConvY = kwidth - 1;
+            int maxConvY = height - (kwidth - 1);
+
+            gradStartY = Math.max(minConvY, startY - 1);
+            gradEndY = Math.max(gradStartY, Math.min(maxConvY, endY + 1));
+            convStartY = Math.max(minConvY, gradStartY - (kwidth - 1));
+            convEndY = Math.max(convStartY, Math.min(maxConvY, gradEndY + (kwidth - 1)));
+
+            int gradSize = (gradEndY - gradStartY) * width;
+            xConv = new float[(convEndY - convStartY) * width];
+            yConv = new float[gradSize];
+            xGradient = new float[gradSize];
+            yGradient = new float[gradSize];
+            gradMagnitude = new float[gradSize];
         }
 
-        pt.unitsDone(200);
+        void computeEdgeClasses(int low, int high) {
+            int initX = kwidth - 1;
+            int maxX = width - (kwidth - 1);
+
+            //perform convolution in x and y directions
+            for (int y = convStartY; y < convEndY; y++) {
+                boolean gradRow = y >= gradStartY && y < gradEndY;
+                int rowOffset = y * width;
+                for (int x = initX; x < maxX; x++) {
+                    int index = rowOffset + x;
+                    float sumX = (data[index] & 0xFF) * kernel[0];
+                    float sumY = sumX;
+                    int xOffset = 1;
+                    int yOffset = width;
+                    for (; xOffset < kwidth; ) {
+                        sumY += kernel[xOffset] * ((data[index - yOffset] & 0xFF) + (data[index + yOffset] & 0xFF));
+                        sumX += kernel[xOffset] * ((data[index - xOffset] & 0xFF) + (data[index + xOffset] & 0xFF));
+                        yOffset += width;
+                        xOffset++;
+                    }
 
-        for (int x = initX; x < maxX; x++) {
-            for (int y = initY; y < maxY; y += width) {
-                float sum = 0.0f;
-                int index = x + y;
-                for (int i = 1; i < kwidth; i++) {
-                    sum += diffKernel[i] * (yConv[index - i] - yConv[index + i]);
+                    if (gradRow) {
+                        yConv[(y - gradStartY) * width + x] = sumY;
+                    }
+                    xConv[(y - convStartY) * width + x] = sumX;
                 }
-
-                xGradient[index] = sum;
             }
 
-        }
-
-        pt.unitsDone(100);
+            for (int y = gradStartY; y < gradEndY; y++) {
+                int rowOffset = (y - gradStartY) * width;
+                for (int x = initX; x < maxX; x++) {
+                    float sum = 0.0f;
+                    int index = rowOffset + x;
+                    for (int i = 1; i < kwidth; i++) {
+                        sum += diffKernel[i] * (yConv[index - i] - yConv[index + i]);
+                    }
 
-        for (int x = kwidth; x < width - kwidth; x++) {
-            for (int y = initY; y < maxY; y += width) {
-                float sum = 0.0f;
-                int index = x + y;
-                int yOffset = width;
-                for (int i = 1; i < kwidth; i++) {
-                    sum += diffKernel[i] * (xConv[index - yOffset] - xConv[index + yOffset]);
-                    yOffset += width;
+                    xGradient[index] = sum;
                 }
+            }
+
+            for (int y = gradStartY; y < gradEndY; y++) {
+                int rowOffset = (y - gradStartY) * width;
+                int convOffset = (y - convStartY) * width;
+                for (int x = kwidth; x < width - kwidth; x++) {
+                    float sum = 0.0f;
+                    int index = convOffset + x;
+                    int yOffset = width;
+                    for (int i = 1; i < kwidth; i++) {
+                        sum += diffKernel[i] * (convRow(y - i, index - yOffset) - convRow(y + i, index + yOffset));
+                        yOffset += width;
+                    }
 
-                yGradient[index] = sum;
+                    yGradient[rowOffset + x] = sum;
+                }
             }
 
-        }
+            // the magnitudes are needed several times by the non-maximal suppression
+            for (int i = 0; i < gradMagnitude.length; i++) {
+                gradMagnitude[i] = hypot(xGradient[i], yGradient[i]);
+            }
 
-        pt.unitsDone(100);
-
-        initX = kwidth;
-        maxX = width - kwidth;
-        initY = width * kwidth;
-        maxY = width * (height - kwidth);
-        for (int x = initX; x < maxX; x++) {
-            pt.unitDone();
-            for (int y = initY; y < maxY; y += width) {
-                int index = x + y;
-                int indexN = index - width;
-                int indexS = index + width;
-                int indexW = index - 1;
-                int indexE = index + 1;
-                int indexNW = indexN - 1;
-                int indexNE = indexN + 1;
-                int indexSW = indexS - 1;
-                int indexSE = indexS + 1;
-
-                float xGrad = xGradient[index];
-                float yGrad = yGradient[index];
-                float gradMag = hypot(xGrad, yGrad);
-
-                //perform non-maximal supression
-                float nMag = hypot(xGradient[indexN], yGradient[indexN]);
-                float sMag = hypot(xGradient[indexS], yGradient[indexS]);
-                float wMag = hypot(xGradient[indexW], yGradient[indexW]);
-                float eMag = hypot(xGradient[indexE], yGradient[indexE]);
-                float neMag = hypot(xGradient[indexNE], yGradient[indexNE]);
-                float seMag = hypot(xGradient[indexSE], yGradient[indexSE]);
-                float swMag = hypot(xGradient[indexSW], yGradient[indexSW]);
-                float nwMag = hypot(xGradient[indexNW], yGradient[indexNW]);
-                float tmp;
-                /*
-                 * An explanation of what's happening here, for those who want
-                 * to understand the source: This performs the "non-maximal
-                 * supression" phase of the Canny edge detection in which we
-                 * need to compare the gradient magnitude to that in the
-                 * direction of the gradient; only if the value is a local
-                 * maximum do we consider the point as an edge candidate.
-                 *
-                 * We need to break the comparison into a number of different
-                 * cases depending on the gradient direction so that the
-                 * appropriate values can be used. To avoid computing the
-                 * gradient direction, we use two simple comparisons: first we
-                 * check that the partial derivatives have the same sign (1)
-                 * and then we check which is larger (2). As a consequence, we
-                 * have reduced the problem to one of four identical cases that
-                 * each test the central gradient magnitude against the values at
-                 * two points with 'identical support'; what this means is that
-                 * the geometry required to accurately interpolate the magnitude
-                 * of gradient function at those points has an identical
-                 * geometry (upto right-angled-rotation/reflection).
-                 *
-                 * When comparing the central gradient to the two interpolated
-                 * values, we avoid performing any divisions by multiplying both
-                 * sides of each inequality by the greater of the two partial
-                 * derivatives. The common comparand is stored in a temporary
-                 * variable (3) and reused in the mirror case (4).
-                 *
-                 */
-                if (xGrad * yGrad <= 0 /*(1)*/
-                    ? Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
-                    ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * neMag - (xGrad + yGrad) * eMag) /*(3)*/
-                    && tmp > Math.abs(yGrad * swMag - (xGrad + yGrad) * wMag) /*(4)*/
-                    : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * neMag - (yGrad + xGrad) * nMag) /*(3)*/
-                    && tmp > Math.abs(xGrad * swMag - (yGrad + xGrad) * sMag) /*(4)*/
-                    : Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
-                    ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * seMag + (xGrad - yGrad) * eMag) /*(3)*/
-                    && tmp > Math.abs(yGrad * nwMag + (xGrad - yGrad) * wMag) /*(4)*/
-                    : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * seMag + (yGrad - xGrad) * sMag) /*(3)*/
-                    && tmp > Math.abs(xGrad * nwMag + (yGrad - xGrad) * nMag) /*(4)*/
-                ) {
-                    magnitude[index] = gradMag >= MAGNITUDE_LIMIT ? MAGNITUDE_MAX : (int) (MAGNITUDE_SCALE * gradMag);
-                    //NOTE: The orientation of the edge is not employed by this
-                    //implementation. It is a simple matter to compute it at
-                    //this point as: Math.atan2(yGrad, xGrad);
+            for (int y = startY; y < endY; y++) {
+                if (y >= kwidth && y < height - kwidth) {
+                    int gradOffset = (y - gradStartY) * width;
+                    for (int x = 0; x < width; x++) {
+                        int magnitude = 0;
+                        if (x >= kwidth && x < width - kwidth) {
+                            magnitude = suppressNonMaximal(gradOffset + x);
+                        }
+                        edgeClasses[y * width + x] = classify(magnitude, low, high);
+                    }
                 } else {
-                    magnitude[index] = 0;
+                    Arrays.fill(edgeClasses, y * width, (y + 1) * width, classify(0, low, high));
                 }
             }
         }
+
+        // the convolved value at the given buffer index, or
+        // zero if the given row is outside the convolved area
+        private float convRow(int y, int index) {
+            return y >= convStartY && y < convEndY ? xConv[index] : 0;
+        }
+
+        private int suppressNonMaximal(int index) {
+            int indexN = index - width;
+            int indexS = index + width;
+            int indexW = index - 1;
+            int indexE = index + 1;
+            int indexNW = indexN - 1;
+            int indexNE = indexN + 1;
+            int indexSW = indexS - 1;
+            int indexSE = indexS + 1;
+
+            float xGrad = xGradient[index];
+            float yGrad = yGradient[index];
+            float gradMag = gradMagnitude[index];
+
+            //perform non-maximal supression
+            float nMag = gradMagnitude[indexN];
+            float sMag = gradMagnitude[indexS];
+            float wMag = gradMagnitude[indexW];
+            float eMag = gradMagnitude[indexE];
+            float neMag = gradMagnitude[indexNE];
+            float seMag = gradMagnitude[indexSE];
+            float swMag = gradMagnitude[indexSW];
+            float nwMag = gradMagnitude[indexNW];
+            float tmp;
+            /*
+             * An explanation of what's happening here, for those who want
+             * to understand the source: This performs the "non-maximal
+             * supression" phase of the Canny edge detection in which we
+             * need to compare the gradient magnitude to that in the
+             * direction of the gradient; only if the value is a local
+             * maximum do we consider the point as an edge candidate.
+             *
+             * We need to break the comparison into a number of different
+             * cases depending on the gradient direction so that the
+             * appropriate values can be used. To avoid computing the
+             * gradient direction, we use two simple comparisons: first we
+             * check that the partial derivatives have the same sign (1)
+             * and then we check which is larger (2). As a consequence, we
+             * have reduced the problem to one of four identical cases that
+             * each test the central gradient magnitude against the values at
+             * two points with 'identical support'; what this means is that
+             * the geometry required to accurately interpolate the magnitude
+             * of gradient function at those points has an identical
+             * geometry (upto right-angled-rotation/reflection).
+             *
+             * When comparing the central gradient to the two interpolated
+             * values, we avoid performing any divisions by multiplying both
+             * sides of each inequality by the greater of the two partial
+             * derivatives. The common comparand is stored in a temporary
+             * variable (3) and reused in the mirror case (4).
+             *
+             */
+            if (xGrad * yGrad <= 0 /*(1)*/
+                ? Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
+                ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * neMag - (xGrad + yGrad) * eMag) /*(3)*/
+                && tmp > Math.abs(yGrad * swMag - (xGrad + yGrad) * wMag) /*(4)*/
+                : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * neMag - (yGrad + xGrad) * nMag) /*(3)*/
+                && tmp > Math.abs(xGrad * swMag - (yGrad + xGrad) * sMag) /*(4)*/
+                : Math.abs(xGrad) >= Math.abs(yGrad) /*(2)*/
+                ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * seMag + (xGrad - yGrad) * eMag) /*(3)*/
+                && tmp > Math.abs(yGrad * nwMag + (xGrad - yGrad) * wMag) /*(4)*/
+                : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * seMag + (yGrad - xGrad) * sMag) /*(3)*/
+                && tmp > Math.abs(xGrad * nwMag + (yGrad - xGrad) * nMag) /*(4)*/
+            ) {
+                return gradMag >= MAGNITUDE_LIMIT ? MAGNITUDE_MAX : (int) (MAGNITUDE_SCALE * gradMag);
+                //NOTE: The orientation of the edge is not employed by this
+                //implementation. It is a simple matter to compute it at
+                //this point as: Math.atan2(yGrad, xGrad);
+            }
+            return 0;
+        }
+    }
+
+    // only the relation of the magnitude to the thresholds is
+    // needed for the hysteresis, therefore it fits into a byte
+    private static byte classify(int magnitude, int low, int high) {
+        int edgeClass = 0;
+        if (magnitude >= low) {
+            edgeClass |= ABOVE_LOW;
+        }
+        if (magnitude >= high) {
+            edgeClass |= ABOVE_HIGH;
+        }
+        return (byte) edgeClass;
     }
 
     //NOTE: It is quite feasible to replace the implementation of this method
@@ -499,122 +623,126 @@ public class CannyEdgeDetector {
         return (float) Math.exp(-(x * x) / (2.0f * sigma * sigma));
     }
 
-    private void performHysteresis(int low, int high) {
-        //NOTE: this implementation reuses the data array to store both
-        //luminance data from the image, and edge intensity from the processing.
-        //This is done for memory efficiency, other implementations may wish
-        //to separate these functions.
-        Arrays.fill(data, 0);
-
-        int offset = 0;
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                if (data[offset] == 0 && magnitude[offset] >= high) {
-                    follow(x, y, offset, low);
-                }
-                offset++;
+    /**
+     * Marks as edges the pixels above the high threshold, and the
+     * pixels above the low threshold that are connected to them.
+     * Uses an explicit stack instead of recursion, so that long
+     * edges can't cause a stack overflow. The edges are written
+     * directly into the edges image.
+     */
+    private void performHysteresis() {
+        int[] edges = ((DataBufferInt) edgesImage.getRaster().getDataBuffer()).getData();
+        Arrays.fill(edges, NOT_EDGE);
+
+        int[] stack = new int[1024];
+        for (int seed = 0; seed < picsize; seed++) {
+            if (edges[seed] == EDGE || (edgeClasses[seed] & ABOVE_HIGH) == 0) {
+                continue;
             }
-        }
-    }
-
-    private void follow(int x1, int y1, int i1, int threshold) {
-        int x0 = x1 == 0 ? x1 : x1 - 1;
-        int x2 = x1 == width - 1 ? x1 : x1 + 1;
-        int y0 = y1 == 0 ? y1 : y1 - 1;
-        int y2 = y1 == height - 1 ? y1 : y1 + 1;
-
-        data[i1] = magnitude[i1];
-        for (int x = x0; x <= x2; x++) {
-            for (int y = y0; y <= y2; y++) {
-                int i2 = x + y * width;
-                if ((y != y1 || x != x1)
-                    && data[i2] == 0
-                    && magnitude[i2] >= threshold) {
-                    follow(x, y, i2, threshold);
-                    return;
+            edges[seed] = EDGE;
+            stack[0] = seed;
+            int stackSize = 1;
+            while (stackSize > 0) {
+                int i = stack[--stackSize];
+                int x1 = i % width;
+                int y1 = i / width;
+                int x0 = x1 == 0 ? x1 : x1 - 1;
+                int x2 = x1 == width - 1 ? x1 : x1 + 1;
+                int y0 = y1 == 0 ? y1 : y1 - 1;
+                int y2 = y1 == height - 1 ? y1 : y1 + 1;
+
+                for (int y = y0; y <= y2; y++) {
+                    for (int x = x0; x <= x2; x++) {
+                        int i2 = x + y * width;
+                        if (edges[i2] != EDGE && (edgeClasses[i2] & ABOVE_LOW) != 0) {
+                            edges[i2] = EDGE;
+                            if (stackSize == stack.length) {
+                                stack = Arrays.copyOf(stack, 2 * stackSize);
+                            }
+                            stack[stackSize++] = i2;
+                        }
+                    }
                 }
             }
         }
     }
 
-    private void thresholdEdges() {
-        for (int i = 0; i < picsize; i++) {
-            data[i] = data[i] > 0 ? -1 : 0xff000000;
-        }
-    }
-
     private static int luminance(float r, float g, float b) {
         return Math.round(0.299f * r + 0.587f * g + 0.114f * b);
     }
 
     private void readLuminance() {
         int type = sourceImage.getType();
-        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
-            int[] pixels = (int[]) sourceImage.getData().getDataElements(0, 0, width, height, null);
-            for (int i = 0; i < picsize; i++) {
-                int p = pixels[i];
-                int r = (p & 0xff0000) >> 16;
-                int g = (p & 0xff00) >> 8;
-                int b = p & 0xff;
-                data[i] = luminance(r, g, b);
+        if (type != BufferedImage.TYPE_INT_RGB
+            && type != BufferedImage.TYPE_INT_ARGB
+            && type != BufferedImage.TYPE_INT_ARGB_PRE
+            && type != BufferedImage.TYPE_BYTE_GRAY
+            && type != BufferedImage.TYPE_USHORT_GRAY
+            && type != BufferedImage.TYPE_3BYTE_BGR) {
+            throw new IllegalArgumentException("Unsupported image type: " + type);
+        }
+
+        // the rows are read directly from the raster, without copying the whole image
+        Raster raster = sourceImage.getRaster();
+        ThreadPool.processRows(height, width, y -> {
+            Object row = raster.getDataElements(0, y, width, 1, null);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                data[offset + x] = (byte) luminance(type, row, x);
             }
+        }, pt);
+    }
+
+    private static int luminance(int type, Object row, int x) {
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            int p = ((int[]) row)[x];
+            int r = (p & 0xff0000) >> 16;
+            int g = (p & 0xff00) >> 8;
+            int b = p & 0xff;
+            return luminance(r, g, b);
         } else if (type == BufferedImage.TYPE_INT_ARGB_PRE) {
-            int[] pixels = (int[]) sourceImage.getData().getDataElements(0, 0, width, height, null);
-            for (int i = 0; i < picsize; i++) {
-                int p = pixels[i];
-                int a = (p >>> 24) & 0xff;
-                int r = (p & 0xff0000) >> 16;
-                int g = (p & 0xff00) >> 8;
-                int b = p & 0xff;
-                int lum = luminance(r, g, b);
-                if (a != 255) {
-                    if (a == 0) {
-                        lum = 0;
-                    } else {
-                        float af = a / 255.0f;
-                        lum = (int) (lum / af);
-                        if (lum > 255) {
-                            lum = 255;
-                        }
+            int p = ((int[]) row)[x];
+            int a = (p >>> 24) & 0xff;
+            int r = (p & 0xff0000) >> 16;
+            int g = (p & 0xff00) >> 8;
+            int b = p & 0xff;
+            int lum = luminance(r, g, b);
+            if (a != 255) {
+                if (a == 0) {
+                    lum = 0;
+                } else {
+                    float af = a / 255.0f;
+                    lum = (int) (lum / af);
+                    if (lum > 255) {
+                        lum = 255;
                     }
                 }
-                data[i] = lum;
             }
+            return lum;
         } else if (type == BufferedImage.TYPE_BYTE_GRAY) {
-            byte[] pixels = (byte[]) sourceImage.getData().getDataElements(0, 0, width, height, null);
-            for (int i = 0; i < picsize; i++) {
-                data[i] = (pixels[i] & 0xff);
-            }
+            return ((byte[]) row)[x] & 0xff;
         } else if (type == BufferedImage.TYPE_USHORT_GRAY) {
-            short[] pixels = (short[]) sourceImage.getData().getDataElements(0, 0, width, height, null);
-            for (int i = 0; i < picsize; i++) {
-                data[i] = (pixels[i] & 0xffff) / 256;
-            }
-        } else if (type == BufferedImage.TYPE_3BYTE_BGR) {
-            byte[] pixels = (byte[]) sourceImage.getData().getDataElements(0, 0, width, height, null);
-            int offset = 0;
-            for (int i = 0; i < picsize; i++) {
-                int b = pixels[offset++] & 0xff;
-                int g = pixels[offset++] & 0xff;
-                int r = pixels[offset++] & 0xff;
-                data[i] = luminance(r, g, b);
-            }
-        } else {
-            throw new IllegalArgumentException("Unsupported image type: " + type);
+            return (((short[]) row)[x] & 0xffff) / 256;
+        } else { // TYPE_3BYTE_BGR
+            byte[] pixels = (byte[]) row;
+            int b = pixels[3 * x] & 0xff;
+            int g = pixels[3 * x + 1] & 0xff;
+            int r = pixels[3 * x + 2] & 0xff;
+            return luminance(r, g, b);
         }
     }
 
     private void normalizeContrast() {
         int[] histogram = new int[256];
-        for (int datum : data) {
-            histogram[datum]++;
+        for (byte datum : data) {
+            histogram[datum & 0xff]++;
         }
         int[] remap = new int[256];
         int sum = 0;
         int j = 0;
         for (int i = 0; i < histogram.length; i++) {
             sum += histogram[i];
-            int target = sum * 255 / picsize;
+            int target = (int) ((long) sum * 255 / picsize);
             for (int k = j + 1; k <= target; k++) {
                 remap[k] = i;
             }
@@ -622,17 +750,7 @@ public class CannyEdgeDetector {
         }
 
         for (int i = 0; i < data.length; i++) {
-            data[i] = remap[data[i]];
-        }
-    }
-
-    private void writeEdges(int[] pixels) {
-        //NOTE: There is currently no mechanism for obtaining the edge data
-        //in any other format other than an INT_ARGB type BufferedImage.
-        //This may be easily remedied by providing alternative accessors.
-        if (edgesImage == null) {
-            edgesImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            data[i] = (byte) remap[data[i] & 0xff];
         }
-        edgesImage.getWritableTile(0, 0).setDataElements(0, 0, width, height, pixels);
     }
 }
@@ -43,6 +43,7 @@ import pixelitor.layers.Drawable;
 import pixelitor.layers.ImageLayer;
 import pixelitor.layers.Layer;
 import pixelitor.layers.LayerMoveAction;
+import pixelitor.layers.LayerStackCompositor;
 import pixelitor.layers.LayerUI;
 import pixelitor.layers.MaskViewMode;
 import pixelitor.layers.TextLayer;
@@ -58,6 +59,7 @@ import pixelitor.tools.util.PPoint;
 import pixelitor.tools.util.PRectangle;
 import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Messages;
+import pixelitor.utils.RGBHistograms;
 import pixelitor.utils.VisibleForTesting;
 
 import javax.swing.*;
@@ -78,6 +80,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
@@ -95,6 +98,15 @@ import static pixelitor.utils.Utils.createCopyName;
  * An image composition consisting of multiple layers
  */
 public class Composition implements Serializable {
+    // the bellow-active images of all compositions together
+    // can use at most this fraction of the maximal heap size
+    private static final long MAX_BELOW_ACTIVE_BYTES = Runtime.getRuntime().maxMemory() / 8;
+    private static final AtomicLong belowActiveBytesTotal = new AtomicLong();
+
+    // caching the layers bellow the active layer is worth
+    // it only if there are at least this many visible layers
+    private static final int MIN_LAYERS_FOR_BELOW_CACHE = 2;
+
     // serialization is used for saving in the pxc format
     private static final long serialVersionUID = 1L;
 
@@ -117,6 +129,30 @@ public class Composition implements Serializable {
 
     private transient BufferedImage compositeImage;
 
+    // the out-of-date part of the cached composite image
+    // (in image space), or null if only the cached image is OK
+    private transient Rectangle compositeDirtyRegion;
+
+    // true if the cached composite image was returned to code that
+    // might keep a reference to it, so it must not be updated in place
+    private transient boolean compositeShared;
+
+    // the histograms of the cached composite image, if they were
+    // requested, updated together with the regions of the image
+    private transient RGBHistograms compositeHistograms;
+
+    // the composite of the layers bellow the active layer, so that
+    // editing the active layer doesn't re-blend all the layers bellow it
+    private transient BufferedImage belowActiveImage;
+    // the active layer and its index when belowActiveImage was calculated
+    private transient Layer belowActiveLayer;
+    private transient int belowActiveIndex;
+    private transient long belowActiveBytes;
+
+    // the version of the last change that could affect all layers,
+    // see getVersionBellow
+    private transient long allLayersVersion;
+
     private transient View view;
 
     private transient Selection selection;
@@ -178,7 +214,9 @@ public class Composition implements Serializable {
 
         // copy layers
         for (Layer layer : layerList) {
-            var layerCopy = layer.duplicate(true);
+            // a copy for undo is transformed right away, so its
+            // layers share the images until unshareImages is called
+            var layerCopy = forUndo ? layer.duplicateSharingImages() : layer.duplicate(true);
             layerCopy.setCompAndCanvas(compCopy);
 
             compCopy.layerList.add(layerCopy);
@@ -219,6 +257,12 @@ public class Composition implements Serializable {
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         // init transient variables
         compositeImage = null; // will be set when needed
+        compositeDirtyRegion = null;
+        compositeShared = false;
+        compositeHistograms = null;
+        belowActiveImage = null;
+        belowActiveLayer = null;
+        belowActiveBytes = 0;
         file = null; // will be set later
         dirty = false;
         view = null; // will be set later
@@ -236,6 +280,10 @@ public class Composition implements Serializable {
         this.view = view;
         if (view != null) {
             canvas.recalcCoSize(view);
+        } else {
+            // a comp without a view (for example a replaced comp that
+            // is kept only for undo) shouldn't use the shared budget
+            invalidateBelowActiveCache();
         }
 
         if (selection != null) { // can happen when duplicating
@@ -400,6 +448,8 @@ public class Composition implements Serializable {
             bellowLayer.setImage(result);
         }
         g.dispose();
+        bellowLayer.invalidateMaskedImage();
+        bellowLayer.updateVersion();
 
         bellowLayer.updateIconImage();
 
@@ -430,6 +480,8 @@ public class Composition implements Serializable {
         }
 
         layerList.remove(layer);
+        // the layers above it are composited on another image now
+        allLayersVersion = Layer.nextVersion();
 
         if (layer == activeLayer) {
             if (layerIndex > 0) {
@@ -529,6 +581,22 @@ public class Composition implements Serializable {
         return getNumLayers(layer -> layer instanceof TextLayer);
     }
 
+    /**
+     * Called on a copy created by createCopy(true, ...) after it was
+     * transformed, to copy the layer images that weren't replaced
+     * by the transformation, and so are still shared with the original.
+     */
+    public void unshareImages() {
+        for (Layer layer : layerList) {
+            if (layer instanceof ImageLayer) {
+                ((ImageLayer) layer).unshareImage();
+            }
+            if (layer.hasMask()) {
+                layer.getMask().unshareImage();
+            }
+        }
+    }
+
     public void forEachLayer(Consumer<Layer> action) {
         layerList.forEach(action);
     }
@@ -813,14 +881,40 @@ public class Composition implements Serializable {
 
 //        BufferedImage imageSoFar = ImageUtils.createCompatibleImage(getCanvasWidth(), getCanvasHeight());
 
+        int activeIndex = layerList.indexOf(activeLayer);
+        BufferedImage below = getBelowActiveImage(activeIndex, true);
+        if (below != null) {
+            BufferedImage imageSoFar = ImageUtils.copyImage(below);
+            if (imageSoFar != null) { // can be null after an out of memory error
+                return compositeLayers(imageSoFar, activeIndex, layerList.size(), false);
+            }
+        }
+
         BufferedImage imageSoFar = new BufferedImage(
                 canvas.getImWidth(), canvas.getImHeight(), TYPE_INT_ARGB_PRE);
-        Graphics2D g = imageSoFar.createGraphics();
+        return compositeLayers(imageSoFar, 0, layerList.size(), true);
+    }
 
-        boolean firstVisibleLayer = true;
-        for (Layer layer : layerList) {
+    /**
+     * Composites the visible layers from the given index (inclusive)
+     * to the given index (exclusive) on the given image.
+     */
+    private BufferedImage compositeLayers(BufferedImage imageSoFar,
+                                          int fromIndex, int toIndex,
+                                          boolean firstVisibleLayer) {
+        Graphics2D g = imageSoFar.createGraphics();
+        for (int i = fromIndex; i < toIndex; i++) {
+            Layer layer = layerList.get(i);
             if (layer.isVisible()) {
-                BufferedImage result = layer.applyLayer(g, imageSoFar, firstVisibleLayer);
+                int next = LayerStackCompositor.compositeLayers(layerList,
+                        i, toIndex, imageSoFar, 0, 0, firstVisibleLayer);
+                if (next > i) {
+                    i = next - 1;
+                    firstVisibleLayer = false;
+                    continue;
+                }
+                BufferedImage result = layer.applyLayer(g, imageSoFar,
+                        firstVisibleLayer, getVersionBellow(i));
                 if (result != null) { // adjustment layer or watermarking text layer
                     imageSoFar = result;
                     if (g != null) {
@@ -837,6 +931,71 @@ public class Composition implements Serializable {
         return imageSoFar;
     }
 
+    /**
+     * Returns a version stamp for the composite of the layers bellow
+     * the given index. It changes whenever the pixels of these layers
+     * change, but not when the layers above the given index change.
+     */
+    private long getVersionBellow(int index) {
+        long version = allLayersVersion;
+        for (int i = 0; i < index; i++) {
+            version = Math.max(version, layerList.get(i).getVersion());
+        }
+        return version;
+    }
+
+    /**
+     * Returns the cached composite of the layers bellow the active layer,
+     * or null if it is not available. If it's not cached, then it's
+     * calculated only if the calculate argument is true
+     * and the composition is shown in a view.
+     */
+    private BufferedImage getBelowActiveImage(int activeIndex, boolean calculate) {
+        if (belowActiveImage != null) {
+            if (belowActiveLayer == activeLayer && belowActiveIndex == activeIndex) {
+                return belowActiveImage;
+            }
+            invalidateBelowActiveCache();
+        }
+        if (!calculate || activeIndex < 0 || view == null) {
+            return null;
+        }
+
+        int numVisibleBelow = 0;
+        for (int i = 0; i < activeIndex; i++) {
+            if (layerList.get(i).isVisible()) {
+                numVisibleBelow++;
+            }
+        }
+        if (numVisibleBelow < MIN_LAYERS_FOR_BELOW_CACHE) {
+            return null;
+        }
+
+        long numBytes = 4L * canvas.getImWidth() * canvas.getImHeight();
+        if (belowActiveBytesTotal.addAndGet(numBytes) > MAX_BELOW_ACTIVE_BYTES) {
+            belowActiveBytesTotal.addAndGet(-numBytes);
+            return null;
+        }
+
+        BufferedImage imageSoFar = new BufferedImage(
+                canvas.getImWidth(), canvas.getImHeight(), TYPE_INT_ARGB_PRE);
+        belowActiveImage = compositeLayers(imageSoFar, 0, activeIndex, true);
+        belowActiveLayer = activeLayer;
+        belowActiveIndex = activeIndex;
+        belowActiveBytes = numBytes;
+        return belowActiveImage;
+    }
+
+    private void invalidateBelowActiveCache() {
+        if (belowActiveImage != null) {
+            belowActiveImage.flush();
+            belowActiveImage = null;
+            belowActiveLayer = null;
+            belowActiveBytesTotal.addAndGet(-belowActiveBytes);
+            belowActiveBytes = 0;
+        }
+    }
+
     public String generateNewLayerName() {
         String retVal = "layer " + newLayerCount;
         newLayerCount++;
@@ -844,7 +1003,12 @@ public class Composition implements Serializable {
     }
 
     public void repaintRegion(PPoint start, PPoint end, double thickness) {
-        invalidateCompositeCache();
+        double minX = Math.min(start.getImX(), end.getImX()) - thickness;
+        double minY = Math.min(start.getImY(), end.getImY()) - thickness;
+        double maxX = Math.max(start.getImX(), end.getImX()) + thickness;
+        double maxY = Math.max(start.getImY(), end.getImY()) + thickness;
+        invalidateCompositeRegion(new Rectangle2D.Double(
+                minX, minY, maxX - minX, maxY - minY));
         if (view != null) { // during reload image it can be null
             view.repaintRegion(start, end, thickness);
             view.repaintNavigator(false);
@@ -852,7 +1016,7 @@ public class Composition implements Serializable {
     }
 
     public void repaintRegion(PRectangle area) {
-        invalidateCompositeCache();
+        invalidateCompositeRegion(area.getIm());
         if (view != null) { // during reload image it can be null
             view.repaintRegion(area);
             view.repaintNavigator(false);
@@ -860,6 +1024,7 @@ public class Composition implements Serializable {
     }
 
     public void dispose() {
+        invalidateBelowActiveCache();
         if (selection != null) {
             // stop the timer thread
             selection.die();
@@ -1080,6 +1245,11 @@ public class Composition implements Serializable {
         return builtSelection != null;
     }
 
+    @VisibleForTesting
+    static long getBelowActiveBytesTotal() {
+        return belowActiveBytesTotal.get();
+    }
+
     /**
      * Returns true if visually there are marching ants,
      * even if the selection is not yet finished
@@ -1138,14 +1308,130 @@ public class Composition implements Serializable {
 
     /**
      * Returns the composite image, which has the same dimensions as the canvas.
+     * The returned image is not modified later by this composition.
      */
     public BufferedImage getCompositeImage() {
-        if(compositeImage == null) {
+        BufferedImage img = getCompositeImageForPainting();
+        compositeShared = true;
+        return img;
+    }
+
+    /**
+     * Returns the composite image, like getCompositeImage, but the
+     * returned image can be updated in place by later changes, so
+     * it should not be kept after it was painted or examined.
+     */
+    public BufferedImage getCompositeImageForPainting() {
+        if (compositeImage != null && compositeDirtyRegion != null) {
+            // might also discard the cached image
+            updateCompositeRegion(compositeDirtyRegion);
+        }
+        if (compositeImage == null) {
             compositeImage = calculateCompositeImage();
+            compositeShared = false;
         }
+        compositeDirtyRegion = null;
         return compositeImage;
     }
 
+    /**
+     * Recomposites only the given region of the cached composite image.
+     */
+    private void updateCompositeRegion(Rectangle region) {
+        region = region.intersection(canvas.getImBounds());
+        if (region.isEmpty()) {
+            return;
+        }
+
+        // The layers are painted into a fresh, region-sized image,
+        // which is then copied into the cached image. This way
+        // the layers don't have to respect the clipping.
+        BufferedImage regionImage = new BufferedImage(
+                region.width, region.height, TYPE_INT_ARGB_PRE);
+        Graphics2D g = regionImage.createGraphics();
+        g.translate(-region.x, -region.y);
+
+        int startIndex = 0;
+        boolean firstVisibleLayer = true;
+        int activeIndex = layerList.indexOf(activeLayer);
+        BufferedImage below = getBelowActiveImage(activeIndex, false);
+        if (below != null) {
+            g.drawImage(below, 0, 0, null);
+            startIndex = activeIndex;
+            firstVisibleLayer = false;
+        }
+
+        for (int i = startIndex; i < layerList.size(); i++) {
+            Layer layer = layerList.get(i);
+            if (layer.isVisible()) {
+                int next = LayerStackCompositor.compositeLayers(layerList, i,
+                        layerList.size(), regionImage, region.x, region.y, firstVisibleLayer);
+                if (next > i) {
+                    i = next - 1;
+                    firstVisibleLayer = false;
+                    continue;
+                }
+                BufferedImage result = layer.applyLayer(g, regionImage, firstVisibleLayer);
+                if (result != null && result != regionImage) {
+                    // Adjustment layers might depend on the pixels
+                    // outside the region, or on the size of the image
+                    g.dispose();
+                    invalidateCompositeCache();
+                    return;
+                }
+                firstVisibleLayer = false;
+            }
+        }
+        g.dispose();
+
+        BufferedImage prevCompositeImage = compositeImage;
+        if (compositeShared) {
+            BufferedImage copy = ImageUtils.copyImage(compositeImage);
+            if (copy == null) { // out of memory error
+                invalidateCompositeCache();
+                return;
+            }
+            compositeImage = copy;
+            compositeShared = false;
+        }
+        if (compositeHistograms != null) {
+            compositeHistograms.remove(compositeImage, region);
+        }
+        Graphics2D cg = compositeImage.createGraphics();
+        cg.setComposite(AlphaComposite.Src);
+        cg.drawImage(regionImage, region.x, region.y, null);
+        cg.dispose();
+        if (compositeHistograms != null) {
+            compositeHistograms.add(compositeImage, region);
+        }
+        if (view != null) {
+            view.compositeRegionUpdated(prevCompositeImage, compositeImage, region);
+        }
+    }
+
+    /**
+     * Returns the up-to-date histograms of the composite image,
+     * or null if they have to be counted again.
+     */
+    public RGBHistograms getCompositeHistograms() {
+        if (compositeHistograms == null) {
+            return null;
+        }
+        // the pending region updates also update the histograms
+        getCompositeImageForPainting();
+        return compositeHistograms;
+    }
+
+    /**
+     * Sets the histograms counted from the given composite image. They are
+     * kept only if the image is still the current composite image.
+     */
+    public void setCompositeHistograms(BufferedImage image, RGBHistograms histograms) {
+        if (image == compositeImage && compositeDirtyRegion == null) {
+            compositeHistograms = histograms;
+        }
+    }
+
     public void imageChanged() {
         imageChanged(FULL);
     }
@@ -1159,8 +1445,47 @@ public class Composition implements Serializable {
      * and additional actions might be necessary
      */
     public void imageChanged(ImageChangeActions actions, boolean sizeChanged) {
+        invalidateBelowActiveCache();
         invalidateCompositeCache();
+        allLayersVersion = Layer.nextVersion();
+        for (Layer layer : layerList) {
+            invalidateMaskedImage(layer);
+        }
+        runImageChangeActions(actions, sizeChanged);
+    }
 
+    /**
+     * Like imageChanged, but only the image of the given layer (or layer mask)
+     * has been changed, therefore if it belongs to the active layer,
+     * the cached composite of the layers bellow it can be reused.
+     */
+    public void layerImageChanged(Layer layer, ImageChangeActions actions) {
+        if (layer != activeLayer && layer.getOwner() != activeLayer) {
+            invalidateBelowActiveCache();
+        }
+        invalidateCompositeCache();
+        invalidateMaskedImage(layer);
+        updateVersion(layer);
+        runImageChangeActions(actions, false);
+    }
+
+    /**
+     * Like layerImageChanged, but only the given region (in image space)
+     * of the given layer (or layer mask) has been changed, therefore
+     * the cached composite image can be updated only in this region.
+     */
+    public void layerRegionChanged(Layer layer, Rectangle2D imRegion,
+                                   ImageChangeActions actions) {
+        if (layer != activeLayer && layer.getOwner() != activeLayer) {
+            // only the changes of the active layer can be handled by region
+            layerImageChanged(layer, actions);
+            return;
+        }
+        invalidateCompositeRegion(imRegion);
+        runImageChangeActions(actions, false);
+    }
+
+    private void runImageChangeActions(ImageChangeActions actions, boolean sizeChanged) {
         if (actions.repaintNeeded()) {
             if (view != null) {
                 view.repaint();
@@ -1173,11 +1498,61 @@ public class Composition implements Serializable {
         }
     }
 
+    /**
+     * Discards the cached masked image of the given layer
+     * (or of the owner of the given layer mask).
+     */
+    private static void invalidateMaskedImage(Layer layer) {
+        if (layer.getOwner() != null) {
+            layer = layer.getOwner();
+        }
+        if (layer instanceof ImageLayer) {
+            ((ImageLayer) layer).invalidateMaskedImage();
+        }
+    }
+
+    /**
+     * Updates the version of the given layer
+     * (or of the owner of the given layer mask).
+     */
+    private static void updateVersion(Layer layer) {
+        if (layer.getOwner() != null) {
+            layer = layer.getOwner();
+        }
+        layer.updateVersion();
+    }
+
     private void invalidateCompositeCache() {
         if(compositeImage != null) {
             compositeImage.flush();
         }
         compositeImage = null;
+        compositeDirtyRegion = null;
+        compositeShared = false;
+        compositeHistograms = null;
+    }
+
+    /**
+     * Marks only the given region (in image space) of the
+     * cached composite image as out of date.
+     */
+    private void invalidateCompositeRegion(Rectangle2D imRegion) {
+        // only the active layer (or its mask) is changed this way
+        if (activeLayer != null) {
+            invalidateMaskedImage(activeLayer);
+            activeLayer.updateVersion();
+        }
+        if (compositeImage == null) {
+            return; // everything will be recalculated anyway
+        }
+        // extend it by one pixel because of the antialiasing
+        Rectangle region = imRegion.getBounds();
+        region.grow(1, 1);
+        if (compositeDirtyRegion == null) {
+            compositeDirtyRegion = region;
+        } else {
+            compositeDirtyRegion.add(region);
+        }
     }
 
     public boolean isActive() {
@@ -1529,6 +1904,7 @@ public class Composition implements Serializable {
                 }
             }
             comp.layerList.add(newLayerIndex, newLayer);
+            comp.allLayersVersion = Layer.nextVersion();
             comp.setActiveLayer(newLayer, !compInit);
             if (!compInit) {
                 comp.setDirty(true);
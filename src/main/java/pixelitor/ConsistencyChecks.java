@@ -75,7 +75,7 @@ public final class ConsistencyChecks {
             var fadeableEdit = edit.get();
             var previousImg = fadeableEdit.getBackupImage();
             if (previousImg == null) {
-                // soft reference expired: fade wouldn't work, but not a bug
+                // the backup could not be restored: fade wouldn't work, but not a bug
                 return true;
             }
 
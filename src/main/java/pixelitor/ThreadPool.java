@@ -17,16 +17,24 @@
 
 package pixelitor;
 
-import com.jhlabs.image.AbstractBufferedImageOp;
 import pixelitor.utils.ProgressTracker;
 
-import java.awt.image.BufferedImage;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * A thread pool for parallel execution on multiple CPU cores
@@ -34,12 +42,37 @@ import java.util.concurrent.Future;
 public class ThreadPool {
     private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
 
-    private static final ExecutorService executorService =
-            Executors.newFixedThreadPool(NUM_CORES);
+    // a work-stealing pool, so that the band tasks can be split
+    // recursively and a task can safely wait for its subtasks
+    private static final ForkJoinPool executorService =
+            new ForkJoinPool(NUM_CORES);
+
+    // the size of a band is chosen so that its pixels fit into
+    // a typical L2 cache, assuming 4 bytes per pixel
+    private static final int BAND_TARGET_BYTES = 256 * 1024;
+
+    // the number of bands per core when the image is small,
+    // so that the load can be balanced between the cores
+    private static final int MIN_BANDS_PER_CORE = 4;
+
+    private static final int PROGRESS_POLL_MILLIS = 50;
+
+    // the cancellation check of the computation running on the current
+    // thread, or null if that computation can't be cancelled
+    private static final ThreadLocal<BooleanSupplier> cancelChecks = new ThreadLocal<>();
 
     private ThreadPool() {
     }
 
+    /**
+     * A computation over a horizontal band of rows,
+     * from startY (inclusive) to endY (exclusive)
+     */
+    @FunctionalInterface
+    public interface BandTask {
+        void processBand(int startY, int endY);
+    }
+
     /**
      * Submits a task that doesn't return anything
      */
@@ -48,69 +81,160 @@ public class ThreadPool {
     }
 
     /**
-     * Submits a task that returns something, such as
-     * the calculated pixels in a line
+     * Runs the given computation on the current thread, and while it runs,
+     * the bands of {@link #processBands} are skipped as soon as the given
+     * check returns true. The result of a cancelled computation is garbage,
+     * it must be thrown away by the caller.
      */
-    public static <T> Future<T> submit2(Callable<T> task) {
-        return executorService.submit(task);
+    public static <T> T callCancellable(Supplier<T> task, BooleanSupplier isCancelled) {
+        cancelChecks.set(isCancelled);
+        try {
+            return task.get();
+        } finally {
+            cancelChecks.remove();
+        }
     }
 
     /**
-     * Waits until all the given futures complete their
-     * computation, and updates the given
-     * {@link ProgressTracker} in the meantime.
+     * Processes all the rows from 0 to numRows in parallel, one row
+     * at a time, but without creating a separate task for every row.
+     * Returns only after all the rows are processed.
      */
-    public static void waitFor(Iterable<Future<?>> futures, ProgressTracker pt) {
-        assert pt != null;
-
-        for (var future : futures) {
-            try {
-                future.get();
-
-                // not completely accurate because the submit order is not
-                // necessarily the same as the finish order, but
-                // good enough in practice
-                pt.unitDone();
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
+    public static void processRows(int numRows, int rowWidth,
+                                   IntConsumer rowTask, ProgressTracker pt) {
+        processBands(numRows, rowWidth, (startY, endY) -> {
+            for (int y = startY; y < endY; y++) {
+                rowTask.accept(y);
             }
-        }
+        }, pt);
     }
 
-    // same as the above, but with array argument
-    public static void waitFor(Future<?>[] futures, ProgressTracker pt) {
+    /**
+     * Splits the rows from 0 to numRows into cache-sized bands,
+     * processes them on the work-stealing pool, and updates the
+     * given {@link ProgressTracker} (in rows) in the meantime.
+     * The tracker is only called from the calling thread.
+     * Returns only after all the bands are processed. If a band
+     * fails, its exception is rethrown (as an unchecked exception).
+     * If the calling thread is interrupted, the bands that didn't start
+     * yet are skipped, and a {@link CancellationException} is thrown
+     * after the running bands have finished.
+     */
+    public static void processBands(int numRows, int rowWidth,
+                                    BandTask task, ProgressTracker pt) {
         assert pt != null;
+        if (numRows <= 0) {
+            return;
+        }
+
+        int bandHeight = calcBandHeight(numRows, rowWidth);
+        AtomicInteger rowsDone = new AtomicInteger();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        BooleanSupplier cancelCheck = cancelChecks.get();
+        BooleanSupplier skipCheck = cancelCheck == null
+                ? interrupted::get
+                : () -> interrupted.get() || cancelCheck.getAsBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        var action = new BandAction(task, 0, numRows, bandHeight,
+                rowsDone, skipCheck, failure);
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            // already running on a worker thread (nested filters,
+            // async tasks): join in, don't block a worker thread
+            action.invoke();
+            pt.unitsDone(numRows);
+            return;
+        }
 
-        for (var future : futures) {
+        ForkJoinTask<Void> future = executorService.submit(action);
+        int reported = 0;
+        while (true) {
             try {
-                future.get();
-                pt.unitDone();
+                future.get(PROGRESS_POLL_MILLIS, MILLISECONDS);
+                break;
+            } catch (TimeoutException e) {
+                int done = rowsDone.get();
+                if (done > reported) {
+                    pt.unitsDone(done - reported);
+                    reported = done;
+                }
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                // the bands must not write into the caller's
+                // arrays after this method has returned
+                interrupted.set(true);
+                future.quietlyJoin();
+                Thread.currentThread().interrupt();
+                var cancellation = new CancellationException("interrupted while processing bands");
+                cancellation.initCause(e);
+                throw cancellation;
             } catch (ExecutionException e) {
-                e.getCause().printStackTrace();
+                // the original exception, not the copy made by the pool,
+                // so that it's the same as in the fork-join path
+                Throwable cause = failure.get() != null ? failure.get() : e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException(cause);
             }
         }
+        if (numRows > reported) {
+            pt.unitsDone(numRows - reported);
+        }
+    }
+
+    private static int calcBandHeight(int numRows, int rowWidth) {
+        int cacheRows = BAND_TARGET_BYTES / (4 * Math.max(rowWidth, 1));
+        int balancedRows = numRows / (NUM_CORES * MIN_BANDS_PER_CORE);
+        return Math.max(1, Math.min(cacheRows, balancedRows));
     }
 
     /**
-     * Similar to waitFor, but works with futures
-     * that return an int array representing a line, and
-     * updates the given destination image with the new pixels.
+     * Recursively halves its row range until it is
+     * not larger than the band height
      */
-    public static void waitFor2(Future<int[]>[] futures, BufferedImage dst, int width, ProgressTracker pt) {
-        assert pt != null;
-
-        try {
-            for (int i = 0; i < futures.length; i++) {
-                var lineFuture = futures[i];
-                int[] linePixels = lineFuture.get();
-                AbstractBufferedImageOp.setRGB(dst, 0, i, width, 1, linePixels);
+    private static class BandAction extends RecursiveAction {
+        private final BandTask task;
+        private final int startY;
+        private final int endY;
+        private final int bandHeight;
+        private final AtomicInteger rowsDone;
+        private final BooleanSupplier cancelled;
+        private final AtomicReference<Throwable> failure;
+
+        BandAction(BandTask task, int startY, int endY, int bandHeight,
+                   AtomicInteger rowsDone, BooleanSupplier cancelled,
+                   AtomicReference<Throwable> failure) {
+            this.task = task;
+            this.startY = startY;
+            this.endY = endY;
+            this.bandHeight = bandHeight;
+            this.rowsDone = rowsDone;
+            this.cancelled = cancelled;
+            this.failure = failure;
+        }
 
-                pt.unitDone();
+        @Override
+        protected void compute() {
+            int numRows = endY - startY;
+            if (numRows <= bandHeight) {
+                if (!cancelled.getAsBoolean()) {
+                    try {
+                        task.processBand(startY, endY);
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                        throw e;
+                    }
+                }
+                rowsDone.addAndGet(numRows);
+                return;
             }
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
+            int midY = startY + numRows / 2;
+            invokeAll(
+                    new BandAction(task, startY, midY, bandHeight, rowsDone, cancelled, failure),
+                    new BandAction(task, midY, endY, bandHeight, rowsDone, cancelled, failure));
         }
     }
 
@@ -106,6 +106,7 @@ public class Crop implements CompAction {
                 layer.getMask().crop(cropRect, deleteCroppedPixels, allowGrowing);
             }
         });
+        newComp.unshareImages();
 
         int newWidth = cropRect.width;
         int newHeight = cropRect.height;
@@ -72,6 +72,7 @@ public class EnlargeCanvas implements CompAction {
         Canvas newCanvas = newComp.getCanvas();
 
         newComp.forEachLayer(this::processLayer);
+        newComp.unshareImages();
 
         AffineTransform canvasTransform = null;
         if (north > 0 || west > 0) {
@@ -103,6 +103,8 @@ public class Resize implements CompAction {
     private static Composition afterResizeActions(Composition comp, Composition newComp, Dimension targetSize, ProgressHandler progressHandler) {
         assert EventQueue.isDispatchThread() : "called on " + Thread.currentThread().getName();
 
+        newComp.unshareImages();
+
         int canvasTargetWidth = targetSize.width;
         int canvasTargetHeight = targetSize.height;
 
@@ -64,6 +64,7 @@ public abstract class SimpleCompAction extends AbstractAction implements CompAct
         newComp.imCoordsChanged(canvasAT, false);
 
         newComp.forEachLayer(this::processLayer);
+        newComp.unshareImages();
 
         if (changesCanvasDimensions) {
             changeCanvas(newCanvas, view);
@@ -46,6 +46,8 @@ public class Canny extends ParametrizedFilter {
     private final BooleanParam invert = new BooleanParam(
             "Invert", false);
 
+    private CannyEdgeDetector detector;
+
     public Canny() {
         super(ShowOriginal.YES);
 
@@ -71,7 +73,18 @@ public class Canny extends ParametrizedFilter {
             return dest;
         }
 
-        long estimatedMemoryMB = estimateNeededMemoryMB(src);
+        if (detector == null) {
+            detector = new CannyEdgeDetector();
+        }
+
+        detector.setLowThreshold(lowThreshold.getPercentageValF());
+        detector.setHighThreshold(highThreshold.getPercentageValF());
+        detector.setContrastNormalized(contrastNormalized.isChecked());
+        detector.setGaussianKernelRadius(gaussianKernelRadius.getValueAsFloat());
+        detector.setGaussianKernelWidth(gaussianKernelWidth.getValue());
+
+        long estimatedMemoryMB = detector.estimateNeededMemory(
+                src.getWidth(), src.getHeight()) / MemoryInfo.ONE_MEGABYTE;
         System.gc(); // needed for the memory estimation
         var memoryInfo = new MemoryInfo();
         long availableMemoryMB = memoryInfo.getAvailableMemoryMB();
@@ -82,19 +95,15 @@ public class Canny extends ParametrizedFilter {
             return dest;
         }
 
-        // do not cache this object because it holds a lot of memory!
-        var detector = new CannyEdgeDetector();
-
-        detector.setLowThreshold(lowThreshold.getPercentageValF());
-        detector.setHighThreshold(highThreshold.getPercentageValF());
-        detector.setContrastNormalized(contrastNormalized.isChecked());
-        detector.setGaussianKernelRadius(gaussianKernelRadius.getValueAsFloat());
-        detector.setGaussianKernelWidth(gaussianKernelWidth.getValue());
-
         detector.setSourceImage(src);
 
+        // the previous result can't be overwritten, because it
+        // might be still used, but the other arrays are reused
+        // if the image size didn't change (preview updates)
+        detector.setEdgesImage(null);
         detector.process();
         dest = detector.getEdgesImage();
+        detector.setSourceImage(null);
 
         if (invert.isChecked()) {
             Invert.quickInvert(dest);
@@ -113,17 +122,6 @@ public class Canny extends ParametrizedFilter {
         Messages.showInfo("Not enough memory", msg);
     }
 
-    private static long estimateNeededMemoryMB(BufferedImage src) {
-        int width = src.getWidth();
-        int height = src.getHeight();
-        long numPixels = (long) width * height;
-        // 6 arrays with 4-byte data type
-        long estimatedMemoryMB = 6 * numPixels * 4 / MemoryInfo.ONE_MEGABYTE;
-        // 1.8 was found experimentally, this is still needed to prevent OutOfMemory errors
-        estimatedMemoryMB = (long) (estimatedMemoryMB * 1.8);
-        return estimatedMemoryMB;
-    }
-
     @Override
     public boolean supportsGray() {
         return false;
@@ -56,7 +56,7 @@ public class Fade extends ParametrizedFilter {
                 .getBackupImage();
 
         if (previous == null) {
-            // soft reference expired
+            // the backup could not be restored
             return src;
         }
 
@@ -109,32 +109,43 @@ public abstract class Filter implements Serializable {
             } else {
                 dr.filterWithoutDialogFinished(dest, cr, getName());
             }
-        } catch (OutOfMemoryError e) {
-            Dialogs.showOutOfMemoryDialog(e);
         } catch (Throwable e) {
-            Layer layer = (Layer) dr;
-            if (layer instanceof LayerMask) {
-                layer = layer.getOwner();
-            }
-            String msg = String.format(
-                    "Error while running the filter '%s'\n" +
-                            "composition = '%s'\n" +
-                            "layer = '%s' (%s)\n" +
-                            "hasMask = '%s'\n" +
-                            "mask editing = '%b'",
-                    getName(), layer.getComp()
-                            .getName(),
-                    layer.getName(), layer.getClass()
-                            .getSimpleName(),
-                    layer.hasMask(), layer.isMaskEditing());
-
-
-            var ise = new IllegalStateException(msg, e);
-            if (RandomGUITest.isRunning()) {
-                throw ise; // we can debug the exact filter parameters only in RandomGUITest
-            }
-            Messages.showException(ise);
+            handleException(e, dr);
+        }
+    }
+
+    /**
+     * Reports an exception (or out of memory error)
+     * that happened while running this filter on the given drawable
+     */
+    public void handleException(Throwable e, Drawable dr) {
+        if (e instanceof OutOfMemoryError) {
+            Dialogs.showOutOfMemoryDialog((OutOfMemoryError) e);
+            return;
+        }
+
+        Layer layer = (Layer) dr;
+        if (layer instanceof LayerMask) {
+            layer = layer.getOwner();
+        }
+        String msg = String.format(
+                "Error while running the filter '%s'\n" +
+                        "composition = '%s'\n" +
+                        "layer = '%s' (%s)\n" +
+                        "hasMask = '%s'\n" +
+                        "mask editing = '%b'",
+                getName(), layer.getComp()
+                        .getName(),
+                layer.getName(), layer.getClass()
+                        .getSimpleName(),
+                layer.hasMask(), layer.isMaskEditing());
+
+
+        var ise = new IllegalStateException(msg, e);
+        if (RandomGUITest.isRunning()) {
+            throw ise; // we can debug the exact filter parameters only in RandomGUITest
         }
+        Messages.showException(ise);
     }
 
     public BufferedImage transformImage(BufferedImage src) {
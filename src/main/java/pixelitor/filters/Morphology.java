@@ -38,10 +38,11 @@ public class Morphology extends ParametrizedFilter {
     private static final int OP_OPEN = 10;
     private static final int OP_CLOSE = 11;
 
-    private final RangeParam radius = new RangeParam("Radius", 1, 1, 21);
+    private final RangeParam radius = new RangeParam("Radius", 1, 1, 100).scalesWithImage();
     private final IntChoiceParam kernel = new IntChoiceParam("Kernel Shape", new Value[]{
             new Value("Diamond", MorphologyFilter.KERNEL_DIAMOND),
             new Value("Square", MorphologyFilter.KERNEL_SQUARE),
+            new Value("Octagon (Disc)", MorphologyFilter.KERNEL_OCTAGON),
     });
     private final IntChoiceParam op = new IntChoiceParam("Operation", new Value[]{
             new Value("Maximum (Dilate)", OP_DILATE),
@@ -60,8 +61,7 @@ public class Morphology extends ParametrizedFilter {
     public BufferedImage doTransform(BufferedImage src, BufferedImage dest) {
         var filter = new MorphologyFilter(NAME);
 
-        int iterations = radius.getValue();
-        filter.setIterations(iterations);
+        filter.setRadius(radius.getValue());
         filter.setKernel(kernel.getValue());
 
         int selectedOp = op.getValue();
@@ -70,7 +70,7 @@ public class Morphology extends ParametrizedFilter {
             filter.setOp(selectedOp);
             dest = filter.filter(src, dest);
         } else {
-            var pt = new StatusBarProgressTracker(NAME, 2 * iterations);
+            var pt = new StatusBarProgressTracker(NAME, 2 * filter.getNumPasses());
             filter.setProgressTracker(pt);
 
             if (selectedOp == OP_OPEN) {
@@ -17,8 +17,10 @@
 
 package pixelitor.filters.gui;
 
+import pixelitor.Build;
 import pixelitor.filters.Filter;
 import pixelitor.layers.Drawable;
+import pixelitor.utils.test.RandomGUITest;
 
 import javax.swing.*;
 
@@ -30,14 +32,37 @@ import static pixelitor.ChangeReason.PREVIEWING;
 public abstract class FilterGUI extends JPanel implements PreviewExecutor {
     protected Filter filter;
     private final Drawable dr;
+    private final PreviewScheduler previewScheduler;
 
     protected FilterGUI(Filter filter, Drawable dr) {
         this.filter = filter;
         this.dr = dr;
+        previewScheduler = new PreviewScheduler(filter, dr, this);
     }
 
     @Override
     public void runFilterPreview() {
-        filter.run(dr, PREVIEWING, this);
+        if (Build.isUnitTesting() || RandomGUITest.isRunning()) {
+            // the tests expect the preview to be ready when this returns
+            filter.run(dr, PREVIEWING, this);
+        } else {
+            previewScheduler.schedule();
+        }
+    }
+
+    /**
+     * Makes sure that the shown preview corresponds to the current
+     * settings. Called before the preview is accepted as the result.
+     */
+    public void finishPreview() {
+        previewScheduler.finish();
+    }
+
+    @Override
+    public void removeNotify() {
+        super.removeNotify();
+
+        // the dialog or wizard page was closed
+        previewScheduler.cancel();
     }
 }
@@ -48,7 +48,10 @@ public abstract class FilterWithGUI extends Filter {
                 .name("filterDialog")
                 .content(gui)
                 .withScrollbars()
-                .okAction(() -> dr.onFilterDialogAccepted(getName()))
+                .okAction(() -> {
+                    gui.finishPreview();
+                    dr.onFilterDialogAccepted(getName());
+                })
                 .cancelAction(dr::onFilterDialogCanceled)
                 .show();
     }
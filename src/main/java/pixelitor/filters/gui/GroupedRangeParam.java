@@ -218,6 +218,13 @@ public class GroupedRangeParam extends AbstractFilterParam {
         return this;
     }
 
+    public GroupedRangeParam scalesWithImage() {
+        for (RangeParam param : rangeParams) {
+            param.scalesWithImage();
+        }
+        return this;
+    }
+
     public float getValueAsPercentage(int index) {
         return rangeParams[index].getPercentageValF();
     }
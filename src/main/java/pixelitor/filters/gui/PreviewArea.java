@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters.gui;
+
+import java.awt.Rectangle;
+import java.util.function.Supplier;
+
+/**
+ * The part of the filter source image that is visible in the view
+ * while a filter dialog is open. Position-local filters (such as point
+ * filters and transform filters) calculate the preview only in this
+ * area, and copy the rest of the image unchanged from the source.
+ */
+public class PreviewArea {
+    private static final ThreadLocal<PreviewArea> current = new ThreadLocal<>();
+
+    private final Rectangle bounds;
+    private final int srcWidth;
+    private final int srcHeight;
+
+    // whether a filter used this area instead of the whole image
+    private boolean used = false;
+
+    public PreviewArea(Rectangle bounds, int srcWidth, int srcHeight) {
+        this.bounds = bounds;
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+    }
+
+    /**
+     * Runs the given filter task so that the position-local filters
+     * running on the current thread can restrict themselves to this area.
+     */
+    public <T> T call(Supplier<T> task) {
+        current.set(this);
+        try {
+            return task.get();
+        } finally {
+            current.remove();
+        }
+    }
+
+    /**
+     * Returns true if at least one filter calculated only this area,
+     * which means that the result is not valid outside of it.
+     */
+    public boolean wasUsed() {
+        return used;
+    }
+
+    /**
+     * Returns the area that has to be calculated by a position-local
+     * filter running on the current thread for an image with the given
+     * size, or null if the whole image has to be calculated.
+     */
+    public static Rectangle claim(int width, int height) {
+        PreviewArea area = current.get();
+        if (area == null) {
+            return null;
+        }
+        if (width != area.srcWidth || height != area.srcHeight) {
+            // some intermediate image with a different size,
+            // for which the visible area has no meaning
+            return null;
+        }
+        area.used = true;
+        return new Rectangle(area.bounds);
+    }
+}
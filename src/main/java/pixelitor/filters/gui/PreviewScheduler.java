@@ -0,0 +1,326 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters.gui;
+
+import pixelitor.Composition;
+import pixelitor.ThreadPool;
+import pixelitor.filters.Filter;
+import pixelitor.filters.FilterUtils;
+import pixelitor.gui.View;
+import pixelitor.layers.Drawable;
+import pixelitor.utils.ImageUtils;
+import pixelitor.utils.Messages;
+
+import java.awt.Component;
+import java.awt.EventQueue;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.awt.RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+import static java.awt.image.BufferedImage.TYPE_CUSTOM;
+import static pixelitor.ChangeReason.PREVIEWING;
+
+/**
+ * Calculates the previews of a filter dialog outside the EDT,
+ * so that the dialog stays responsive even for large images.
+ * A new request cancels the calculation in progress, and only the
+ * result of the latest request is shown in the previewed drawable.
+ *
+ * For large images a coarse preview is calculated first from a copy
+ * downscaled to the zoom of the view, and it's refined to full resolution
+ * only if no newer request arrived for a short time.
+ *
+ * If only a part of the image is visible in the view, then the
+ * position-local filters calculate only that part (see {@link PreviewArea}),
+ * and the whole image is calculated when the dialog is accepted.
+ */
+public class PreviewScheduler {
+    // one preview is calculated at a time, because the filters
+    // are not prepared to run concurrently with themselves
+    private static final ExecutorService executor
+            = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "[preview thread]");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // smaller images are always previewed in full resolution
+    private static final int PROGRESSIVE_MIN_PIXELS = 2_000_000;
+
+    // there is not much to gain with a coarse preview above this scaling
+    private static final double MAX_COARSE_SCALING = 0.5;
+
+    // the minimal width or height of the coarse source image
+    private static final int MIN_COARSE_SIZE = 256;
+
+    // how long the settings must stay the same before the refinement
+    private static final int REFINE_DELAY_MILLIS = 300;
+    private static final int SETTLE_POLL_MILLIS = 20;
+
+    // the visible area is extended by this many pixels on each side
+    private static final int VISIBLE_AREA_MARGIN = 64;
+
+    // it's not worth clipping the preview if most of the image is visible
+    private static final double MAX_CLIPPED_AREA_RATIO = 0.75;
+
+    private final Filter filter;
+    private final Drawable dr;
+    private final Component busyCursorParent;
+
+    // incremented on the EDT for every new request and cancellation,
+    // any calculation started for an older request is stale
+    private volatile long latestRequest = 0;
+
+    // the request whose full-resolution and unclipped
+    // result is currently shown, accessed only on the EDT
+    private long shownRequest = 0;
+
+    public PreviewScheduler(Filter filter, Drawable dr, Component busyCursorParent) {
+        this.filter = filter;
+        this.dr = dr;
+        this.busyCursorParent = busyCursorParent;
+    }
+
+    /**
+     * Starts the calculation of a new preview with the current filter settings.
+     */
+    public void schedule() {
+        assert EventQueue.isDispatchThread();
+
+        long request = ++latestRequest;
+        BufferedImage src = dr.getFilterSourceImage();
+        double coarseScaling = calcCoarseScaling(src);
+        PreviewArea visibleArea = calcVisibleArea(src);
+        executor.execute(() -> calculate(request, src, coarseScaling, visibleArea));
+    }
+
+    /**
+     * Returns the part of the filter source image that is visible
+     * in the view, or null if it's not worth clipping the preview.
+     */
+    private PreviewArea calcVisibleArea(BufferedImage src) {
+        Composition comp = dr.getComp();
+        View view = comp.getView();
+        if (view == null || view.isMock()) {
+            return null;
+        }
+
+        // the visible part of the canvas...
+        Rectangle area = view.componentToImageSpace(view.getVisiblePart()).getBounds();
+        // ...relative to the image...
+        area.translate(-dr.getTx(), -dr.getTy());
+        // ...and relative to the filter source, which starts
+        // at the selection bounds if there is a selection
+        if (comp.hasSelection()) {
+            Rectangle selBounds = comp.getSelection().getShapeBounds(1);
+            area.translate(
+                    -Math.max(0, selBounds.x - dr.getTx()),
+                    -Math.max(0, selBounds.y - dr.getTy()));
+        }
+
+        area.grow(VISIBLE_AREA_MARGIN, VISIBLE_AREA_MARGIN);
+        int width = src.getWidth();
+        int height = src.getHeight();
+        area = area.intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty()) {
+            return null;
+        }
+        if ((double) area.width * area.height > MAX_CLIPPED_AREA_RATIO * width * height) {
+            return null;
+        }
+        return new PreviewArea(area, width, height);
+    }
+
+    /**
+     * Returns the scaling of the coarse preview for the given
+     * source image, or 1.0 if no coarse preview is necessary.
+     */
+    private double calcCoarseScaling(BufferedImage src) {
+        View view = dr.getComp().getView();
+        if (view == null || src.getType() == TYPE_CUSTOM) {
+            return 1.0;
+        }
+        int width = src.getWidth();
+        int height = src.getHeight();
+        if ((long) width * height < PROGRESSIVE_MIN_PIXELS) {
+            return 1.0;
+        }
+
+        double minScaling = MIN_COARSE_SIZE / (double) Math.min(width, height);
+        double scaling = Math.max(view.getScaling(), minScaling);
+        if (scaling > MAX_COARSE_SCALING) {
+            return 1.0;
+        }
+        return scaling;
+    }
+
+    private void calculate(long request, BufferedImage src,
+                           double coarseScaling, PreviewArea visibleArea) {
+        if (isStale(request)) {
+            return; // a newer request is already waiting
+        }
+
+        if (coarseScaling < 1.0) {
+            calculateCoarse(request, src, coarseScaling);
+            if (!waitForSettling(request)) {
+                return;
+            }
+        }
+
+        long startTime = System.nanoTime();
+        BufferedImage dest;
+        try {
+            if (visibleArea == null) {
+                dest = ThreadPool.callCancellable(
+                        () -> filter.transformImage(src),
+                        () -> isStale(request));
+            } else {
+                dest = ThreadPool.callCancellable(
+                        () -> visibleArea.call(() -> filter.transformImage(src)),
+                        () -> isStale(request));
+            }
+        } catch (Throwable e) {
+            // a stale calculation can fail because the settings
+            // were changed while it was running, ignore it
+            EventQueue.invokeLater(() -> {
+                if (!isStale(request)) {
+                    filter.handleException(e, dr);
+                }
+            });
+            return;
+        }
+        long totalTime = (System.nanoTime() - startTime) / 1_000_000;
+
+        boolean clipped = visibleArea != null && visibleArea.wasUsed();
+        EventQueue.invokeLater(() -> show(request, dest, totalTime, clipped));
+    }
+
+    private void calculateCoarse(long request, BufferedImage src, double scaling) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int smallWidth = Math.max(1, (int) (width * scaling));
+        int smallHeight = Math.max(1, (int) (height * scaling));
+        BufferedImage smallSrc = ImageUtils.getFasterScaledInstance(src,
+                smallWidth, smallHeight, VALUE_INTERPOLATION_BILINEAR, true);
+
+        BufferedImage smallDest;
+        try {
+            // the pixel distances in the settings are scaled, so
+            // that the coarse preview looks like the final result
+            smallDest = ThreadPool.callCancellable(
+                    () -> RangeParam.callScaled(scaling,
+                            () -> filter.transformImage(smallSrc)),
+                    () -> isStale(request));
+        } catch (Throwable e) {
+            return; // if it's a real problem, the full calculation will report it
+        }
+        if (isStale(request)) {
+            return;
+        }
+
+        BufferedImage coarse;
+        if (smallDest == smallSrc) {
+            coarse = src; // the filter decided that no change is necessary
+        } else {
+            coarse = ImageUtils.getFasterScaledInstance(smallDest,
+                    width, height, VALUE_INTERPOLATION_BILINEAR, false);
+        }
+        EventQueue.invokeLater(() -> {
+            if (!isStale(request)) {
+                dr.changePreviewImage(coarse, filter.getName(), PREVIEWING);
+            }
+        });
+    }
+
+    /**
+     * Waits until the settings don't change for a while.
+     * Returns false if a newer request arrived in the meantime.
+     */
+    private boolean waitForSettling(long request) {
+        long endTime = System.currentTimeMillis() + REFINE_DELAY_MILLIS;
+        while (System.currentTimeMillis() < endTime) {
+            if (isStale(request)) {
+                return false;
+            }
+            try {
+                Thread.sleep(SETTLE_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return !isStale(request);
+    }
+
+    private void show(long request, BufferedImage dest, long totalTime, boolean clipped) {
+        assert EventQueue.isDispatchThread();
+        if (isStale(request)) {
+            return;
+        }
+
+        if (!clipped) {
+            shownRequest = request;
+        }
+        dr.changePreviewImage(dest, filter.getName(), PREVIEWING);
+
+        Messages.showPerformanceMessage(filter.getName(), totalTime);
+        FilterUtils.setLastFilter(filter);
+    }
+
+    private boolean isStale(long request) {
+        return request != latestRequest;
+    }
+
+    /**
+     * Drops the calculation in progress and any results that are not yet shown.
+     */
+    public void cancel() {
+        assert EventQueue.isDispatchThread();
+
+        shownRequest = ++latestRequest;
+    }
+
+    /**
+     * Makes sure that the preview image corresponds to the latest
+     * filter settings, calculating it on the EDT if necessary.
+     * Must be called before the preview image is accepted as the result.
+     */
+    public void finish() {
+        assert EventQueue.isDispatchThread();
+
+        boolean upToDate = shownRequest == latestRequest;
+        cancel();
+        if (!upToDate) {
+            waitForStaleCalculation();
+            filter.run(dr, PREVIEWING, busyCursorParent);
+        }
+    }
+
+    private static void waitForStaleCalculation() {
+        // the cancelled calculation skips its remaining work, but it
+        // must end before the filter is run again on this thread
+        try {
+            executor.submit(() -> {
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+}
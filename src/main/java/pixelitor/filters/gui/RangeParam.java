@@ -28,6 +28,7 @@ import javax.swing.event.EventListenerList;
 import java.awt.FlowLayout;
 import java.awt.Rectangle;
 import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 import static java.awt.FlowLayout.LEFT;
 import static java.lang.String.format;
@@ -41,6 +42,11 @@ import static pixelitor.gui.utils.SliderSpinner.TextPosition.NONE;
  * an entire SliderSpinner)
  */
 public class RangeParam extends AbstractFilterParam implements BoundedRangeModel {
+    // the factor by which the image-size-dependent values are multiplied
+    // for the filters running on the current thread, see callScaled
+    private static final ThreadLocal<Double> imageScaling =
+            ThreadLocal.withInitial(() -> 1.0);
+
     private int minValue;
     private int maxValue;
     private double defaultValue;
@@ -63,6 +69,10 @@ public class RangeParam extends AbstractFilterParam implements BoundedRangeModel
     private boolean adjustMaxAccordingToImage = false;
     private double maxToImageSizeRatio;
 
+    // whether the value is a size or distance in pixels, which has
+    // to be scaled if the filter runs on a scaled version of the image
+    private boolean scalesWithImage = false;
+
     public RangeParam(String name, int min, double def, int max) {
         this(name, min, def, max, true, BORDER);
     }
@@ -260,7 +270,7 @@ public class RangeParam extends AbstractFilterParam implements BoundedRangeModel
 
     @Override
     public int getValue() {
-        return (int) value;
+        return (int) getScaledValue();
     }
 
     public boolean isZero() {
@@ -272,10 +282,18 @@ public class RangeParam extends AbstractFilterParam implements BoundedRangeModel
     }
 
     public float getValueAsFloat() {
-        return (float) value;
+        return (float) getScaledValue();
     }
 
     public double getValueAsDouble() {
+        return getScaledValue();
+    }
+
+    private double getScaledValue() {
+        if (scalesWithImage) {
+            // the filters might not expect values below the minimum
+            return Math.max(minValue, value * imageScaling.get());
+        }
         return value;
     }
 
@@ -398,9 +416,34 @@ public class RangeParam extends AbstractFilterParam implements BoundedRangeModel
     public RangeParam withAdjustedRange(double ratio) {
         maxToImageSizeRatio = ratio;
         adjustMaxAccordingToImage = true;
+        scalesWithImage = true;
         return this;
     }
 
+    /**
+     * Marks the value as a size or distance in pixels, so that it is
+     * scaled when the filter runs on a scaled version of the image.
+     * Params with an adjusted range are automatically marked.
+     */
+    public RangeParam scalesWithImage() {
+        scalesWithImage = true;
+        return this;
+    }
+
+    /**
+     * Runs the given task on the current thread so that the values of the
+     * params marked with {@link #scalesWithImage()} are multiplied by the
+     * given scaling. The GUI on the EDT still sees the real values.
+     */
+    public static <T> T callScaled(double scaling, Supplier<T> task) {
+        imageScaling.set(scaling);
+        try {
+            return task.get();
+        } finally {
+            imageScaling.remove();
+        }
+    }
+
     @Override
     public boolean canBeAnimated() {
         return true;
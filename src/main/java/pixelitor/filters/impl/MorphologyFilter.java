@@ -14,19 +14,30 @@
  * You should have received a copy of the GNU General Public License
  * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
  */
-
 package pixelitor.filters.impl;
 
 import com.jhlabs.image.WholeImageFilter;
+import pixelitor.ThreadPool;
 import pixelitor.filters.Morphology;
 
 import java.awt.Rectangle;
+import java.util.Arrays;
+
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
 
 /**
  * The implementation of the {@link Morphology} filter.
+ *
+ * The minimum (or maximum) over a line is calculated with the van
+ * Herk/Gil-Werman algorithm, which needs only a constant number of
+ * comparisons per pixel, regardless of the length of the line.
+ * The square kernel is separated into a horizontal and a vertical line,
+ * and the diamond kernel into two diagonal lines and one or two small
+ * crosses. The result is the same as repeating the 3x3 operation
+ * radius times, but much faster for big radii.
  */
 public class MorphologyFilter extends WholeImageFilter {
-    private int iterations = 1;
+    private int radius = 1;
 
     public static final int OP_ERODE = 1;
     public static final int OP_DILATE = 2;
@@ -34,8 +45,12 @@ public class MorphologyFilter extends WholeImageFilter {
 
     public static final int KERNEL_DIAMOND = 3;
     public static final int KERNEL_SQUARE = 4;
+    // a square combined with a diamond, approximating a disc
+    public static final int KERNEL_OCTAGON = 5;
     private int kernel;
 
+    private static final int NUM_CHANNELS = 4;
+
     public MorphologyFilter(String filterName) {
         super(filterName);
     }
@@ -48,94 +63,313 @@ public class MorphologyFilter extends WholeImageFilter {
         this.op = op;
     }
 
-    public void setIterations(int iterations) {
-        this.iterations = iterations;
+    public void setRadius(int radius) {
+        this.radius = radius;
+    }
+
+    /**
+     * Returns the number of passes over the image, which
+     * are also the work units of the progress tracking.
+     */
+    public int getNumPasses() {
+        switch (kernel) {
+            case KERNEL_SQUARE:
+                return countSquarePasses(radius);
+            case KERNEL_DIAMOND:
+                return countDiamondPasses(radius);
+            case KERNEL_OCTAGON:
+                return countSquarePasses(getOctagonSquareRadius())
+                        + countDiamondPasses(radius - getOctagonSquareRadius());
+            default:
+                throw new IllegalStateException("kernel = " + kernel);
+        }
     }
 
     @Override
     protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int[] outPixels = new int[width * height];
-        int numPixels = inPixels.length;
-        short[] inA = new short[numPixels];
-        short[] inR = new short[numPixels];
-        short[] inG = new short[numPixels];
-        short[] inB = new short[numPixels];
-
-        pt = createProgressTracker(iterations);
-        for (int it = 0; it < iterations; it++) {
-            if (it > 0) {
-                System.arraycopy(outPixels, 0, inPixels, 0, numPixels);
+        // The lines of a square kernel can be simply clipped at the
+        // image edges, but the diagonal lines must be able to reach
+        // pixels through points outside the image, therefore
+        // in that case the image is padded with neutral values.
+        int pad = kernel == KERNEL_SQUARE ? 0 : radius;
+        var planes = new Planes(width + 2 * pad, height + 2 * pad);
+
+        // Only the minimum is calculated, the maximum
+        // is the minimum of the inverted values.
+        int invert = op == OP_DILATE ? 0xFF : 0;
+        planes.load(inPixels, width, height, pad, invert);
+
+        pt = createProgressTracker(getNumPasses());
+        switch (kernel) {
+            case KERNEL_SQUARE:
+                squarePasses(planes, radius);
+                break;
+            case KERNEL_DIAMOND:
+                diamondPasses(planes, radius);
+                break;
+            case KERNEL_OCTAGON:
+                int squareRadius = getOctagonSquareRadius();
+                squarePasses(planes, squareRadius);
+                diamondPasses(planes, radius - squareRadius);
+                break;
+            default:
+                throw new IllegalStateException("kernel = " + kernel);
+        }
+        finishProgressTracker();
+
+        // like the original iterated 3x3 version, the dilation
+        // (but not the erosion) makes the whole image opaque
+        int alphaMask = op == OP_DILATE && radius > 0 ? 0xFF_00_00_00 : 0;
+        return planes.store(width, height, pad, invert, alphaMask);
+    }
+
+    // The octagon extends by radius along the axes, and by
+    // squareRadius + diamondRadius / 2 along the diagonals.
+    // This is chosen to be radius / sqrt(2), like for a disc.
+    private int getOctagonSquareRadius() {
+        return (int) Math.round(radius * (Math.sqrt(2) - 1));
+    }
+
+    private static int countSquarePasses(int radius) {
+        return radius > 0 ? 2 : 0;
+    }
+
+    private void squarePasses(Planes planes, int radius) {
+        if (radius > 0) {
+            planes.horizontalMin(radius);
+            pt.unitDone();
+            planes.verticalMin(radius);
+            pt.unitDone();
+        }
+    }
+
+    // A diamond with an odd radius is a sparse diamond (the points
+    // reachable by two diagonal lines), filled in by a 3x3 cross.
+    // A diamond with an even radius needs one more cross.
+    private static int countDiamondPasses(int radius) {
+        if (radius == 0) {
+            return 0;
+        }
+        int numCrosses = 2 - radius % 2;
+        int diagonalRadius = (radius - numCrosses) / 2;
+        return (diagonalRadius > 0 ? 2 : 0) + numCrosses;
+    }
+
+    private void diamondPasses(Planes planes, int radius) {
+        if (radius == 0) {
+            return;
+        }
+        int numCrosses = 2 - radius % 2;
+        int diagonalRadius = (radius - numCrosses) / 2;
+        if (diagonalRadius > 0) {
+            planes.diagonalMin(diagonalRadius, true);
+            pt.unitDone();
+            planes.diagonalMin(diagonalRadius, false);
+            pt.unitDone();
+        }
+        for (int i = 0; i < numCrosses; i++) {
+            planes.crossMin();
+            pt.unitDone();
+        }
+    }
+
+    /**
+     * The channels of an image as separate arrays
+     */
+    private static class Planes {
+        private final int width;
+        private final int height;
+        private short[][] channels = new short[NUM_CHANNELS][];
+
+        Planes(int width, int height) {
+            this.width = width;
+            this.height = height;
+            for (int c = 0; c < NUM_CHANNELS; c++) {
+                channels[c] = new short[width * height];
             }
-            for (int i = 0; i < numPixels; i++) {
-                int rgb = inPixels[i];
-                inA[i] = (short) ((rgb >> 24) & 0xff);
-                inR[i] = (short) ((rgb >> 16) & 0xff);
-                inG[i] = (short) ((rgb >> 8) & 0xff);
-                inB[i] = (short) (rgb & 0xff);
+        }
+
+        void load(int[] pixels, int imgWidth, int imgHeight, int pad, int invert) {
+            if (pad > 0) {
+                for (short[] channel : channels) {
+                    Arrays.fill(channel, (short) 0xFF);
+                }
             }
+            ThreadPool.processRows(imgHeight, imgWidth, y -> {
+                int pixelIndex = y * imgWidth;
+                int index = (y + pad) * width + pad;
+                for (int x = 0; x < imgWidth; x++) {
+                    int rgb = pixels[pixelIndex++];
+                    for (int c = 0; c < NUM_CHANNELS; c++) {
+                        int shift = 24 - 8 * c;
+                        channels[c][index] = (short) (((rgb >>> shift) & 0xFF) ^ invert);
+                    }
+                    index++;
+                }
+            }, NULL_TRACKER);
+        }
 
-            int index = 0;
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    short a = 0xff;
-                    short r = 0xff;
-                    short g = 0xff;
-                    short b = 0xff;
-
-                    if (op == OP_DILATE) {
-                        r = 0;
-                        g = 0;
-                        b = 0;
+        int[] store(int imgWidth, int imgHeight, int pad, int invert, int alphaMask) {
+            int[] pixels = new int[imgWidth * imgHeight];
+            ThreadPool.processRows(imgHeight, imgWidth, y -> {
+                int pixelIndex = y * imgWidth;
+                int index = (y + pad) * width + pad;
+                for (int x = 0; x < imgWidth; x++) {
+                    int rgb = 0;
+                    for (int c = 0; c < NUM_CHANNELS; c++) {
+                        rgb = (rgb << 8) | (channels[c][index] ^ invert);
                     }
+                    pixels[pixelIndex++] = rgb | alphaMask;
+                    index++;
+                }
+            }, NULL_TRACKER);
+            return pixels;
+        }
+
+        void horizontalMin(int radius) {
+            ThreadPool.processBands(height, width, (startY, endY) -> {
+                var line = new LineMin(width, radius);
+                for (int y = startY; y < endY; y++) {
+                    line.run(channels, y * width, 1, width);
+                }
+            }, NULL_TRACKER);
+        }
+
+        void verticalMin(int radius) {
+            ThreadPool.processBands(width, height, (startX, endX) -> {
+                var line = new LineMin(height, radius);
+                for (int x = startX; x < endX; x++) {
+                    line.run(channels, x, width, height);
+                }
+            }, NULL_TRACKER);
+        }
 
-                    for (int dy = -1; dy <= 1; dy++) {
-                        int iy = y + dy;
-                        if (0 <= iy && iy < height) {
-                            int xOffset = iy * width;
-                            for (int dx = -1; dx <= 1; dx++) {
-                                if (kernel == KERNEL_DIAMOND) {
-                                    if (dx == dy && dx != 0) {
-                                        continue;
-                                    }
-                                    if (dx == -dy && dx != 0) {
-                                        continue;
-                                    }
-                                }
-
-                                int ix = x + dx;
-                                if (0 <= ix && ix < width) {
-                                    int comparedIndex = xOffset + ix;
-
-                                    if (op == OP_ERODE) {
-                                        a = min(a, inA[comparedIndex]);
-                                        r = min(r, inR[comparedIndex]);
-                                        g = min(g, inG[comparedIndex]);
-                                        b = min(b, inB[comparedIndex]);
-                                    } else {
-                                        a = max(a, inA[comparedIndex]);
-                                        r = max(r, inR[comparedIndex]);
-                                        g = max(g, inG[comparedIndex]);
-                                        b = max(b, inB[comparedIndex]);
-                                    }
-                                }
-                            }
+        /**
+         * Calculates the minimum on the diagonal lines going
+         * down-right (if downRight is true) or down-left.
+         */
+        void diagonalMin(int radius, boolean downRight) {
+            int numLines = width + height - 1;
+            int maxLength = Math.min(width, height);
+            ThreadPool.processBands(numLines, maxLength, (startD, endD) -> {
+                var line = new LineMin(maxLength, radius);
+                for (int d = startD; d < endD; d++) {
+                    int x;
+                    int y;
+                    if (downRight) {
+                        x = Math.max(0, d - height + 1);
+                        y = Math.max(0, height - 1 - d);
+                        line.run(channels, y * width + x, width + 1,
+                                Math.min(width - x, height - y));
+                    } else {
+                        x = Math.min(d, width - 1);
+                        y = Math.max(0, d - width + 1);
+                        line.run(channels, y * width + x, width - 1,
+                                Math.min(x + 1, height - y));
+                    }
+                }
+            }, NULL_TRACKER);
+        }
+
+        /**
+         * Calculates the minimum with the 4 direct neighbors
+         */
+        void crossMin() {
+            short[][] result = new short[NUM_CHANNELS][width * height];
+            ThreadPool.processRows(height, width, y -> {
+                for (int c = 0; c < NUM_CHANNELS; c++) {
+                    short[] in = channels[c];
+                    short[] out = result[c];
+                    int index = y * width;
+                    for (int x = 0; x < width; x++) {
+                        int min = in[index];
+                        if (x > 0) {
+                            min = Math.min(min, in[index - 1]);
+                        }
+                        if (x < width - 1) {
+                            min = Math.min(min, in[index + 1]);
                         }
+                        if (y > 0) {
+                            min = Math.min(min, in[index - width]);
+                        }
+                        if (y < height - 1) {
+                            min = Math.min(min, in[index + width]);
+                        }
+                        out[index++] = (short) min;
                     }
-                    outPixels[index++] = a << 24 | r << 16 | g << 8 | b;
                 }
-            }
-            pt.unitDone();
+            }, NULL_TRACKER);
+            channels = result;
         }
-        finishProgressTracker();
-        return outPixels;
     }
 
-    private static short min(short a, short b) {
-        return (a <= b) ? a : b;
-    }
+    /**
+     * Calculates the moving minimum over lines with the van Herk/Gil-Werman
+     * algorithm. The line is divided into blocks of the window size, and
+     * every window is covered by the end of a block and the start
+     * of the next one, so its minimum can be calculated from the
+     * suffix minimums and the prefix minimums of the blocks.
+     * The reused arrays make it usable only from a single thread.
+     */
+    private static class LineMin {
+        private final int radius;
+        private final int windowSize;
+
+        private final int[] values;
+        private final int[] prefixMin;
+        private final int[] suffixMin;
+
+        LineMin(int maxLength, int radius) {
+            this.radius = radius;
+            windowSize = 2 * radius + 1;
+            values = new int[maxLength];
+            prefixMin = new int[maxLength];
+            suffixMin = new int[maxLength];
+        }
+
+        void run(short[][] channels, int start, int step, int length) {
+            for (short[] channel : channels) {
+                run(channel, start, step, length);
+            }
+        }
+
+        private void run(short[] data, int start, int step, int length) {
+            for (int i = 0, index = start; i < length; i++, index += step) {
+                values[i] = data[index];
+            }
 
-    private static short max(short a, short b) {
-        return (a >= b) ? a : b;
+            for (int i = 0; i < length; i++) {
+                if (i % windowSize == 0) {
+                    prefixMin[i] = values[i];
+                } else {
+                    prefixMin[i] = Math.min(prefixMin[i - 1], values[i]);
+                }
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                if (i == length - 1 || i % windowSize == windowSize - 1) {
+                    suffixMin[i] = values[i];
+                } else {
+                    suffixMin[i] = Math.min(suffixMin[i + 1], values[i]);
+                }
+            }
+
+            for (int i = 0, index = start; i < length; i++, index += step) {
+                // the window, clipped at the ends of the line
+                int first = Math.max(0, i - radius);
+                int last = Math.min(length - 1, i + radius);
+                int min;
+                if (first / windowSize != last / windowSize) {
+                    min = Math.min(suffixMin[first], prefixMin[last]);
+                } else if (first % windowSize == 0) {
+                    // a clipped window at the start of a block
+                    min = prefixMin[last];
+                } else {
+                    // a clipped window at the end of the line
+                    min = suffixMin[first];
+                }
+                data[index] = (short) min;
+            }
+        }
     }
 
     @Override
@@ -143,4 +377,3 @@ public class MorphologyFilter extends WholeImageFilter {
         return "Blur/Minimum";
     }
 }
-
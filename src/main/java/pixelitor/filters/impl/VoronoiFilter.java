@@ -18,10 +18,12 @@
 package pixelitor.filters.impl;
 
 import com.jhlabs.image.PointFilter;
+import pixelitor.ThreadPool;
 import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Metric;
 import pixelitor.utils.ReseedSupport;
 import pixelitor.utils.Shapes;
+import pixelitor.utils.VisibleForTesting;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
@@ -30,6 +32,7 @@ import java.util.Random;
 
 import static java.awt.RenderingHints.KEY_ANTIALIASING;
 import static java.awt.RenderingHints.VALUE_ANTIALIAS_ON;
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
 
 /**
  * Voronoi Diagram filter implementation
@@ -45,6 +48,16 @@ public class VoronoiFilter extends PointFilter {
     private int aaRes = 2;
     private int aaRes2 = aaRes * aaRes;
 
+    // a uniform grid of cells, each containing a few points,
+    // so that the nearest point can be found without checking
+    // all of them. The indexes of the points in a cell are
+    // stored in cellPoints, from cellStart[cell] to cellStart[cell + 1]
+    private double cellSize;
+    private int gridWidth;
+    private int gridHeight;
+    private int[] cellStart;
+    private int[] cellPoints;
+
     public VoronoiFilter(String filterName) {
         super(filterName);
     }
@@ -84,6 +97,7 @@ public class VoronoiFilter extends PointFilter {
                 colors[i] = 0xFF_00_00_00 | rand.nextInt(0xFF_FF_FF);
             }
         }
+        initGrid(src.getWidth(), src.getHeight());
 
         return super.filter(src, dst);
     }
@@ -105,42 +119,120 @@ public class VoronoiFilter extends PointFilter {
         g.dispose();
     }
 
-    @Override
-    public int filterRGB(int x, int y, int rgb) {
-        int closestPointIndex = 0;
-        double fromHereToClosestSoFar = Double.POSITIVE_INFINITY;
+    @VisibleForTesting
+    void setPoints(int[] xCoords, int[] yCoords, int width, int height) {
+        this.xCoords = xCoords;
+        this.yCoords = yCoords;
+        numPoints = xCoords.length;
+        initGrid(width, height);
+    }
+
+    private void initGrid(int width, int height) {
+        // about two points per cell on average
+        cellSize = Math.max(1.0, Math.sqrt(2.0 * width * height / numPoints));
+        gridWidth = (int) Math.ceil(width / cellSize);
+        gridHeight = (int) Math.ceil(height / cellSize);
 
-        // naive brute-force search, but quite fast, because
-        // it doesn't calculate square roots for the distance
-        // TODO use a faster algorithm
+        // a counting sort of the points by their cells,
+        // keeping the original order within a cell
+        int numCells = gridWidth * gridHeight;
+        int[] pointCells = new int[numPoints];
+        cellStart = new int[numCells + 1];
         for (int i = 0; i < numPoints; i++) {
-            double fromHereToPointI = metric.distanceInt(
-                    xCoords[i], x, yCoords[i], y);
-            if (fromHereToPointI < fromHereToClosestSoFar) {
-                closestPointIndex = i;
-                fromHereToClosestSoFar = fromHereToPointI;
-            }
+            pointCells[i] = getCellY(yCoords[i]) * gridWidth + getCellX(xCoords[i]);
+            cellStart[pointCells[i] + 1]++;
         }
+        for (int cell = 0; cell < numCells; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        cellPoints = new int[numPoints];
+        int[] next = new int[numCells];
+        System.arraycopy(cellStart, 0, next, 0, numCells);
+        for (int i = 0; i < numPoints; i++) {
+            cellPoints[next[pointCells[i]]++] = i;
+        }
+    }
+
+    private int getCellX(double x) {
+        return Math.max(0, Math.min(gridWidth - 1, (int) Math.floor(x / cellSize)));
+    }
+
+    private int getCellY(double y) {
+        return Math.max(0, Math.min(gridHeight - 1, (int) Math.floor(y / cellSize)));
+    }
 
-        return colors[closestPointIndex];
+    @Override
+    public int filterRGB(int x, int y, int rgb) {
+        return colors[nearestSite(x, y)];
     }
 
     /**
-     * Finds the nearest point with double precision. Used for AA
+     * Finds the index of the nearest point. If there are several
+     * points at the same distance, the one with the lowest index
+     * is returned, as with checking all the points in order.
+     *
+     * The cells are checked in growing square rings around the
+     * cell of the given location, until the remaining rings
+     * can't contain a nearer point. In all the supported metrics
+     * a point is at least as far as along the axis, therefore the
+     * distance to the edge of the checked square is a lower bound.
      */
-    private int nearestSiteDouble(double x, double y) {
-        int closestPointIndex = 0;
+    @VisibleForTesting
+    int nearestSite(double x, double y) {
+        int cellX = getCellX(x);
+        int cellY = getCellY(y);
+
+        int closestPointIndex = -1;
         double fromHereToClosestSoFar = Double.POSITIVE_INFINITY;
 
-        for (int i = 0; i < numPoints; i++) {
-            double fromHereToPointI = metric.distanceDouble(
-                    xCoords[i], x, yCoords[i], y);
-            if (fromHereToPointI < fromHereToClosestSoFar) {
-                closestPointIndex = i;
-                fromHereToClosestSoFar = fromHereToPointI;
+        for (int ring = 0; ; ring++) {
+            int minCellX = cellX - ring;
+            int maxCellX = cellX + ring;
+            int minCellY = cellY - ring;
+            int maxCellY = cellY + ring;
+
+            for (int cy = Math.max(0, minCellY); cy <= Math.min(gridHeight - 1, maxCellY); cy++) {
+                // in the middle rows of the ring only
+                // the first and last columns are new
+                boolean fullRow = cy == minCellY || cy == maxCellY;
+                int step = fullRow ? 1 : 2 * ring;
+                for (int cx = minCellX; cx <= maxCellX; cx += step) {
+                    if (cx < 0 || cx >= gridWidth) {
+                        continue;
+                    }
+                    int cell = cy * gridWidth + cx;
+                    for (int j = cellStart[cell]; j < cellStart[cell + 1]; j++) {
+                        int i = cellPoints[j];
+                        double fromHereToPointI = metric.distanceDouble(
+                                xCoords[i], x, yCoords[i], y);
+                        if (fromHereToPointI < fromHereToClosestSoFar
+                                || (fromHereToPointI == fromHereToClosestSoFar && i < closestPointIndex)) {
+                            closestPointIndex = i;
+                            fromHereToClosestSoFar = fromHereToPointI;
+                        }
+                    }
+                }
+            }
+
+            // the smallest distance to the cells outside this ring
+            double outside = Double.POSITIVE_INFINITY;
+            if (minCellX > 0) {
+                outside = Math.min(outside, x - minCellX * cellSize);
+            }
+            if (maxCellX < gridWidth - 1) {
+                outside = Math.min(outside, (maxCellX + 1) * cellSize - x);
+            }
+            if (minCellY > 0) {
+                outside = Math.min(outside, y - minCellY * cellSize);
+            }
+            if (maxCellY < gridHeight - 1) {
+                outside = Math.min(outside, (maxCellY + 1) * cellSize - y);
+            }
+            if (outside == Double.POSITIVE_INFINITY
+                    || metric.distanceDouble(outside, 0, 0, 0) > fromHereToClosestSoFar) {
+                return closestPointIndex;
             }
         }
-        return closestPointIndex;
     }
 
     /**
@@ -174,7 +266,7 @@ public class VoronoiFilter extends PointFilter {
             double yy = y + 1.0 / aaRes * i - 0.5;
             for (int j = 0; j < aaRes; j++) {
                 double xx = x + 1.0 / aaRes * j - 0.5;
-                int closestPointIndex = nearestSiteDouble(xx, yy);
+                int closestPointIndex = nearestSite(xx, yy);
                 int color = colors[closestPointIndex];
                 r += (color >>> 16) & 0xFF;
                 g += (color >>> 8) & 0xFF;
@@ -191,6 +283,7 @@ public class VoronoiFilter extends PointFilter {
     public void antiAlias(BufferedImage imgSoFar) {
         assert aaRes != 0;
         int width = imgSoFar.getWidth();
+        int height = imgSoFar.getHeight();
         int[] pixels = ImageUtils.getPixelsAsArray(imgSoFar);
 
         // make a copy so that the original is inspected for edges
@@ -198,18 +291,21 @@ public class VoronoiFilter extends PointFilter {
         int[] pixelsCopy = new int[pixels.length];
         System.arraycopy(pixels, 0, pixelsCopy, 0, pixels.length);
 
-        for (int i = 0; i < pixels.length; i++) {
-            // only pixels at the edges are supersampled
-            boolean edge;
-            try {
-                edge = isEdge(pixelsCopy, i, width);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                edge = false;
-            }
+        ThreadPool.processRows(height, width, y -> {
+            int rowEnd = (y + 1) * width;
+            for (int i = y * width; i < rowEnd; i++) {
+                // only pixels at the edges are supersampled
+                boolean edge;
+                try {
+                    edge = isEdge(pixelsCopy, i, width);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    edge = false;
+                }
 
-            if(edge) {
-                pixels[i] = calcSuperSampledColor(i, width);
+                if (edge) {
+                    pixels[i] = calcSuperSampledColor(i, width);
+                }
             }
-        }
+        }, NULL_TRACKER);
     }
 }
@@ -33,7 +33,7 @@ import java.awt.image.BufferedImage;
 public class JHBoxBlur extends ParametrizedFilter {
     public static final String NAME = "Box Blur";
 
-    private final GroupedRangeParam radius = new GroupedRangeParam("Radius", 0, 0, 100);
+    private final GroupedRangeParam radius = new GroupedRangeParam("Radius", 0, 0, 100).scalesWithImage();
     private final RangeParam numberOfIterations = new RangeParam("Iterations (Quality)", 1, 3, 10);
     private final BooleanParam hpSharpening = BooleanParam.forHPSharpening();
 
@@ -40,7 +40,7 @@ public class JHCrystallize extends ParametrizedFilter {
     public static final String NAME = "Crystallize";
 
     private final RangeParam edgeThickness = new RangeParam("Edge Thickness", 0, 40, 100);
-    private final RangeParam size = new RangeParam("Size", 1, 20, 200);
+    private final RangeParam size = new RangeParam("Size", 1, 20, 200).scalesWithImage();
     private final ColorParam edgeColor = new ColorParam("Edge Color", BLACK, FREE_TRANSPARENCY);
     private final BooleanParam fadeEdges = new BooleanParam("Fade Edges", false);
     private final RangeParam randomness = new RangeParam("Shape Randomness (%)", 0, 0, 100);
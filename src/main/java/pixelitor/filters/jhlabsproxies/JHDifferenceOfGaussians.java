@@ -32,8 +32,8 @@ import java.awt.image.BufferedImage;
 public class JHDifferenceOfGaussians extends ParametrizedFilter {
     public static final String NAME = "Difference of Gaussians";
 
-    private final RangeParam radius1 = new RangeParam("Radius 1", 0, 0, 10);
-    private final RangeParam radius2 = new RangeParam("Radius 2", 0, 4, 10);
+    private final RangeParam radius1 = new RangeParam("Radius 1", 0, 0, 10).scalesWithImage();
+    private final RangeParam radius2 = new RangeParam("Radius 2", 0, 4, 10).scalesWithImage();
     private final BooleanParam normalize = new BooleanParam("Maximize Contrast", true);
     private final BooleanParam invert = new BooleanParam("Invert", false);
 
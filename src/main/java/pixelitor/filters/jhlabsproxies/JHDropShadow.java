@@ -44,9 +44,9 @@ public class JHDropShadow extends ParametrizedFilter {
     public static final String NAME = "Drop Shadow";
 
     private final AngleParam angle = new AngleParam("Angle", ImageUtils.DEG_315_IN_RADIANS);
-    private final RangeParam distance = new RangeParam("Distance", 0, 10, 100);
+    private final RangeParam distance = new RangeParam("Distance", 0, 10, 100).scalesWithImage();
     private final RangeParam opacity = new RangeParam("Opacity (%)", 0, 90, 100);
-    private final RangeParam softness = new RangeParam("Softness", 0, 10, 25);
+    private final RangeParam softness = new RangeParam("Softness", 0, 10, 25).scalesWithImage();
     private final BooleanParam shadowOnly = new BooleanParam("Shadow Only", false);
     private final ColorParam color = new ColorParam("Color", BLACK, NO_TRANSPARENCY);
 
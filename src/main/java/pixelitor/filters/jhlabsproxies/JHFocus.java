@@ -39,9 +39,11 @@ public class JHFocus extends ParametrizedFilter {
     public static final String NAME = "Focus";
 
     private final ImagePositionParam center = new ImagePositionParam("Focused Area Center");
-    private final GroupedRangeParam radius = new GroupedRangeParam("Focused Area Radius (Pixels)", 0, 200, 1000, false);
+    private final GroupedRangeParam radius = new GroupedRangeParam("Focused Area Radius (Pixels)", 0, 200, 1000, false)
+            .scalesWithImage();
     private final RangeParam softness = new RangeParam("Transition Softness", 0, 20, 100);
-    private final GroupedRangeParam blurRadius = new GroupedRangeParam("Blur Radius", 0, 10, 48);
+    private final GroupedRangeParam blurRadius = new GroupedRangeParam("Blur Radius", 0, 10, 48)
+            .scalesWithImage();
     private final RangeParam numberOfIterations = new RangeParam("Blur Iterations (Quality)", 1, 3, 10);
     private final BooleanParam invert = new BooleanParam("Invert", false);
     private final BooleanParam hpSharpening = BooleanParam.forHPSharpening();
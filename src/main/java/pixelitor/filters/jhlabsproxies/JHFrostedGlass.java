@@ -33,7 +33,7 @@ import static pixelitor.filters.gui.IntChoiceParam.EDGE_REPEAT_PIXELS;
 public class JHFrostedGlass extends ParametrizedFilter {
     public static final String NAME = "Frosted Glass";
 
-    private final RangeParam amount = new RangeParam("Amount", 0, 10, 100);
+    private final RangeParam amount = new RangeParam("Amount", 0, 10, 100).scalesWithImage();
 
     private final IntChoiceParam edgeAction = IntChoiceParam.forEdgeAction();
     private final IntChoiceParam interpolation = IntChoiceParam.forInterpolation();
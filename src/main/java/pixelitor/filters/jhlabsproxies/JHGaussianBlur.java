@@ -33,7 +33,7 @@ import java.awt.image.BufferedImage;
 public class JHGaussianBlur extends ParametrizedFilter {
     public static final String NAME = "Gaussian Blur";
 
-    private final RangeParam radius = new RangeParam("Radius", 1, 2, 101);
+    private final RangeParam radius = new RangeParam("Radius", 1, 2, 101).scalesWithImage();
     private final BooleanParam hpSharpening = BooleanParam.forHPSharpening();
 
     private GaussianFilter filter;
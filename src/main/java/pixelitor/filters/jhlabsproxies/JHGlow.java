@@ -31,7 +31,7 @@ public class JHGlow extends ParametrizedFilter {
     public static final String NAME = "Glow";
 
     private final RangeParam amount = new RangeParam("Amount", 0, 15, 100);
-    private final RangeParam softness = new RangeParam("Softness Radius", 0, 20, 100);
+    private final RangeParam softness = new RangeParam("Softness Radius", 0, 20, 100).scalesWithImage();
 
     private GlowFilter filter;
 
@@ -31,7 +31,7 @@ import java.awt.image.BufferedImage;
 public class JHLensBlur extends ParametrizedFilter {
     public static final String NAME = "Lens Blur";
 
-    private final RangeParam amount = new RangeParam("Amount (Radius)", 1, 2, 101);
+    private final RangeParam amount = new RangeParam("Amount (Radius)", 1, 2, 101).scalesWithImage();
     private final RangeParam numberOfSides = new RangeParam("Number of Sides of the Aperture", 3, 5, 12);
     private final RangeParam bloomFactor = new RangeParam("Bloom Factor", 1, 1, 8);
     private final RangeParam bloomThreshold = new RangeParam("Bloom Threshold", 0, 200, 255);
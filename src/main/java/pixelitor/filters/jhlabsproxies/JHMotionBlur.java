@@ -45,7 +45,7 @@ import static pixelitor.filters.jhlabsproxies.JHMotionBlur.MotionBlurQuality.FAS
  */
 public class JHMotionBlur extends ParametrizedFilter {
     private final AngleParam angle = new AngleParam("Direction", 0);
-    private final RangeParam distance = new RangeParam("Distance", 0, 0, 200);
+    private final RangeParam distance = new RangeParam("Distance", 0, 0, 200).scalesWithImage();
     private final RangeParam rotation = new RangeParam("Spin Blur Amount (Degrees)", -45, 0, 45);
     private final RangeParam zoom = new RangeParam("Zoom Blur Amount", 0, 0, 200);
     private final ImagePositionParam center = new ImagePositionParam("Center");
@@ -43,7 +43,7 @@ public class JHOilPainting extends ParametrizedFilter {
     private static final int BETTER = 1;
 
     private final GroupedRangeParam brushSize = new GroupedRangeParam(
-            "Brush Size", 0, 1, 10, false);
+            "Brush Size", 0, 1, 10, false).scalesWithImage();
     private final RangeParam coarseness = new RangeParam(
             "Coarseness", 0, 25, 200);
     private final IntChoiceParam detailQuality = new IntChoiceParam("Detail Quality",
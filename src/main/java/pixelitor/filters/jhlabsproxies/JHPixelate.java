@@ -59,7 +59,7 @@ public class JHPixelate extends ParametrizedFilter {
 //            new IntChoiceParam.Value("Grid", STYLE_GRID_ONLY)
     });
 
-    private final RangeParam cellSizeParam = new RangeParam("Cell Size", 3, 20, 200);
+    private final RangeParam cellSizeParam = new RangeParam("Cell Size", 3, 20, 200).scalesWithImage();
 
     private BlockFilter blockFilter;
     private BrickBlockFilter brickBlockFilter;
@@ -32,7 +32,7 @@ import java.awt.image.BufferedImage;
 public class JHSmartBlur extends ParametrizedFilter {
     public static final String NAME = "Smart Blur";
 
-    private final RangeParam radiusParam = new RangeParam("Radius", 0, 5, 100);
+    private final RangeParam radiusParam = new RangeParam("Radius", 0, 5, 100).scalesWithImage();
     private final RangeParam threshold = new RangeParam("Threshold", 0, 10, 256);
     private final BooleanParam hpSharpening = BooleanParam.forHPSharpening();
 
@@ -31,7 +31,7 @@ public class JHUnsharpMask extends ParametrizedFilter {
     public static final String NAME = "Unsharp Mask";
 
     private final RangeParam amount = new RangeParam("Amount", 0, 50, 100);
-    private final RangeParam radius = new RangeParam("Radius", 0, 2, 100);
+    private final RangeParam radius = new RangeParam("Radius", 0, 2, 100).scalesWithImage();
     private final RangeParam threshold = new RangeParam("Threshold", 0, 0, 100);
 
     private UnsharpFilter filter;
@@ -19,16 +19,20 @@ package pixelitor.gui;
 
 import pixelitor.Composition;
 import pixelitor.OpenImages;
-import pixelitor.utils.ImageUtils;
+import pixelitor.ThreadPool;
+import pixelitor.utils.Messages;
+import pixelitor.utils.RGBHistograms;
 import pixelitor.utils.ViewActivationListener;
 
 import javax.swing.*;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.FlowLayout;
 import java.awt.GridLayout;
 import java.awt.image.BufferedImage;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 import static java.awt.BorderLayout.CENTER;
 import static java.awt.BorderLayout.NORTH;
@@ -49,11 +53,14 @@ public class HistogramsPanel extends JPanel implements ViewActivationListener {
     private final HistogramPainter red;
     private final HistogramPainter green;
     private final HistogramPainter blue;
-    private static final int HISTOGRAM_RESOLUTION = 256;
+    private static final int HISTOGRAM_RESOLUTION = RGBHistograms.NUM_BINS;
 
     private boolean logarithmic;
     private final JComboBox<String> typeChooser;
 
+    // the last asynchronous counting that was started, or null
+    private PendingCount pendingCount;
+
     private HistogramsPanel() {
         setLayout(new BorderLayout());
 
@@ -100,6 +107,7 @@ public class HistogramsPanel extends JPanel implements ViewActivationListener {
 
     @Override
     public void allViewsClosed() {
+        pendingCount = null;
         red.allViewsClosed();
         green.allViewsClosed();
         blue.allViewsClosed();
@@ -111,30 +119,48 @@ public class HistogramsPanel extends JPanel implements ViewActivationListener {
         updateFrom(newView.getComp());
     }
 
+    /**
+     * Shows the histograms of the composite image of the given composition.
+     * If they are not maintained by the composition, then they
+     * are counted asynchronously, outside the EDT.
+     */
     public void updateFrom(Composition comp) {
         Objects.requireNonNull(comp);
         if (!isShown()) {
             return;
         }
+        RGBHistograms histograms = comp.getCompositeHistograms();
+        if (histograms != null) {
+            pendingCount = null;
+            show(histograms);
+            return;
+        }
+
         BufferedImage image = comp.getCompositeImage();
+        if (pendingCount != null && pendingCount.image == image) {
+            return; // it's already being counted
+        }
+        var count = new PendingCount(image);
+        pendingCount = count;
+        CompletableFuture.supplyAsync(() -> RGBHistograms.count(image), ThreadPool.getExecutor())
+                .thenAcceptAsync(counted -> countFinished(comp, count, counted), EventQueue::invokeLater)
+                .exceptionally(Messages::showExceptionOnEDT);
+    }
 
-        int[] reds = new int[HISTOGRAM_RESOLUTION];
-        int[] blues = new int[HISTOGRAM_RESOLUTION];
-        int[] greens = new int[HISTOGRAM_RESOLUTION];
-
-        int[] data = ImageUtils.getPixelsAsArray(image);
-        for (int rgb : data) {
-            int a = (rgb >>> 24) & 0xFF;
-            if (a > 0) {
-                int r = (rgb >>> 16) & 0xFF;
-                int g = (rgb >>> 8) & 0xFF;
-                int b = rgb & 0xFF;
-
-                reds[r]++;
-                greens[g]++;
-                blues[b]++;
-            }
+    private void countFinished(Composition comp, PendingCount count, RGBHistograms histograms) {
+        comp.setCompositeHistograms(count.image, histograms);
+
+        // a later update or the activation of another image makes it obsolete
+        if (count == pendingCount) {
+            pendingCount = null;
+            show(histograms);
         }
+    }
+
+    private void show(RGBHistograms histograms) {
+        int[] reds = histograms.getReds();
+        int[] greens = histograms.getGreens();
+        int[] blues = histograms.getBlues();
 
         if (logarithmic) {
             for (int i = 0; i < HISTOGRAM_RESOLUTION; i++) {
@@ -152,4 +178,15 @@ public class HistogramsPanel extends JPanel implements ViewActivationListener {
         blue.updateData(blues);
         repaint();
     }
+
+    /**
+     * The composite image whose histograms are being counted
+     */
+    private static class PendingCount {
+        private final BufferedImage image;
+
+        private PendingCount(BufferedImage image) {
+            this.image = image;
+        }
+    }
 }
@@ -311,7 +311,7 @@ public class Navigator extends JComponent
         var origTransform = g2.getTransform();
 
         g2.scale(imgScalingRatio, imgScalingRatio);
-        g2.drawImage(view.getComp().getCompositeImage(), 0, 0, null);
+        g2.drawImage(view.getComp().getCompositeImageForPainting(), 0, 0, null);
         g2.setTransform(origTransform);
 
         g2.setStroke(VIEW_BOX_STROKE);
@@ -43,6 +43,7 @@ import pixelitor.tools.Tool;
 import pixelitor.tools.Tools;
 import pixelitor.tools.util.PPoint;
 import pixelitor.tools.util.PRectangle;
+import pixelitor.utils.ImagePyramid;
 import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Lazy;
 import pixelitor.utils.Messages;
@@ -101,6 +102,9 @@ public class View extends JComponent
 
     private Navigator navigator;
 
+    // the smaller versions of the composite image used at small zoom levels
+    private final ImagePyramid compositePyramid = new ImagePyramid();
+
     private static boolean showPixelGrid = false;
 
     public View(Composition comp) {
@@ -155,6 +159,7 @@ public class View extends JComponent
         oldComp.setView(null);
         newComp.setView(this);
         canvas = newComp.getCanvas();
+        compositePyramid.clear();
 
         // refresh the layer buttons
         layersPanel = new LayersPanel();
@@ -364,8 +369,8 @@ public class View extends JComponent
             assert mask != null : "no mask in " + maskViewMode;
             mask.paintLayerOnGraphics(g2, true);
         } else {
-            BufferedImage compositeImage = comp.getCompositeImage();
-            ImageUtils.drawImageWithClipping(g2, compositeImage);
+            BufferedImage compositeImage = comp.getCompositeImageForPainting();
+            paintComposite(g2, compositeImage);
 
             if (maskViewMode.showRuby()) {
                 LayerMask mask = comp.getActiveLayer().getMask();
@@ -402,6 +407,44 @@ public class View extends JComponent
         g2.setClip(originalClip);
     }
 
+    /**
+     * Paints the composite image in image space. At small zoom levels
+     * a smaller version of it is scaled, which is much faster than
+     * scaling the full-resolution image.
+     */
+    private void paintComposite(Graphics2D g2, BufferedImage compositeImage) {
+        int level = ImagePyramid.levelFor(scaling,
+                compositeImage.getWidth(), compositeImage.getHeight());
+        if (level == 0 || !ImagePyramid.canBeUsedFor(compositeImage)) {
+            compositePyramid.clear();
+            ImageUtils.drawImageWithClipping(g2, compositeImage);
+            return;
+        }
+
+        BufferedImage levelImage = compositePyramid.getLevel(compositeImage, level);
+        AffineTransform imageTransform = g2.getTransform();
+        Shape imageClip = g2.getClip();
+        // the last row and column of the level can cover
+        // a bit more than the canvas, if its size is odd
+        g2.clipRect(0, 0, compositeImage.getWidth(), compositeImage.getHeight());
+        double levelScale = 1 << level;
+        g2.scale(levelScale, levelScale);
+        ImageUtils.drawImageWithClipping(g2, levelImage);
+        g2.setTransform(imageTransform);
+        g2.setClip(imageClip);
+    }
+
+    /**
+     * Called when the given region of the previous composite image was
+     * updated in place (then the two images are the same), or the new
+     * composite image is a copy of it that differs only in this region.
+     */
+    public void compositeRegionUpdated(BufferedImage prevCompositeImage,
+                                       BufferedImage compositeImage,
+                                       Rectangle region) {
+        compositePyramid.regionChanged(prevCompositeImage, compositeImage, region);
+    }
+
     public void paintImmediately() {
         paintImmediately(getX(), getY(), getWidth(), getHeight());
     }
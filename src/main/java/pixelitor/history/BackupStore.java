@@ -0,0 +1,343 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.history;
+
+import pixelitor.ThreadPool;
+import pixelitor.io.PXCFormat;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the undo backup images within an explicit byte budget, instead of
+ * relying on soft references, which can be cleared at any time by the GC.
+ * When the uncompressed images exceed the memory budget, the least recently
+ * used ones are compressed in the background, and when the compressed data
+ * also exceeds its budget, the least recently used compressed data is moved
+ * to a temporary file. The space of the restored or disposed data in
+ * the file is reused by the later spills.
+ */
+final class BackupStore {
+    private static final long MAX_MEMORY = Runtime.getRuntime().maxMemory();
+
+    static final long DEFAULT_MEMORY_BUDGET = MAX_MEMORY / 4;
+    static final long DEFAULT_COMPRESSED_BUDGET = MAX_MEMORY / 16;
+
+    private static long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private static long compressedBudget = DEFAULT_COMPRESSED_BUDGET;
+
+    // the live backups in access order: the first one is the least recently used
+    private static final Map<ImageBackup, Boolean> backups =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    // the size of the uncompressed images, including the ones being compressed
+    private static long imageBytes;
+    private static long compressingBytes;
+    private static int numCompressions;
+
+    private static long compressedBytes;
+
+    private static File spillFile;
+    private static long spillFileEnd;
+    private static int numSpilled;
+    // the unused ranges within the spill file: offset => length
+    private static final TreeMap<Long, Integer> freeRanges = new TreeMap<>();
+    private static boolean spillingFailed;
+
+    private BackupStore() {
+    }
+
+    static synchronized void add(ImageBackup backup) {
+        backups.put(backup, Boolean.TRUE);
+        imageBytes += backup.getNumBytes();
+        compressOldBackups();
+    }
+
+    static synchronized BufferedImage getImage(ImageBackup backup, boolean take) {
+        if (backup.disposed) {
+            return null;
+        }
+        backups.get(backup); // mark it as recently used
+
+        BufferedImage img = backup.image;
+        if (img == null) {
+            img = restore(backup);
+            if (img == null) {
+                return null;
+            }
+            releaseStoredBytes(backup);
+            backup.image = img;
+            imageBytes += backup.getNumBytes();
+        }
+
+        if (take) {
+            remove(backup, false);
+        } else {
+            compressOldBackups();
+        }
+        return img;
+    }
+
+    static synchronized void remove(ImageBackup backup, boolean flush) {
+        if (backup.disposed) {
+            return;
+        }
+        backup.disposed = true;
+        backups.remove(backup);
+
+        if (backup.image != null) {
+            imageBytes -= backup.getNumBytes();
+            if (flush) {
+                backup.image.flush();
+            }
+            backup.image = null;
+        }
+        releaseStoredBytes(backup);
+    }
+
+    private static void compressOldBackups() {
+        for (ImageBackup backup : backups.keySet()) {
+            if (imageBytes - compressingBytes <= memoryBudget) {
+                return;
+            }
+            if (backup.image != null && !backup.compressing) {
+                startCompression(backup);
+            }
+        }
+    }
+
+    private static void startCompression(ImageBackup backup) {
+        BufferedImage img = backup.image;
+        backup.compressing = true;
+        compressingBytes += backup.getNumBytes();
+        numCompressions++;
+
+        CompletableFuture.supplyAsync(() -> PXCFormat.encodeImage(img), ThreadPool.getExecutor())
+                .whenComplete((bytes, e) -> compressionFinished(backup, bytes, e));
+    }
+
+    private static synchronized void compressionFinished(ImageBackup backup,
+                                                         byte[] bytes,
+                                                         Throwable e) {
+        backup.compressing = false;
+        compressingBytes -= backup.getNumBytes();
+        numCompressions--;
+        BackupStore.class.notifyAll();
+
+        if (e != null) {
+            // the image is simply kept in memory
+            e.printStackTrace();
+            return;
+        }
+        // the backup might have been taken or disposed in the meantime
+        if (backup.disposed || backup.image == null) {
+            return;
+        }
+
+        backup.image = null;
+        imageBytes -= backup.getNumBytes();
+        backup.compressed = bytes;
+        compressedBytes += bytes.length;
+
+        spillOldBackups();
+    }
+
+    private static void spillOldBackups() {
+        for (ImageBackup backup : backups.keySet()) {
+            if (compressedBytes <= compressedBudget || spillingFailed) {
+                return;
+            }
+            if (backup.compressed != null) {
+                try {
+                    spill(backup);
+                } catch (IOException e) {
+                    // the compressed data is kept in memory from now on
+                    spillingFailed = true;
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void spill(ImageBackup backup) throws IOException {
+        if (spillFile == null) {
+            spillFile = File.createTempFile("pixelitor_undo", ".tmp");
+            spillFile.deleteOnExit();
+            spillFileEnd = 0;
+        }
+        byte[] bytes = backup.compressed;
+        long offset = allocateSpillRange(bytes.length);
+
+        // the file is not kept open, so that it can be deleted on exit
+        try (var file = new RandomAccessFile(spillFile, "rw")) {
+            file.seek(offset);
+            file.write(bytes);
+        } catch (IOException e) {
+            freeSpillRange(offset, bytes.length);
+            throw e;
+        }
+
+        backup.spillOffset = offset;
+        backup.spillLength = bytes.length;
+        numSpilled++;
+
+        backup.compressed = null;
+        compressedBytes -= bytes.length;
+    }
+
+    /**
+     * Returns the offset of a range with the given length, reusing
+     * the first large enough free range, or extending the file.
+     */
+    private static long allocateSpillRange(int length) {
+        for (Map.Entry<Long, Integer> range : freeRanges.entrySet()) {
+            int rangeLength = range.getValue();
+            if (rangeLength >= length) {
+                long offset = range.getKey();
+                freeRanges.remove(offset);
+                if (rangeLength > length) {
+                    freeRanges.put(offset + length, rangeLength - length);
+                }
+                return offset;
+            }
+        }
+        long offset = spillFileEnd;
+        spillFileEnd += length;
+        return offset;
+    }
+
+    /**
+     * Marks the given range of the spill file as unused, merging it
+     * with the neighboring free ranges. A free range at the end
+     * of the file is removed by truncating the file.
+     */
+    private static void freeSpillRange(long offset, int length) {
+        Map.Entry<Long, Integer> prev = freeRanges.floorEntry(offset);
+        if (prev != null && prev.getKey() + prev.getValue() == offset) {
+            freeRanges.remove(prev.getKey());
+            offset = prev.getKey();
+            length += prev.getValue();
+        }
+        Integer nextLength = freeRanges.remove(offset + length);
+        if (nextLength != null) {
+            length += nextLength;
+        }
+
+        if (offset + length == spillFileEnd) {
+            spillFileEnd = offset;
+            try (var file = new RandomAccessFile(spillFile, "rw")) {
+                file.setLength(spillFileEnd);
+            } catch (IOException e) {
+                // not a problem, the file will be overwritten
+                e.printStackTrace();
+            }
+        } else {
+            freeRanges.put(offset, length);
+        }
+    }
+
+    private static BufferedImage restore(ImageBackup backup) {
+        try {
+            byte[] bytes = backup.compressed;
+            if (bytes == null) {
+                bytes = new byte[backup.spillLength];
+                try (var file = new RandomAccessFile(spillFile, "r")) {
+                    file.seek(backup.spillOffset);
+                    file.readFully(bytes);
+                }
+            }
+            return PXCFormat.decodeImage(bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void releaseStoredBytes(ImageBackup backup) {
+        if (backup.compressed != null) {
+            compressedBytes -= backup.compressed.length;
+            backup.compressed = null;
+        }
+        if (backup.spillOffset >= 0) {
+            long offset = backup.spillOffset;
+            backup.spillOffset = -1;
+            numSpilled--;
+            if (numSpilled == 0) {
+                spillFile.delete();
+                spillFile = null;
+                freeRanges.clear();
+            } else {
+                freeSpillRange(offset, backup.spillLength);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes used by the pixels of the given image.
+     * For subimages only their own pixels are counted, not the whole
+     * shared data buffer.
+     */
+    static long sizeOf(BufferedImage img) {
+        DataBuffer buffer = img.getRaster().getDataBuffer();
+        long bufferBits = (long) buffer.getSize() * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType());
+
+        SampleModel sampleModel = img.getSampleModel();
+        long pixelBits = (long) sampleModel.getNumDataElements()
+                * DataBuffer.getDataTypeSize(sampleModel.getTransferType());
+        long imageBits = (long) img.getWidth() * img.getHeight() * pixelBits;
+
+        return Math.min(bufferBits, imageBits) / 8;
+    }
+
+    static synchronized void setBudgets(long memoryBudget, long compressedBudget) {
+        BackupStore.memoryBudget = memoryBudget;
+        BackupStore.compressedBudget = compressedBudget;
+        compressOldBackups();
+    }
+
+    static synchronized void waitForCompressions() throws InterruptedException {
+        while (numCompressions > 0) {
+            BackupStore.class.wait();
+        }
+    }
+
+    static synchronized long getImageBytes() {
+        return imageBytes;
+    }
+
+    static synchronized long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    static synchronized int getNumSpilled() {
+        return numSpilled;
+    }
+
+    static synchronized long getSpillFileEnd() {
+        return spillFileEnd;
+    }
+}
@@ -171,7 +171,7 @@ public class History {
                 throw new RuntimeException("No undo available", e);
             } else {
                 Messages.showInfo("No undo available",
-                        "No undo available, probably because the undo image was discarded in order to save memory");
+                        "No undo available, probably because the undo image could not be restored");
             }
         }
     }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.history;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The backup image of an undoable edit. The pixels are kept
+ * by the {@link BackupStore} either as an image, as compressed
+ * bytes, or in a temporary file, depending on the memory budget.
+ */
+public class ImageBackup {
+    private final int width;
+    private final int height;
+    private final long numBytes;
+
+    // exactly one of these is used while the backup is alive,
+    // all of them are guarded by the lock of the BackupStore class
+    BufferedImage image;
+    byte[] compressed;
+    long spillOffset = -1;
+    int spillLength;
+
+    // true while the image is being compressed in the background
+    boolean compressing;
+
+    boolean disposed;
+
+    public ImageBackup(BufferedImage image) {
+        assert image != null;
+
+        width = image.getWidth();
+        height = image.getHeight();
+        numBytes = BackupStore.sizeOf(image);
+
+        this.image = image;
+        BackupStore.add(this);
+    }
+
+    /**
+     * Returns the backup image, which must not be modified,
+     * or null if it could not be restored.
+     */
+    public BufferedImage getImage() {
+        return BackupStore.getImage(this, false);
+    }
+
+    /**
+     * Returns the backup image and releases it from the store,
+     * so that the caller can use the image as its own.
+     * Returns null if the image could not be restored.
+     */
+    public BufferedImage take() {
+        return BackupStore.getImage(this, true);
+    }
+
+    /**
+     * Releases the memory and the disk space used by this backup
+     */
+    public void dispose() {
+        BackupStore.remove(this, true);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    long getNumBytes() {
+        return numBytes;
+    }
+}
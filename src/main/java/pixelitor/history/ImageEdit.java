@@ -24,14 +24,18 @@ import pixelitor.utils.debug.DebugNode;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import java.awt.image.BufferedImage;
-import java.lang.ref.SoftReference;
 
 /**
  * A PixelitorEdit that represents the changes made to an image.
  */
 public class ImageEdit extends FadeableEdit {
     private final boolean ignoreSelection;
-    private SoftReference<BufferedImage> imgRef;
+
+    // the backup is stored either as a difference from the
+    // image of the drawable, or as a whole image
+    private TileDelta delta;
+    private ImageBackup backup;
+
     protected Drawable dr;
 
     private final boolean canRepeat;
@@ -47,12 +51,11 @@ public class ImageEdit extends FadeableEdit {
 
 //        Utils.debugImage(backupImage, "Backup for " + name);
         
-        // the backup image is stored in an SoftReference
-        imgRef = new SoftReference<>(backupImage);
         this.dr = dr;
         this.canRepeat = canRepeat;
 
-        checkBackupDifferentFromActive();
+        checkBackupDifferentFromActive(backupImage);
+        storeBackup(backupImage);
     }
 
     public static ImageEdit createEmbedded(Drawable dr) {
@@ -70,9 +73,9 @@ public class ImageEdit extends FadeableEdit {
 
     // the backup should never be identical to the active image
     // otherwise the backup might be also edited
-    private void checkBackupDifferentFromActive() {
+    private void checkBackupDifferentFromActive(BufferedImage backupImage) {
         BufferedImage layerImage = dr.getImage();
-        if (layerImage == imgRef.get()) {
+        if (layerImage == backupImage) {
             throw new IllegalStateException("backup image is identical to the active one");
         }
     }
@@ -99,7 +102,7 @@ public class ImageEdit extends FadeableEdit {
      * Returns true if successful
      */
     private boolean swapImages()  {
-        BufferedImage backupImage = imgRef.get();
+        BufferedImage backupImage = takeBackup();
         if(backupImage == null) {
             return false;
         }
@@ -112,36 +115,81 @@ public class ImageEdit extends FadeableEdit {
         }
         dr.changeImageForUndoRedo(backupImage, ignoreSelection);
 
+        checkBackupDifferentFromActive(tmp);
+
         // create new backup image from tmp
-        imgRef = new SoftReference<>(tmp);
+        storeBackup(tmp);
 
         if(!embedded) {
             comp.imageChanged();
             dr.updateIconImage();
         }
 
-        checkBackupDifferentFromActive();
         return true;
     }
 
+    /**
+     * Stores the backup image as a difference from the current image
+     * of the drawable, if the two images differ only in some tiles.
+     * Must be called after the drawable got its new image.
+     */
+    private void storeBackup(BufferedImage backupImage) {
+        delta = TileDelta.create(backupImage, getCurrentImage());
+        if (delta == null) {
+            // the whole image is kept within the memory budget of the BackupStore
+            backup = new ImageBackup(backupImage);
+        }
+    }
+
+    private BufferedImage takeBackup() {
+        // the stored data is released only after a successful restore,
+        // so that a failed undo/redo can be retried
+        BufferedImage backupImage;
+        if (delta != null) {
+            backupImage = delta.restore(getCurrentImage(), true);
+            if (backupImage != null) {
+                delta.dispose();
+                delta = null;
+            }
+        } else {
+            backupImage = backup.take();
+            if (backupImage != null) {
+                backup = null;
+            }
+        }
+        return backupImage;
+    }
+
+    private BufferedImage getCurrentImage() {
+        if (ignoreSelection) {
+            return dr.getImage();
+        }
+        return dr.getSelectedSubImage(false);
+    }
+
     @Override
     public void die() {
         super.die();
 
-        BufferedImage backupImage = imgRef.get();
-        if(backupImage != null) {
-            backupImage.flush();
+        if (delta != null) {
+            delta.dispose();
+            delta = null;
+        }
+        if (backup != null) {
+            backup.dispose();
+            backup = null;
         }
-
-        imgRef = null;
         dr = null;
     }
 
     @Override
     public BufferedImage getBackupImage() {
-        if(imgRef != null) {
-            // this still could be null
-            return imgRef.get();
+        // these still could return null, if the backup can't be restored
+        if (delta != null) {
+            return delta.restore(getCurrentImage(), false);
+        }
+        if (backup != null) {
+            return backup.getImage();
         }
         return null;
     }
@@ -155,10 +203,13 @@ public class ImageEdit extends FadeableEdit {
     public DebugNode getDebugNode() {
         var node = super.getDebugNode();
 
-        BufferedImage img = imgRef.get();
-        if (img != null) {
-            node.addInt("backup image width", img.getWidth());
-            node.addInt("backup image height", img.getHeight());
+        if (delta != null) {
+            node.addInt("backup image width", delta.getWidth());
+            node.addInt("backup image height", delta.getHeight());
+            node.addInt("backup tiles", delta.getNumStoredTiles());
+        } else if (backup != null) {
+            node.addInt("backup image width", backup.getWidth());
+            node.addInt("backup image height", backup.getHeight());
         }
 
         return node;
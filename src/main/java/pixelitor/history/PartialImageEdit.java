@@ -29,7 +29,6 @@ import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
-import java.lang.ref.SoftReference;
 
 import static java.lang.String.format;
 
@@ -40,7 +39,7 @@ import static java.lang.String.format;
 public class PartialImageEdit extends FadeableEdit {
     private final Rectangle saveRect;
     private final boolean canRepeat;
-    private SoftReference<Raster> backupRasterRef;
+    private ImageBackup backup;
 
     private final Drawable dr;
 
@@ -54,7 +53,7 @@ public class PartialImageEdit extends FadeableEdit {
         this.saveRect = saveRect;
 
         Raster backupRaster = image.getData(this.saveRect);
-        backupRasterRef = new SoftReference<>(backupRaster);
+        backup = new ImageBackup(toBackupImage(backupRaster, image));
 
 //        EventQueue.invokeLater(() -> Utils.debugRaster(backupRaster, "Partial Image"));
     }
@@ -81,10 +80,11 @@ public class PartialImageEdit extends FadeableEdit {
      * Returns true if successful
      */
     private boolean swapRasters() {
-        Raster backupRaster = backupRasterRef.get();
-        if (backupRaster == null) {
+        BufferedImage backupImage = backup.take();
+        if (backupImage == null) {
             return false;
         }
+        Raster backupRaster = toBackupRaster(backupImage);
 
         BufferedImage image = dr.getImage();
 
@@ -104,7 +104,7 @@ public class PartialImageEdit extends FadeableEdit {
             throw e;
         }
 
-        backupRasterRef = new SoftReference<>(tmpRaster);
+        backup = new ImageBackup(toBackupImage(tmpRaster, image));
 
         comp.imageChanged();
         dr.updateIconImage();
@@ -112,6 +112,21 @@ public class PartialImageEdit extends FadeableEdit {
         return true;
     }
 
+    /**
+     * Wraps the raster (located at the saveRect) into an image located
+     * at the origin, so that it can be stored as an {@link ImageBackup}
+     */
+    private static BufferedImage toBackupImage(Raster raster, BufferedImage image) {
+        var translated = Raster.createWritableRaster(
+                raster.getSampleModel(), raster.getDataBuffer(), null);
+        return new BufferedImage(image.getColorModel(), translated,
+                image.isAlphaPremultiplied(), null);
+    }
+
+    private Raster toBackupRaster(BufferedImage backupImage) {
+        return backupImage.getRaster().createTranslatedChild(saveRect.x, saveRect.y);
+    }
+
     private static void debugRaster(String name, Raster raster) {
         if (raster == null) {
             System.err.printf("PartialImageEdit::debugRaster: NULL RASTER, name = '%s'%n", name);
@@ -138,7 +153,8 @@ public class PartialImageEdit extends FadeableEdit {
     public void die() {
         super.die();
 
-        backupRasterRef = null;
+        backup.dispose();
+        backup = null;
     }
 
     @Override
@@ -148,13 +164,14 @@ public class PartialImageEdit extends FadeableEdit {
 
     @Override
     public BufferedImage getBackupImage() {
-        if (backupRasterRef == null) { // died
+        if (backup == null) { // died
             return null;
         }
-        Raster backupRaster = backupRasterRef.get();
-        if (backupRaster == null) { // soft reference lost
+        BufferedImage backupImage = backup.getImage();
+        if (backupImage == null) { // could not be restored
             return null;
         }
+        Raster backupRaster = toBackupRaster(backupImage);
 
         // recreate the full image as if it was backed up entirely
         // because Fade expects to fade images of equal size
@@ -179,10 +196,9 @@ public class PartialImageEdit extends FadeableEdit {
 
         int width = -1;
         int height = -1;
-        Raster backupRaster = backupRasterRef.get();
-        if (backupRaster != null) {
-            width = backupRaster.getWidth();
-            height = backupRaster.getHeight();
+        if (backup != null) {
+            width = backup.getWidth();
+            height = backup.getHeight();
         }
 
         node.addInt("backup image width", width);
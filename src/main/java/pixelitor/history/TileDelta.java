@@ -0,0 +1,263 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.history;
+
+import pixelitor.utils.ImageUtils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An undo backup image stored as its difference from a base image, which
+ * is the image that the drawable will have when the backup is restored.
+ * Only the tiles that differ from the base are kept (identical tiles only
+ * once), stacked vertically in an "atlas" image, which is an {@link ImageBackup}.
+ * The unchanged tiles of the base are checked by their hashes before restoring,
+ * so that a changed base can never silently produce a wrong image.
+ */
+class TileDelta {
+    static final int TILE_SIZE = 64;
+
+    // if more tiles are changed, the whole image is backed up instead
+    private static final double MAX_CHANGED_RATIO = 0.75;
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+
+    // for each tile: its slot in the atlas, or -1 if it's the same as in the base
+    private final int[] slots;
+
+    // for each unchanged tile: the hash of the base tile
+    private final long[] baseHashes;
+
+    private ImageBackup atlas;
+
+    private TileDelta(int width, int height, int[] slots, long[] baseHashes,
+                      ImageBackup atlas) {
+        this.width = width;
+        this.height = height;
+        this.tilesX = ceilDiv(width, TILE_SIZE);
+        this.slots = slots;
+        this.baseHashes = baseHashes;
+        this.atlas = atlas;
+    }
+
+    /**
+     * Returns the difference of the given image from the base,
+     * or null if it's not worth storing the image as a difference.
+     */
+    static TileDelta create(BufferedImage img, BufferedImage base) {
+        if (!isSupported(img) || !isSupported(base)
+                || img.getWidth() != base.getWidth()
+                || img.getHeight() != base.getHeight()
+                || img.getType() != base.getType()) {
+            return null;
+        }
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int tilesX = ceilDiv(width, TILE_SIZE);
+        int numTiles = tilesX * ceilDiv(height, TILE_SIZE);
+
+        int[] slots = new int[numTiles];
+        long[] baseHashes = new long[numTiles];
+        List<Object> changedTiles = new ArrayList<>();
+        Map<Long, List<Integer>> slotsByHash = new HashMap<>();
+        int numChanged = 0;
+
+        Raster raster = img.getRaster();
+        Raster baseRaster = base.getRaster();
+        for (int i = 0; i < numTiles; i++) {
+            int x = (i % tilesX) * TILE_SIZE;
+            int y = (i / tilesX) * TILE_SIZE;
+            int w = Math.min(TILE_SIZE, width - x);
+            int h = Math.min(TILE_SIZE, height - y);
+
+            Object tile = raster.getDataElements(x, y, w, h, null);
+            Object baseTile = baseRaster.getDataElements(x, y, w, h, null);
+            if (dataEquals(tile, baseTile)) {
+                slots[i] = -1;
+                baseHashes[i] = hash(baseTile);
+                continue;
+            }
+
+            numChanged++;
+            if (numChanged > numTiles * MAX_CHANGED_RATIO) {
+                return null;
+            }
+            slots[i] = findOrAddSlot(tile, w, h, changedTiles, slotsByHash);
+        }
+        if (numChanged == 0) {
+            // the base is not changed yet, it can't be used
+            return null;
+        }
+
+        return new TileDelta(width, height, slots, baseHashes,
+                new ImageBackup(createAtlas(img.getColorModel(), changedTiles, slots, tilesX, width, height)));
+    }
+
+    private static int findOrAddSlot(Object tile, int w, int h,
+                                     List<Object> changedTiles,
+                                     Map<Long, List<Integer>> slotsByHash) {
+        // only full tiles are shared, because the data of an
+        // edge tile has a different layout in the atlas
+        boolean full = w == TILE_SIZE && h == TILE_SIZE;
+        List<Integer> candidates = null;
+        if (full) {
+            candidates = slotsByHash.computeIfAbsent(hash(tile), k -> new ArrayList<>(1));
+            for (int slot : candidates) {
+                if (dataEquals(tile, changedTiles.get(slot))) {
+                    return slot;
+                }
+            }
+        }
+        int slot = changedTiles.size();
+        changedTiles.add(tile);
+        if (full) {
+            candidates.add(slot);
+        }
+        return slot;
+    }
+
+    private static BufferedImage createAtlas(ColorModel cm, List<Object> changedTiles,
+                                             int[] slots, int tilesX,
+                                             int width, int height) {
+        WritableRaster atlasRaster = cm.createCompatibleWritableRaster(
+                TILE_SIZE, TILE_SIZE * changedTiles.size());
+        boolean[] written = new boolean[changedTiles.size()];
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            if (slot == -1 || written[slot]) {
+                continue;
+            }
+            int w = Math.min(TILE_SIZE, width - (i % tilesX) * TILE_SIZE);
+            int h = Math.min(TILE_SIZE, height - (i / tilesX) * TILE_SIZE);
+            atlasRaster.setDataElements(0, slot * TILE_SIZE, w, h, changedTiles.get(slot));
+            written[slot] = true;
+        }
+        return new BufferedImage(cm, atlasRaster, cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Recreates the backup image from the given base. If take is true,
+     * the stored tiles are released, but only if the restore succeeded.
+     * Returns null if the base is not the one that this delta was created
+     * for, or if the stored tiles can't be restored.
+     */
+    BufferedImage restore(BufferedImage base, boolean take) {
+        if (atlas == null || base.getWidth() != width || base.getHeight() != height) {
+            return null;
+        }
+        Raster baseRaster = base.getRaster();
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] == -1) {
+                int x = (i % tilesX) * TILE_SIZE;
+                int y = (i / tilesX) * TILE_SIZE;
+                Object baseTile = baseRaster.getDataElements(x, y,
+                        Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y), null);
+                if (hash(baseTile) != baseHashes[i]) {
+                    return null;
+                }
+            }
+        }
+
+        BufferedImage img = ImageUtils.copyImage(base);
+        if (img == null) {
+            return null;
+        }
+        BufferedImage atlasImage = take ? atlas.take() : atlas.getImage();
+        if (atlasImage == null) {
+            return null;
+        }
+        if (take) {
+            atlas = null;
+        }
+
+        WritableRaster raster = img.getRaster();
+        Raster atlasRaster = atlasImage.getRaster();
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            if (slot != -1) {
+                int x = (i % tilesX) * TILE_SIZE;
+                int y = (i / tilesX) * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, width - x);
+                int h = Math.min(TILE_SIZE, height - y);
+                raster.setDataElements(x, y, w, h,
+                        atlasRaster.getDataElements(0, slot * TILE_SIZE, w, h, null));
+            }
+        }
+        return img;
+    }
+
+    void dispose() {
+        if (atlas != null) {
+            atlas.dispose();
+            atlas = null;
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getNumStoredTiles() {
+        return atlas == null ? 0 : ceilDiv(atlas.getHeight(), TILE_SIZE);
+    }
+
+    private static boolean isSupported(BufferedImage img) {
+        return img.getType() == BufferedImage.TYPE_BYTE_GRAY
+                || ImageUtils.hasPackedIntArray(img);
+    }
+
+    private static boolean dataEquals(Object a, Object b) {
+        if (a instanceof int[]) {
+            return Arrays.equals((int[]) a, (int[]) b);
+        }
+        return Arrays.equals((byte[]) a, (byte[]) b);
+    }
+
+    // a 64-bit FNV-1a hash, so that collisions are practically impossible
+    private static long hash(Object data) {
+        long hash = 0xcbf29ce484222325L;
+        if (data instanceof int[]) {
+            for (int v : (int[]) data) {
+                hash = (hash ^ v) * 0x100000001b3L;
+            }
+        } else {
+            for (byte v : (byte[]) data) {
+                hash = (hash ^ v) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
@@ -24,6 +24,7 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import pixelitor.Composition;
+import pixelitor.ThreadPool;
 import pixelitor.layers.BlendingMode;
 import pixelitor.layers.ImageLayer;
 import pixelitor.layers.Layer;
@@ -37,17 +38,23 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -91,22 +98,40 @@ public class OpenRaster {
         }
         double workRatio = 1.0 / numImageLayers;
 
+        // The PNG images are encoded concurrently, then written
+        // to the zip file in order as they become available.
+        // Each one is released as soon as it is written.
         // Reverse iteration: in stack.xml the first element in a stack is the uppermost.
+        List<ImageLayer> imageLayers = new ArrayList<>();
+        List<Integer> layerIndices = new ArrayList<>();
+        List<CompletableFuture<byte[]>> layerPNGs = new ArrayList<>();
         for (int i = numLayers - 1; i >= 0; i--) {
             Layer layer = comp.getLayer(i);
             if (layer instanceof ImageLayer) {
                 ImageLayer imageLayer = (ImageLayer) layer;
-                ProgressTracker spt = new SubtaskProgressTracker(workRatio, pt);
-                stackXML += writeLayer(imageLayer, i, zos, spt);
+                imageLayers.add(imageLayer);
+                layerIndices.add(i);
+                layerPNGs.add(encodePNGAsync(imageLayer.getImage()));
             }
         }
+        CompletableFuture<byte[]> mergedPNG = null;
+        if (addMergedImage) {
+            mergedPNG = encodePNGAsync(comp.getCompositeImage());
+        }
+
+        // the progress is tracked only on this thread,
+        // because the trackers are not thread-safe
+        ProgressTracker spt = new SubtaskProgressTracker(workRatio, pt);
+        for (int i = 0; i < imageLayers.size(); i++) {
+            byte[] png = joinPNG(layerPNGs.get(i));
+            layerPNGs.set(i, null);
+            stackXML += writeLayer(imageLayers.get(i), layerIndices.get(i), zos, png);
+            spt.unitsDone(100);
+        }
 
         if (addMergedImage) {
-            zos.putNextEntry(new ZipEntry(MERGED_IMAGE_NAME));
-            ProgressTracker subTaskTracker = new SubtaskProgressTracker(workRatio, pt);
-            BufferedImage img = comp.getCompositeImage();
-            TrackedIO.writeToStream(img, zos, "PNG", subTaskTracker);
-            zos.closeEntry();
+            writeStoredEntry(zos, MERGED_IMAGE_NAME, joinPNG(mergedPNG));
+            spt.unitsDone(100);
         }
 
         stackXML += "</stack>\n</image>";
@@ -125,10 +150,41 @@ public class OpenRaster {
         pt.finished();
     }
 
+    private static CompletableFuture<byte[]> encodePNGAsync(BufferedImage image) {
+        return CompletableFuture.supplyAsync(() -> {
+            var bos = new ByteArrayOutputStream();
+            try {
+                TrackedIO.writeToStream(image, bos, "PNG", ProgressTracker.NULL_TRACKER);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bos.toByteArray();
+        }, ThreadPool.getExecutor());
+    }
+
+    /**
+     * Waits for the given PNG encoding, and reports
+     * its failure as an {@link IOException}.
+     */
+    private static byte[] joinPNG(CompletableFuture<byte[]> png) throws IOException {
+        try {
+            return png.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
     private static String writeLayer(ImageLayer layer,
                                      int layerIndex,
                                      ZipOutputStream zos,
-                                     ProgressTracker pt) throws IOException {
+                                     byte[] png) throws IOException {
         String stackXML = format(Locale.ENGLISH,
                 "<layer name=\"%s\" visibility=\"%s\" composite-op=\"%s\" " +
                         "opacity=\"%f\" src=\"data/%d.png\" x=\"%d\" y=\"%d\"/>\n",
@@ -139,14 +195,27 @@ public class OpenRaster {
                 layerIndex,
                 layer.getTx(),
                 layer.getTy());
-        ZipEntry entry = new ZipEntry(format("data/%d.png", layerIndex));
-        zos.putNextEntry(entry);
-        BufferedImage image = layer.getImage();
+        writeStoredEntry(zos, format("data/%d.png", layerIndex), png);
+        return stackXML;
+    }
+
+    // PNG data is already compressed, so deflating it
+    // again in the zip file would only waste time
+    private static void writeStoredEntry(ZipOutputStream zos,
+                                         String name,
+                                         byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
 
-        TrackedIO.writeToStream(image, zos, "PNG", pt);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
 
+        zos.putNextEntry(entry);
+        zos.write(data);
         zos.closeEntry();
-        return stackXML;
     }
 
     public static Composition read(File file) throws IOException, ParserConfigurationException, SAXException {
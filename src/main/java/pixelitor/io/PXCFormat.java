@@ -18,6 +18,8 @@
 package pixelitor.io;
 
 import pixelitor.Composition;
+import pixelitor.ThreadPool;
+import pixelitor.layers.ImageLayer;
 import pixelitor.utils.Messages;
 import pixelitor.utils.ProgressTracker;
 import pixelitor.utils.StatusBarProgressTracker;
@@ -25,39 +27,92 @@ import pixelitor.utils.SubtaskProgressTracker;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static pixelitor.utils.ImageUtils.convertToARGB;
 import static pixelitor.utils.ImageUtils.getPixelsAsArray;
+import static pixelitor.utils.ImageUtils.hasPackedIntArray;
 
 /**
  * PXC file format support.
+ *
+ * Version 3 files contain a gzipped object stream in which
+ * every pixel was written with a separate writeInt call.
+ * Version 4 files contain an uncompressed object stream,
+ * but the layer pixels are stored as row-predicted,
+ * deflated blocks of little-endian bytes.
+ * Version 5 files start with an index table of these image
+ * blocks, followed by the object stream and the blocks themselves,
+ * so that the images can be decoded in parallel. The blocks
+ * can be in any order, the index contains their positions.
  */
 public class PXCFormat {
-    private static final int CURRENT_PXC_VERSION_NUMBER = 0x03;
+    private static final int CURRENT_PXC_VERSION_NUMBER = 0x05;
+    private static final int LAST_GZIPPED_VERSION_NUMBER = 0x03;
+    private static final int FIRST_INDEXED_VERSION_NUMBER = 0x05;
+
+    // the identification bytes and the version byte
+    private static final int HEADER_SIZE = 3;
+
+    // the offset (long) and the length (int) of an image block
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    // the approximate size of the pixel bands that are encoded at once
+    private static final int BAND_BYTES = 1024 * 1024;
+
+    // the maximum size of a compressed chunk in the stream
+    private static final int CHUNK_BYTES = 64 * 1024;
 
-    // tracks the reading-writing of the whole file
-    private static ProgressTracker mainPT;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
-    private static double workRatioForOneImage;
+    private static int compressionLevel = Deflater.BEST_SPEED;
 
     private PXCFormat() {
     }
 
     public static Composition read(File file) throws NotPxcFormatException {
         long fileSize = file.length();
-        mainPT = new StatusBarProgressTracker(
+        ProgressTracker mainPT = new StatusBarProgressTracker(
                 "Reading " + file.getName(), (int) fileSize);
         Composition comp = null;
         try (InputStream is = new ProgressTrackingInputStream(
@@ -85,20 +140,20 @@ public class PXCFormat {
                         .getName() + " is in an obsolete pxc format, " +
                         "it can only be opened in the old Pixelitor versions 0.9.9-1.1.2");
             }
-            if (versionByte > 3) {
+            if (versionByte > CURRENT_PXC_VERSION_NUMBER) {
                 throw new NotPxcFormatException(file.getName() + " has unknown version byte " + versionByte);
             }
+            var context = new ReadContext(versionByte, mainPT);
 
-            try (GZIPInputStream gs = new GZIPInputStream(is)) {
-                try (ObjectInput ois = new ObjectInputStream(gs)) {
-                    comp = (Composition) ois.readObject();
-                    mainPT.finished();
-                    mainPT = null;
-                    
-                    // file is transient in Composition because the pxc file can be renamed
-                    comp.setFile(file);
-                }
+            if (versionByte >= FIRST_INDEXED_VERSION_NUMBER) {
+                comp = readIndexed(file, context);
+            } else {
+                comp = readStream(is, context);
             }
+            mainPT.finished();
+
+            // file is transient in Composition because the pxc file can be renamed
+            comp.setFile(file);
         } catch (IOException | ClassNotFoundException e) {
             Messages.showException(e);
         }
@@ -106,35 +161,227 @@ public class PXCFormat {
         return comp;
     }
 
+    private static Composition readStream(InputStream is, ReadContext context)
+            throws IOException, ClassNotFoundException {
+        InputStream dataStream;
+        if (context.version <= LAST_GZIPPED_VERSION_NUMBER) {
+            dataStream = new GZIPInputStream(is);
+        } else {
+            dataStream = new BufferedInputStream(is, BUFFER_SIZE);
+        }
+        try (ObjectInput ois = new PxcObjectInputStream(dataStream, context)) {
+            return (Composition) ois.readObject();
+        }
+    }
+
+    /**
+     * Reads a file that has an index table of the image blocks.
+     * The image blocks are decoded in parallel on the {@link ThreadPool}
+     * while the layer structure is deserialized on this thread.
+     */
+    private static Composition readIndexed(File file, ReadContext context)
+            throws IOException, ClassNotFoundException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            int numImages = readFully(channel, HEADER_SIZE, 4).getInt();
+            int indexSize = 4 + numImages * INDEX_ENTRY_SIZE + 4;
+            ByteBuffer index = readFully(channel, HEADER_SIZE + 4, indexSize - 4);
+
+            List<CompletableFuture<BufferedImage>> futures = new ArrayList<>(numImages);
+            int[] lengths = new int[numImages];
+            for (int i = 0; i < numImages; i++) {
+                long offset = index.getLong();
+                int length = index.getInt();
+                lengths[i] = length;
+                futures.add(CompletableFuture.supplyAsync(
+                        () -> decodeImage(channel, offset, length),
+                        ThreadPool.getExecutor()));
+            }
+            int objectStreamLength = index.getInt();
+            int objectStreamStart = HEADER_SIZE + indexSize;
+            byte[] objectStream = readFully(channel, objectStreamStart, objectStreamLength).array();
+            context.mainPT.unitsDone(objectStreamStart + objectStreamLength);
+
+            context.decodedImages = futures;
+            context.blockLengths = lengths;
+            try (ObjectInput ois = new PxcObjectInputStream(
+                    new ByteArrayInputStream(objectStream), context)) {
+                return (Composition) ois.readObject();
+            }
+        }
+    }
+
+    private static BufferedImage decodeImage(FileChannel channel,
+                                             long offset, int length) {
+        try {
+            return decodeImage(readFully(channel, offset, length).array());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes an image encoded by {@link #encodeImage(BufferedImage)}
+     */
+    public static BufferedImage decodeImage(byte[] block) throws IOException {
+        return readImage(new DataInputStream(new ByteArrayInputStream(block)));
+    }
+
+    private static ByteBuffer readFully(FileChannel channel,
+                                        long position,
+                                        int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            // positional reads, so that the channel can be shared between threads
+            int numRead = channel.read(buffer, position + buffer.position());
+            if (numRead < 0) {
+                throw new EOFException("unexpected end of the pxc file");
+            }
+        }
+        return buffer.flip();
+    }
+
     public static void write(Composition comp, File f) {
-        mainPT = new StatusBarProgressTracker(
+        ProgressTracker mainPT = new StatusBarProgressTracker(
                 "Writing " + f.getName(), 100);
-        int numImages = comp.calcNumImages();
-        if (numImages > 0) {
-            workRatioForOneImage = 1.0 / numImages;
-        } else {
-            workRatioForOneImage = -1;
+        var context = new WriteContext(comp.calcNumImages(), mainPT);
+        encodeImages(comp, context);
+        try {
+            // the image blocks are written after the object stream,
+            // therefore the composition must be serialized first
+            var bos = new ByteArrayOutputStream();
+            try (ObjectOutput oos = new PxcObjectOutputStream(bos, context)) {
+                oos.writeObject(comp);
+            }
+            writeIndexed(f, bos.toByteArray(), context);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mainPT.finished();
+    }
+
+    /**
+     * Sets the {@link Deflater} compression level used for the layer pixels.
+     */
+    public static void setCompressionLevel(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level = " + level);
+        }
+        compressionLevel = level;
+    }
+
+    /**
+     * Writes the object stream and the image blocks. The blocks are written
+     * in the order in which their encoding finishes, and each one is released
+     * as soon as it is written. The space of the index table is reserved at
+     * the start of the file, and it is filled in when the positions of all
+     * blocks are known.
+     */
+    private static void writeIndexed(File f, byte[] objectStream,
+                                     WriteContext context) throws IOException {
+        List<CompletableFuture<byte[]>> encodedImages = context.encodedImages;
+        int numImages = encodedImages.size();
+        int indexSize = 4 + numImages * INDEX_ENTRY_SIZE + 4;
+
+        BlockingQueue<Integer> finished = new LinkedBlockingQueue<>();
+        for (int i = 0; i < numImages; i++) {
+            int index = i;
+            encodedImages.get(i).whenComplete((block, e) -> finished.add(index));
         }
-        try (FileOutputStream fos = new FileOutputStream(f)) {
-            fos.write(new byte[]{(byte) 0xAB, (byte) 0xC4, CURRENT_PXC_VERSION_NUMBER});
 
-            try (GZIPOutputStream gz = new GZIPOutputStream(fos)) {
-                try (ObjectOutput oos = new ObjectOutputStream(gz)) {
-                    oos.writeObject(comp);
-                    oos.flush();
+        long[] offsets = new long[numImages];
+        int[] lengths = new int[numImages];
+        try (FileChannel channel = FileChannel.open(f.toPath(),
+                CREATE, WRITE, TRUNCATE_EXISTING)) {
+            long position = HEADER_SIZE + indexSize;
+            position += writeFully(channel, ByteBuffer.wrap(objectStream), position);
+
+            for (int n = 0; n < numImages; n++) {
+                int i = finished.take();
+                byte[] block;
+                try {
+                    block = encodedImages.get(i).join();
+                } catch (CompletionException e) {
+                    throw new IOException(e.getCause());
                 }
+                encodedImages.set(i, null);
+
+                offsets[i] = position;
+                lengths[i] = block.length;
+                position += writeFully(channel, ByteBuffer.wrap(block), position);
+
+                // the progress is tracked here, because
+                // the trackers are not thread-safe
+                context.getImageTracker().unitsDone(100);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + indexSize);
+            header.put((byte) 0xAB).put((byte) 0xC4).put((byte) CURRENT_PXC_VERSION_NUMBER);
+            header.putInt(numImages);
+            for (int i = 0; i < numImages; i++) {
+                header.putLong(offsets[i]).putInt(lengths[i]);
+            }
+            header.putInt(objectStream.length);
+            writeFully(channel, header.flip(), 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("writing " + f.getName() + " was interrupted");
+        }
+    }
+
+    private static int writeFully(FileChannel channel,
+                                  ByteBuffer buffer,
+                                  long position) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        return length;
+    }
+
+    /**
+     * Starts encoding the images of all image layers and masks concurrently
+     * on the {@link ThreadPool}, so that the serialization of the
+     * composition only has to refer to them by their index.
+     */
+    private static void encodeImages(Composition comp, WriteContext context) {
+        comp.forEachLayer(layer -> {
+            if (layer instanceof ImageLayer) {
+                context.addImage(((ImageLayer) layer).getImage());
             }
+            if (layer.hasMask()) {
+                context.addImage(layer.getMask().getImage());
+            }
+        });
+    }
+
+    /**
+     * Encodes the given image into the deflated block format
+     * used for the layer images of pxc files
+     */
+    public static byte[] encodeImage(BufferedImage img) {
+        var bos = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bos)) {
+            writeImage(out, img);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-        mainPT.finished();
-        mainPT = null;
+        return bos.toByteArray();
     }
 
     public static void serializeImage(ObjectOutputStream out,
                                       BufferedImage img) throws IOException {
         assert img != null;
+        WriteContext context = ((PxcObjectOutputStream) out).context;
+        // if it's not found among the layer images, it's encoded now
+        out.writeInt(context.addImage(img));
+    }
+
+    private static void writeImage(DataOutput out, BufferedImage img) throws IOException {
         int imgType = img.getType();
+        if (imgType != TYPE_BYTE_GRAY && !hasPackedIntArray(img)) {
+            img = convertToARGB(img, false);
+            imgType = TYPE_INT_ARGB;
+        }
         int imgWidth = img.getWidth();
         int imgHeight = img.getHeight();
 
@@ -142,33 +389,154 @@ public class PXCFormat {
         out.writeInt(imgHeight);
         out.writeInt(imgType);
 
-        ProgressTracker pt = getImageTracker();
+        WritableRaster raster = img.getRaster();
+        boolean gray = imgType == TYPE_BYTE_GRAY;
+        int bytesPerPixel = gray ? 1 : 4;
+        int rowBytes = imgWidth * bytesPerPixel;
+        int bandHeight = calcBandHeight(rowBytes, imgHeight);
 
-        if (imgType == TYPE_BYTE_GRAY) {
-            ImageIO.write(img, "PNG", out);
-        } else {
-            int[] pixels = getPixelsAsArray(img);
-            int length = pixels.length;
-            int progress = 0;
-            int fiveUnits = length / 20;
-            for (int pixel : pixels) {
-                out.writeInt(pixel);
-                progress++;
-                if (progress > fiveUnits) {
-                    pt.unitsDone(5);
-                    progress = 0;
+        byte[] bytes = new byte[bandHeight * rowBytes];
+        int[] ints = gray ? null : new int[bandHeight * imgWidth];
+        byte[] chunk = new byte[CHUNK_BYTES];
+
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            for (int y = 0; y < imgHeight; y += bandHeight) {
+                int rows = Math.min(bandHeight, imgHeight - y);
+                int length = rows * rowBytes;
+                if (gray) {
+                    raster.getDataElements(0, y, imgWidth, rows, bytes);
+                } else {
+                    raster.getDataElements(0, y, imgWidth, rows, ints);
+                    ByteBuffer.wrap(bytes, 0, length)
+                            .order(ByteOrder.LITTLE_ENDIAN)
+                            .asIntBuffer()
+                            .put(ints, 0, rows * imgWidth);
+                }
+                predictRows(bytes, rows, rowBytes, bytesPerPixel);
+
+                deflater.setInput(bytes, 0, length);
+                while (!deflater.needsInput()) {
+                    writeChunk(out, deflater, chunk);
                 }
             }
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeChunk(out, deflater, chunk);
+            }
+            // a zero-length chunk marks the end of the pixels
+            out.writeInt(0);
+        } finally {
+            deflater.end();
         }
     }
 
-    // when deserializing, the progress tracking
-    // is done at the InputStream level, not here
+    private static void writeChunk(DataOutput out,
+                                   Deflater deflater,
+                                   byte[] chunk) throws IOException {
+        int numBytes = deflater.deflate(chunk);
+        if (numBytes > 0) {
+            out.writeInt(numBytes);
+            out.write(chunk, 0, numBytes);
+        }
+    }
+
+    // when deserializing older versions, the progress
+    // tracking is done at the InputStream level, not here
     public static BufferedImage deserializeImage(ObjectInputStream in) throws IOException {
+        ReadContext context = ((PxcObjectInputStream) in).context;
+        if (context.version >= FIRST_INDEXED_VERSION_NUMBER) {
+            int imageIndex = in.readInt();
+            BufferedImage img;
+            try {
+                img = context.decodedImages.get(imageIndex).join();
+            } catch (CompletionException e) {
+                throw new IOException(e.getCause());
+            }
+            context.mainPT.unitsDone(context.blockLengths[imageIndex]);
+            return img;
+        }
+        if (context.version <= LAST_GZIPPED_VERSION_NUMBER) {
+            int width = in.readInt();
+            int height = in.readInt();
+            int type = in.readInt();
+            return deserializeV3Image(in, width, height, type);
+        }
+        return readImage(in);
+    }
+
+    private static BufferedImage readImage(DataInput in) throws IOException {
         int width = in.readInt();
         int height = in.readInt();
         int type = in.readInt();
 
+        BufferedImage img = new BufferedImage(width, height, type);
+        WritableRaster raster = img.getRaster();
+        boolean gray = type == TYPE_BYTE_GRAY;
+        int bytesPerPixel = gray ? 1 : 4;
+        int rowBytes = width * bytesPerPixel;
+        int bandHeight = calcBandHeight(rowBytes, height);
+
+        byte[] bytes = new byte[bandHeight * rowBytes];
+        int[] ints = gray ? null : new int[bandHeight * width];
+        byte[] chunk = new byte[CHUNK_BYTES];
+
+        Inflater inflater = new Inflater();
+        try {
+            for (int y = 0; y < height; y += bandHeight) {
+                int rows = Math.min(bandHeight, height - y);
+                int length = rows * rowBytes;
+                int filled = 0;
+                while (filled < length) {
+                    if (inflater.needsInput()) {
+                        chunk = readChunk(in, inflater, chunk);
+                    }
+                    filled += inflater.inflate(bytes, filled, length - filled);
+                }
+                unpredictRows(bytes, rows, rowBytes, bytesPerPixel);
+
+                if (gray) {
+                    raster.setDataElements(0, y, width, rows, bytes);
+                } else {
+                    ByteBuffer.wrap(bytes, 0, length)
+                            .order(ByteOrder.LITTLE_ENDIAN)
+                            .asIntBuffer()
+                            .get(ints, 0, rows * width);
+                    raster.setDataElements(0, y, width, rows, ints);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+
+        // skip the end of the deflate stream, up to the zero-length chunk
+        int numBytes;
+        while ((numBytes = in.readInt()) != 0) {
+            in.skipBytes(numBytes);
+        }
+        return img;
+    }
+
+    private static byte[] readChunk(DataInput in,
+                                    Inflater inflater,
+                                    byte[] chunk) throws IOException {
+        int numBytes = in.readInt();
+        if (numBytes <= 0) {
+            throw new IOException("unexpected end of the pixel data");
+        }
+        if (numBytes > chunk.length) {
+            chunk = new byte[numBytes];
+        }
+        in.readFully(chunk, 0, numBytes);
+        inflater.setInput(chunk, 0, numBytes);
+        return chunk;
+    }
+
+    private static BufferedImage deserializeV3Image(ObjectInputStream in,
+                                                    int width, int height,
+                                                    int type) throws IOException {
         if (type == TYPE_BYTE_GRAY) {
             return ImageIO.read(in);
         } else {
@@ -183,12 +551,126 @@ public class PXCFormat {
         }
     }
 
-    private static ProgressTracker getImageTracker() {
-        if (workRatioForOneImage == -1) {
-            // a pxc without images
-            return ProgressTracker.NULL_TRACKER;
-        } else {
-            return new SubtaskProgressTracker(workRatioForOneImage, mainPT);
+    private static int calcBandHeight(int rowBytes, int height) {
+        return Math.max(1, Math.min(height, BAND_BYTES / Math.max(1, rowBytes)));
+    }
+
+    /**
+     * Replaces each byte with its difference from the corresponding
+     * byte of the previous pixel in the same row (the "Sub" filter of PNG),
+     * which makes the data much more compressible.
+     */
+    private static void predictRows(byte[] bytes, int rows,
+                                    int rowBytes, int bytesPerPixel) {
+        for (int row = 0; row < rows; row++) {
+            int rowStart = row * rowBytes;
+            for (int i = rowStart + rowBytes - 1; i >= rowStart + bytesPerPixel; i--) {
+                bytes[i] -= bytes[i - bytesPerPixel];
+            }
+        }
+    }
+
+    private static void unpredictRows(byte[] bytes, int rows,
+                                      int rowBytes, int bytesPerPixel) {
+        for (int row = 0; row < rows; row++) {
+            int rowStart = row * rowBytes;
+            int rowEnd = rowStart + rowBytes;
+            for (int i = rowStart + bytesPerPixel; i < rowEnd; i++) {
+                bytes[i] += bytes[i - bytesPerPixel];
+            }
+        }
+    }
+
+    /**
+     * The state of reading one pxc file, so that
+     * several files can be read at the same time.
+     */
+    private static class ReadContext {
+        private final int version;
+
+        // tracks the reading of the whole file
+        private final ProgressTracker mainPT;
+
+        // the images and the image block lengths of an indexed file
+        private List<CompletableFuture<BufferedImage>> decodedImages = List.of();
+        private int[] blockLengths;
+
+        private ReadContext(int version, ProgressTracker mainPT) {
+            this.version = version;
+            this.mainPT = mainPT;
+        }
+    }
+
+    /**
+     * The state of writing one pxc file, so that
+     * several files can be written at the same time.
+     */
+    private static class WriteContext {
+        // the image blocks being encoded and the indices of the images in that list
+        private final List<CompletableFuture<byte[]>> encodedImages = new ArrayList<>();
+        private final Map<BufferedImage, Integer> imageIndices = new IdentityHashMap<>();
+
+        // tracks the writing of the whole file
+        private final ProgressTracker mainPT;
+
+        private final double workRatioForOneImage;
+
+        private WriteContext(int numImages, ProgressTracker mainPT) {
+            this.mainPT = mainPT;
+            if (numImages > 0) {
+                workRatioForOneImage = 1.0 / numImages;
+            } else {
+                workRatioForOneImage = -1;
+            }
+        }
+
+        /**
+         * Starts encoding the given image if it wasn't added
+         * before, and returns its index
+         */
+        private int addImage(BufferedImage img) {
+            Integer index = imageIndices.get(img);
+            if (index != null) {
+                return index;
+            }
+            index = encodedImages.size();
+            encodedImages.add(CompletableFuture.supplyAsync(
+                    () -> encodeImage(img), ThreadPool.getExecutor()));
+            imageIndices.put(img, index);
+            return index;
+        }
+
+        private ProgressTracker getImageTracker() {
+            if (workRatioForOneImage == -1) {
+                // a pxc without images
+                return ProgressTracker.NULL_TRACKER;
+            } else {
+                return new SubtaskProgressTracker(workRatioForOneImage, mainPT);
+            }
+        }
+    }
+
+    /**
+     * Makes the {@link ReadContext} available for {@link #deserializeImage}
+     */
+    private static class PxcObjectInputStream extends ObjectInputStream {
+        private final ReadContext context;
+
+        private PxcObjectInputStream(InputStream in, ReadContext context) throws IOException {
+            super(in);
+            this.context = context;
+        }
+    }
+
+    /**
+     * Makes the {@link WriteContext} available for {@link #serializeImage}
+     */
+    private static class PxcObjectOutputStream extends ObjectOutputStream {
+        private final WriteContext context;
+
+        private PxcObjectOutputStream(OutputStream out, WriteContext context) throws IOException {
+            super(out);
+            this.context = context;
         }
     }
 }
@@ -20,6 +20,7 @@ package pixelitor.layers;
 import pixelitor.Composition;
 import pixelitor.filters.Filter;
 import pixelitor.filters.gui.FilterWithGUI;
+import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Utils;
 
 import java.awt.Dimension;
@@ -28,6 +29,7 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.lang.ref.SoftReference;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -41,6 +43,13 @@ public class AdjustmentLayer extends Layer {
 
     private final Filter filter;
 
+    // The last result of the filter and the version of the composite
+    // bellow from which it was calculated. The settings of the filter
+    // can't be edited yet (see the class comment), so they are not
+    // part of the key. The cached image is never modified.
+    private transient SoftReference<BufferedImage> resultRef;
+    private transient long resultVersion;
+
     public AdjustmentLayer(Composition comp, String name, Filter filter) {
         super(comp, name, null);
         this.filter = filter;
@@ -74,6 +83,51 @@ public class AdjustmentLayer extends Layer {
         // do nothing
     }
 
+    @Override
+    protected BufferedImage adjustImage(BufferedImage src, long bellowVersion, boolean modified) {
+        if (bellowVersion == UNKNOWN_VERSION) {
+            return actOnImageFromLayerBellow(src);
+        }
+
+        BufferedImage cached = getCachedResult(src, bellowVersion);
+        if (cached != null) {
+            if (!modified) {
+                return cached;
+            }
+            BufferedImage copy = ImageUtils.copyImage(cached);
+            if (copy != null) {
+                return copy;
+            }
+        }
+
+        BufferedImage result = actOnImageFromLayerBellow(src);
+        if (result != src) {
+            BufferedImage toCache = modified ? ImageUtils.copyImage(result) : result;
+            if (toCache != null) {
+                resultRef = new SoftReference<>(toCache);
+                resultVersion = bellowVersion;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the cached result of the filter, or null if it
+     * is not available or it was calculated from another image.
+     */
+    BufferedImage getCachedResult(BufferedImage src, long bellowVersion) {
+        if (resultRef == null || resultVersion != bellowVersion) {
+            return null;
+        }
+        BufferedImage cached = resultRef.get();
+        if (cached == null
+                || cached.getWidth() != src.getWidth()
+                || cached.getHeight() != src.getHeight()) {
+            return null;
+        }
+        return cached;
+    }
+
     @Override
     public BufferedImage actOnImageFromLayerBellow(BufferedImage src) {
         return filter.transformImage(src);
@@ -55,6 +55,7 @@ import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.ref.SoftReference;
 import java.util.concurrent.CompletableFuture;
 
 import static java.awt.RenderingHints.KEY_INTERPOLATION;
@@ -62,6 +63,7 @@ import static java.awt.RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 import static pixelitor.ChangeReason.REPEAT_LAST;
+import static pixelitor.Composition.ImageChangeActions.FULL;
 import static pixelitor.Composition.ImageChangeActions.INVALIDATE_CACHE;
 import static pixelitor.Composition.ImageChangeActions.REPAINT;
 import static pixelitor.compactions.Flip.Direction.HORIZONTAL;
@@ -108,6 +110,13 @@ public class ImageLayer extends ContentLayer implements Drawable {
      */
     protected transient BufferedImage image = null;
 
+    /**
+     * The image that is shared with the layer that this
+     * layer was duplicated from by {@link #duplicateSharingImages()},
+     * or null if the image is not shared.
+     */
+    protected transient BufferedImage sharedImage;
+
     /**
      * The image shown during filter previews.
      */
@@ -130,6 +139,12 @@ public class ImageLayer extends ContentLayer implements Drawable {
      */
     private transient boolean imageContentChanged = false;
 
+    /**
+     * The cached product of the visible image and the layer mask.
+     * It's softly referenced, because it can always be recalculated.
+     */
+    private transient SoftReference<MaskedImage> maskedImageRef;
+
     private ImageLayer(Composition comp, String name, Layer parent) {
         super(comp, name, parent);
     }
@@ -255,6 +270,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
         filterSourceImage = null;
         image = null;
         trimmedBoundingBox = null;
+        maskedImageRef = null;
 
         in.defaultReadObject();
         setImage(PXCFormat.deserializeImage(in));
@@ -280,6 +296,44 @@ public class ImageLayer extends ContentLayer implements Drawable {
         return d;
     }
 
+    /**
+     * Unlike the other layer duplicates, this one uses the same
+     * image (and mask image), because the transformations
+     * of the compositions replace the images anyway.
+     */
+    @Override
+    public ImageLayer duplicateSharingImages() {
+        ImageLayer d = new ImageLayer(comp, image, name,
+                null, translationX, translationY);
+        d.sharedImage = image;
+        d.setOpacity(getOpacity(), false, false, true);
+        d.setBlendingMode(getBlendingMode(), false, false, false);
+
+        duplicateMask(d, true, true);
+
+        return d;
+    }
+
+    /**
+     * Copies the image if it's still the one shared with the
+     * layer that this layer was duplicated from, so that
+     * from now on it can be modified without affecting that layer.
+     */
+    public void unshareImage() {
+        if (sharedImage == null) {
+            return;
+        }
+        if (image == sharedImage) {
+            BufferedImage imageCopy = copyImage(image);
+            if (imageCopy == null) {
+                // there was an out of memory error
+                throw new IllegalStateException("could not copy the image of " + name);
+            }
+            setImage(imageCopy);
+        }
+        sharedImage = null;
+    }
+
     @Override
     public BufferedImage getImage() {
         return image;
@@ -293,7 +347,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
         image = replaceSelectedPart(image, newImage, isUndoRedo);
         imageRefChanged();
 
-        comp.imageChanged(INVALIDATE_CACHE);
+        comp.layerImageChanged(this, INVALIDATE_CACHE);
     }
 
     /**
@@ -360,10 +414,11 @@ public class ImageLayer extends ContentLayer implements Drawable {
 
         assert Assertions.checkRasterMinimum(newImage);
 
-        comp.imageChanged(INVALIDATE_CACHE);
+        comp.layerImageChanged(this, INVALIDATE_CACHE);
         invalidateTrimCache();
 
-        if (oldRef != null && oldRef != image) {
+        // the shared image is still used by another layer
+        if (oldRef != null && oldRef != image && oldRef != sharedImage) {
             oldRef.flush();
         }
     }
@@ -414,7 +469,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
         imageRefChanged();
 
         previewImage = null;
-        comp.imageChanged();
+        comp.layerImageChanged(this, FULL);
     }
 
     @Override
@@ -422,17 +477,21 @@ public class ImageLayer extends ContentLayer implements Drawable {
         assert state == PREVIEW || state == SHOW_ORIGINAL;
         assert previewImage != null;
 
+        BufferedImage backupImage = null;
         if (imageContentChanged) {
-            var edit = new ImageEdit(filterName, comp, this,
-                    getSelectedSubImage(true),
-                    false, true);
-            History.add(edit);
+            backupImage = getSelectedSubImage(true);
         }
 
         image = previewImage;
         imageRefChanged();
 
         if (imageContentChanged) {
+            // the edit is created after the image change, so
+            // that it can store only the changed tiles
+            var edit = new ImageEdit(filterName, comp, this,
+                    backupImage, false, true);
+            History.add(edit);
+
             updateIconImage();
             invalidateTrimCache();
         }
@@ -443,7 +502,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
         setState(NORMAL);
 
         if (wasShowOriginal) {
-            comp.imageChanged();
+            comp.layerImageChanged(this, FULL);
         }
     }
 
@@ -494,7 +553,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
 
             if (shouldRefresh) {
                 imageRefChanged();
-                comp.imageChanged();
+                comp.layerImageChanged(this, FULL);
             }
         } else {
             imageContentChanged = true; // history will be necessary
@@ -502,7 +561,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
             setPreviewWithSelection(img);
             setState(PREVIEW);
             imageRefChanged();
-            comp.imageChanged();
+            comp.layerImageChanged(this, FULL);
         }
     }
 
@@ -548,7 +607,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
         // not the actual one
         filterSourceImage = null;
         updateIconImage();
-        comp.imageChanged();
+        comp.layerImageChanged(this, FULL);
         invalidateTrimCache();
         Tools.editedObjectChanged(this);
     }
@@ -1116,6 +1175,73 @@ public class ImageLayer extends ContentLayer implements Drawable {
         }
     }
 
+    /**
+     * Returns the image that {@link #paintLayerOnGraphics} would simply
+     * draw at the translation of this layer, or null if painting this
+     * layer also involves a brush stroke or shape that is being drawn.
+     * Used by the {@link LayerStackCompositor}.
+     */
+    BufferedImage getDirectlyPaintedImage() {
+        if (getClass() != ImageLayer.class || tmpDrawingLayer != null) {
+            return null;
+        }
+        if (Tools.isShapesDrawing() && isActive() && !isMaskEditing()) {
+            return null;
+        }
+        return getVisibleImage();
+    }
+
+    @Override
+    protected BufferedImage getMaskedImage(boolean firstVisibleLayer) {
+        BufferedImage maskedImage = getCachedMaskedImage();
+        if (maskedImage == null) {
+            maskedImage = createMaskedImage(firstVisibleLayer);
+            cacheMaskedImage(maskedImage);
+        }
+        return maskedImage;
+    }
+
+    /**
+     * Returns the cached product of the visible image and the
+     * layer mask, or null if it's not available or out of date.
+     */
+    BufferedImage getCachedMaskedImage() {
+        if (maskedImageRef == null || !canCacheMaskedImage()) {
+            return null;
+        }
+        MaskedImage cached = maskedImageRef.get();
+        if (cached == null || !cached.isValidFor(getVisibleImage(), this, mask)) {
+            maskedImageRef = null;
+            return null;
+        }
+        return cached.getImage();
+    }
+
+    /**
+     * Caches the given product of the visible image and the layer mask,
+     * unless they are just being changed by a brush or shape.
+     */
+    void cacheMaskedImage(BufferedImage maskedImage) {
+        if (canCacheMaskedImage()) {
+            maskedImageRef = new SoftReference<>(new MaskedImage(
+                    maskedImage, getVisibleImage(), this, mask));
+        }
+    }
+
+    boolean canCacheMaskedImage() {
+        return useMask()
+                && getDirectlyPaintedImage() != null
+                && mask.hasStableTransparencyImage();
+    }
+
+    /**
+     * Discards the cached masked image, because
+     * the pixels of the layer or of its mask changed.
+     */
+    public void invalidateMaskedImage() {
+        maskedImageRef = null;
+    }
+
     protected void paintDraggedShapesIntoActiveLayer(Graphics2D g,
                                                      BufferedImage visibleImage,
                                                      boolean firstVisibleLayer) {
@@ -1186,7 +1312,7 @@ public class ImageLayer extends ContentLayer implements Drawable {
             setState(PREVIEW);
         }
         imageRefChanged();
-        comp.imageChanged(REPAINT);
+        comp.layerImageChanged(this, REPAINT);
     }
 
     private void setState(State newState) {
@@ -58,6 +58,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.awt.AlphaComposite.DstIn;
 import static java.awt.AlphaComposite.SRC_OVER;
@@ -71,6 +72,12 @@ import static pixelitor.Composition.ImageChangeActions.FULL;
 public abstract class Layer implements Serializable {
     private static final long serialVersionUID = 2L;
 
+    // the version given when it's not known
+    // which image is passed to applyLayer
+    public static final long UNKNOWN_VERSION = 0;
+
+    private static final AtomicLong versionCounter = new AtomicLong();
+
     protected Composition comp;
     protected Canvas canvas;
     protected String name;
@@ -104,6 +111,9 @@ public abstract class Layer implements Serializable {
      */
     private transient boolean maskEditing = false;
 
+    // changes whenever the pixels of this layer (or of its mask) change
+    private transient long version = nextVersion();
+
     // can be called on any thread
     Layer(Composition comp, String name, Layer owner) {
         assert comp != null;
@@ -130,6 +140,7 @@ public abstract class Layer implements Serializable {
         // defaults for transient fields
         maskEditing = false;
         ui = null;
+        version = nextVersion();
 
         in.defaultReadObject();
         layerChangeListeners = new ArrayList<>();
@@ -154,6 +165,24 @@ public abstract class Layer implements Serializable {
         return new LayerButton(this);
     }
 
+    /**
+     * Returns a new version stamp, which is larger than all the earlier ones
+     */
+    public static long nextVersion() {
+        return versionCounter.incrementAndGet();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Called when the pixels of this layer or of its mask were changed.
+     */
+    public void updateVersion() {
+        version = nextVersion();
+    }
+
     public boolean isVisible() {
         return visible;
     }
@@ -194,10 +223,23 @@ public abstract class Layer implements Serializable {
      */
     public abstract Layer duplicate(boolean compCopy);
 
+    /**
+     * Duplicates this layer for a composition copy that is transformed right
+     * away. Image layers and masks can share their images with the duplicate
+     * until {@link Composition#unshareImages()} is called.
+     */
+    public Layer duplicateSharingImages() {
+        return duplicate(true);
+    }
+
     // helper method used in multiple subclasses
     protected void duplicateMask(Layer duplicate, boolean compCopy) {
+        duplicateMask(duplicate, compCopy, false);
+    }
+
+    protected void duplicateMask(Layer duplicate, boolean compCopy, boolean shareImage) {
         if (hasMask()) {
-            LayerMask newMask = mask.duplicate(duplicate);
+            LayerMask newMask = mask.duplicate(duplicate, shareImage);
             if (compCopy) {
                 // we could be running outside the EDT, and anyway it is
                 // not necessary to add the duplicate to the GUI
@@ -479,8 +521,20 @@ public abstract class Layer implements Serializable {
     public BufferedImage applyLayer(Graphics2D g,
                                     BufferedImage imageSoFar,
                                     boolean firstVisibleLayer) {
+        return applyLayer(g, imageSoFar, firstVisibleLayer, UNKNOWN_VERSION);
+    }
+
+    /**
+     * Like the other applyLayer, but if imageSoFar is the canvas-sized
+     * composite of the layers bellow this layer, then its version can also
+     * be given, which allows adjustment layers to reuse their earlier results.
+     */
+    public BufferedImage applyLayer(Graphics2D g,
+                                    BufferedImage imageSoFar,
+                                    boolean firstVisibleLayer,
+                                    long bellowVersion) {
         if (isAdjustment) { // adjustment layer or watermarked text layer
-            return adjustImageWithMasksAndBlending(imageSoFar, firstVisibleLayer);
+            return adjustImageWithMasksAndBlending(imageSoFar, firstVisibleLayer, bellowVersion);
         } else {
             if (!useMask()) {
                 setupDrawingComposite(g, firstVisibleLayer);
@@ -497,14 +551,27 @@ public abstract class Layer implements Serializable {
     // set up according to the transparency and blending mode
     public abstract void paintLayerOnGraphics(Graphics2D g, boolean firstVisibleLayer);
 
+    private void paintLayerOnGraphicsWithMask(Graphics2D g, boolean firstVisibleLayer) {
+        // 1. get the masked image
+        BufferedImage maskedImage = getMaskedImage(firstVisibleLayer);
+
+        // 2. paint the masked image onto the graphics
+//            g.drawImage(maskedImage, getTx(), getTy(), null);
+        setupDrawingComposite(g, firstVisibleLayer);
+        g.drawImage(maskedImage, 0, 0, null);
+    }
+
     /**
      * Returns the masked image for the non-adjustment case.
      * The returned image is canvas-sized, and the masks and the
-     * translations are taken into account
+     * translations are taken into account. Subclasses can return
+     * a cached image here, but it must not be modified by the caller.
      */
-    private void paintLayerOnGraphicsWithMask(Graphics2D g, boolean firstVisibleLayer) {
-        // 1. create the masked image
-        // TODO the masked image should be cached
+    protected BufferedImage getMaskedImage(boolean firstVisibleLayer) {
+        return createMaskedImage(firstVisibleLayer);
+    }
+
+    protected final BufferedImage createMaskedImage(boolean firstVisibleLayer) {
         BufferedImage maskedImage = new BufferedImage(
                 canvas.getImWidth(), canvas.getImHeight(), TYPE_INT_ARGB);
         Graphics2D mig = maskedImage.createGraphics();
@@ -513,22 +580,23 @@ public abstract class Layer implements Serializable {
         mig.drawImage(mask.getTransparencyImage(),
                 mask.getTx(), mask.getTy(), null);
         mig.dispose();
-
-        // 2. paint the masked image onto the graphics
-//            g.drawImage(maskedImage, getTx(), getTy(), null);
-        setupDrawingComposite(g, firstVisibleLayer);
-        g.drawImage(maskedImage, 0, 0, null);
+        return maskedImage;
     }
 
     /**
      * Used by adjustment layers and watermarked text layers
      */
     private BufferedImage adjustImageWithMasksAndBlending(BufferedImage imgSoFar,
-                                                          boolean isFirstVisibleLayer) {
+                                                          boolean isFirstVisibleLayer,
+                                                          long bellowVersion) {
         if (isFirstVisibleLayer) {
             return imgSoFar; // there's nothing we can do
         }
-        BufferedImage transformed = actOnImageFromLayerBellow(imgSoFar);
+        // the transformed image is modified by the mask, or it becomes
+        // the image on which the layers above this one are painted,
+        // but in the case of blending it is only read
+        boolean modified = useMask() || isNormalAndOpaque();
+        BufferedImage transformed = adjustImage(imgSoFar, bellowVersion, modified);
         if (useMask()) {
             mask.applyToImage(transformed);
         }
@@ -543,6 +611,16 @@ public abstract class Layer implements Serializable {
         }
     }
 
+    /**
+     * Returns the result of actOnImageFromLayerBellow. Subclasses can
+     * return an earlier result if the given version of the image is known,
+     * but if the modified argument is true, then the caller will modify
+     * the returned image, so it must not be shared.
+     */
+    protected BufferedImage adjustImage(BufferedImage src, long bellowVersion, boolean modified) {
+        return actOnImageFromLayerBellow(src);
+    }
+
     /**
      * Used by adjustment layers and watermarked text layers
      */
@@ -686,7 +764,7 @@ public abstract class Layer implements Serializable {
         }
     }
 
-    private boolean useMask() {
+    boolean useMask() {
         return mask != null && maskEnabled;
     }
 
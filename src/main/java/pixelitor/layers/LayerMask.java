@@ -142,10 +142,22 @@ public class LayerMask extends ImageLayer {
      * to the given layer
      */
     public LayerMask duplicate(Layer owner) {
-        BufferedImage maskImageCopy = ImageUtils.copyImage(image);
+        return duplicate(owner, false);
+    }
+
+    /**
+     * Duplicates this layer mask, and attaches the duplicated mask
+     * to the given layer. If shareImage is true, the duplicate uses
+     * the same image until {@link ImageLayer#unshareImage()} is called.
+     */
+    public LayerMask duplicate(Layer owner, boolean shareImage) {
+        BufferedImage maskImage = shareImage ? image : ImageUtils.copyImage(image);
 
-        LayerMask d = new LayerMask(comp, maskImageCopy, owner,
+        LayerMask d = new LayerMask(comp, maskImage, owner,
                 getTx(), getTy());
+        if (shareImage) {
+            d.sharedImage = maskImage;
+        }
 
         return d;
     }
@@ -186,8 +198,16 @@ public class LayerMask extends ImageLayer {
         Tools.SHAPES.paintOverActiveLayer(g, comp);
     }
 
+    /**
+     * Returns true if {@link #getTransparencyImage} returns the same
+     * image as long as the visible mask image doesn't change.
+     */
+    boolean hasStableTransparencyImage() {
+        return !owner.isMaskEditing() || !Tools.isShapesDrawing();
+    }
+
     public BufferedImage getTransparencyImage() {
-        if (!owner.isMaskEditing() || !Tools.isShapesDrawing()) {
+        if (hasStableTransparencyImage()) {
             // simple case
             return transparencyImage;
         } else { // drawing with the shapes tool while in Ctrl-3 mode
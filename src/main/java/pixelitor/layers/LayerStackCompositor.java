@@ -0,0 +1,591 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.layers;
+
+import com.jhlabs.composite.RGBComposite;
+import com.jhlabs.composite.RGBComposite.RGBCompositeContext;
+import pixelitor.ThreadPool;
+
+import java.awt.Composite;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
+
+/**
+ * Composites consecutive image layers directly into the pixels
+ * of a composite image, in a single pass over cache-sized bands,
+ * instead of painting each layer with a separate drawImage call.
+ * The bands are composited in parallel, and masked layers are
+ * multiplied by their masks row by row, unless the layer has
+ * a cached masked image (see {@link ImageLayer#getCachedMaskedImage}).
+ *
+ * The results are the same as the results of {@link Layer#applyLayer}:
+ * the normal mode reproduces the arithmetic of the Java2D blit loops,
+ * and the other blending modes use the same {@link RGBCompositeContext}
+ * that Java2D would use. The layers that can't be composited this way
+ * (adjustment layers, text layers, layers with a brush stroke or
+ * shape drawing in progress) are still painted by Java2D.
+ */
+public final class LayerStackCompositor {
+    // the rounded 8-bit multiplication and division
+    // tables of the Java2D blit loops, indexed by (a << 8) | b
+    private static final byte[] MUL8 = new byte[256 * 256];
+    private static final byte[] DIV8 = new byte[256 * 256];
+
+    static {
+        for (int a = 1; a < 256; a++) {
+            int inc = (a << 16) | (a << 8) | a;
+            int val = inc + (1 << 23);
+            for (int b = 1; b < 256; b++) {
+                MUL8[(a << 8) | b] = (byte) (val >>> 24);
+                val += inc;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            long inc = ((0xFFL << 24) + a / 2) / a;
+            long val = 1L << 23;
+            for (int b = 0; b < 256; b++) {
+                DIV8[(a << 8) | b] = b < a ? (byte) (val >>> 24) : (byte) 255;
+                val += inc;
+            }
+        }
+    }
+
+    private LayerStackCompositor() {
+        // should not be instantiated
+    }
+
+    /**
+     * Composites the visible layers of the given list, starting at
+     * fromIndex, onto the given image, as long as they can be
+     * composited without Java2D. The image covers the part of the
+     * canvas that starts at (x, y). Returns the index of the first
+     * layer that was not composited, which is fromIndex if
+     * the first layer needs Java2D.
+     */
+    public static int compositeLayers(List<Layer> layers, int fromIndex, int toIndex,
+                                      BufferedImage dst, int x, int y,
+                                      boolean firstVisibleLayer) {
+        if (dst.getType() != TYPE_INT_ARGB_PRE || !isPackedInt(dst.getRaster())) {
+            return fromIndex;
+        }
+        int width = dst.getWidth();
+        int height = dst.getHeight();
+
+        List<LayerPass> passes = new ArrayList<>();
+        int index = fromIndex;
+        for (; index < toIndex; index++) {
+            Layer layer = layers.get(index);
+            if (!layer.isVisible()) {
+                continue;
+            }
+            LayerPass pass = LayerPass.create(layer,
+                    firstVisibleLayer && passes.isEmpty(), dst, x, y);
+            if (pass == null) {
+                break;
+            }
+            passes.add(pass);
+        }
+        if (passes.isEmpty()) {
+            return fromIndex;
+        }
+
+        Raster raster = dst.getRaster();
+        int[] dstData = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int dstOffset = offsetOf(raster, 0, 0);
+        int dstStride = strideOf(raster);
+
+        ThreadPool.processBands(height, width, (startY, endY) -> {
+            for (LayerPass pass : passes) {
+                pass.composite(dstData, dstOffset, dstStride,
+                        width, startY, endY);
+            }
+        }, NULL_TRACKER);
+
+        for (LayerPass pass : passes) {
+            pass.finish();
+        }
+
+        return index;
+    }
+
+    /**
+     * The composition of one layer, with all coordinates
+     * relative to the composited image.
+     */
+    private static class LayerPass {
+        private final int[] src;
+        private final int srcOffset;
+        private final int srcStride;
+        private final Rectangle srcBounds;
+        private final boolean srcPremultiplied;
+
+        // null if there is no enabled mask
+        private final byte[] mask;
+        private final int maskOffset;
+        private final int maskStride;
+        private final Rectangle maskBounds;
+
+        // used for the normal mode
+        private final int extraAlpha;
+
+        // used for the other blending modes, otherwise null
+        private final RGBCompositeContext context;
+        private final float alpha;
+
+        private final ImageLayer layer;
+
+        // if not null, the masked rows are also stored in this
+        // canvas-sized image, which is then cached by the layer
+        private final BufferedImage maskedImage;
+
+        private LayerPass(BufferedImage srcImage, Rectangle srcBounds,
+                          Raster maskRaster, Rectangle maskBounds,
+                          int extraAlpha, RGBCompositeContext context, float alpha,
+                          ImageLayer layer, BufferedImage maskedImage) {
+            Raster srcRaster = srcImage.getRaster();
+            src = ((DataBufferInt) srcRaster.getDataBuffer()).getData();
+            srcOffset = offsetOf(srcRaster, 0, 0);
+            srcStride = strideOf(srcRaster);
+            this.srcBounds = srcBounds;
+            srcPremultiplied = srcImage.isAlphaPremultiplied();
+
+            if (maskRaster != null) {
+                mask = ((DataBufferByte) maskRaster.getDataBuffer()).getData();
+                maskOffset = offsetOf(maskRaster, 0, 0);
+                maskStride = strideOf(maskRaster);
+            } else {
+                mask = null;
+                maskOffset = 0;
+                maskStride = 0;
+            }
+            this.maskBounds = maskBounds;
+
+            this.extraAlpha = extraAlpha;
+            this.context = context;
+            this.alpha = alpha;
+            this.layer = layer;
+            this.maskedImage = maskedImage;
+        }
+
+        /**
+         * Returns the pass for the given layer, or null
+         * if the layer must be painted by Java2D.
+         */
+        static LayerPass create(Layer layer, boolean firstVisibleLayer,
+                                BufferedImage dst, int x, int y) {
+            if (!(layer instanceof ImageLayer)) {
+                return null;
+            }
+            return create((ImageLayer) layer, firstVisibleLayer, dst, x, y);
+        }
+
+        private static LayerPass create(ImageLayer layer, boolean firstVisibleLayer,
+                                        BufferedImage dst, int x, int y) {
+            BufferedImage image = layer.getDirectlyPaintedImage();
+            if (image == null || !isPackedARGB(image)) {
+                return null;
+            }
+
+            float opacity = layer.getOpacity();
+            BlendingMode blendingMode = layer.getBlendingMode();
+            RGBCompositeContext context = null;
+            float alpha = opacity;
+            if (!firstVisibleLayer && blendingMode != BlendingMode.NORMAL) {
+                // the first visible layer is always painted with normal mode
+                Composite composite = blendingMode.getComposite(opacity);
+                if (!(composite instanceof RGBComposite)) {
+                    return null;
+                }
+                context = (RGBCompositeContext) composite.createContext(
+                        image.getColorModel(), image.getColorModel(), null);
+                alpha = ((RGBComposite) composite).getAlpha();
+            }
+
+            // the same rounding as in the Java2D loops
+            int extraAlpha = (int) (opacity * 255.0f + 0.5f);
+
+            if (!layer.useMask()) {
+                Rectangle srcBounds = new Rectangle(layer.getTx() - x, layer.getTy() - y,
+                        image.getWidth(), image.getHeight());
+                return new LayerPass(image, srcBounds, null, null,
+                        extraAlpha, context, alpha, layer, null);
+            }
+
+            var canvas = layer.getComp().getCanvas();
+            int canvasWidth = canvas.getImWidth();
+            int canvasHeight = canvas.getImHeight();
+            Rectangle canvasBounds = new Rectangle(-x, -y, canvasWidth, canvasHeight);
+
+            BufferedImage cached = layer.getCachedMaskedImage();
+            if (cached != null && isPackedARGB(cached)) {
+                // the mask is already applied, and the canvas-sized
+                // masked image is composited just like an unmasked layer
+                return new LayerPass(cached, canvasBounds, null, null,
+                        extraAlpha, context, alpha, layer, null);
+            }
+
+            LayerMask mask = layer.getMask();
+            Raster maskRaster = mask.getTransparencyImage().getRaster();
+            if (!isByteGray(maskRaster)) {
+                return null;
+            }
+            Rectangle maskBounds = new Rectangle(mask.getTx() - x, mask.getTy() - y,
+                    maskRaster.getWidth(), maskRaster.getHeight());
+            Rectangle srcBounds = new Rectangle(layer.getTx() - x, layer.getTy() - y,
+                    image.getWidth(), image.getHeight());
+
+            // if the whole canvas is composited, then all the
+            // masked rows are calculated anyway, so they can be cached
+            BufferedImage maskedImage = null;
+            if (x == 0 && y == 0 && dst.getWidth() == canvasWidth
+                    && dst.getHeight() == canvasHeight && layer.canCacheMaskedImage()) {
+                maskedImage = new BufferedImage(canvasWidth, canvasHeight, TYPE_INT_ARGB);
+            }
+
+            return new LayerPass(image, srcBounds, maskRaster, maskBounds,
+                    extraAlpha, context, alpha, layer, maskedImage);
+        }
+
+        /**
+         * Called after all the bands were composited.
+         */
+        void finish() {
+            if (maskedImage != null) {
+                layer.cacheMaskedImage(maskedImage);
+            }
+        }
+
+        /**
+         * Composites this layer onto the rows of the
+         * composited image from startY (inclusive) to endY (exclusive).
+         */
+        void composite(int[] dst, int dstOffset, int dstStride,
+                       int width, int startY, int endY) {
+            if (mask == null) {
+                compositeUnmasked(dst, dstOffset, dstStride, width, startY, endY);
+            } else {
+                compositeMasked(dst, dstOffset, dstStride, width, startY, endY);
+            }
+        }
+
+        private void compositeUnmasked(int[] dst, int dstOffset, int dstStride,
+                                       int width, int startY, int endY) {
+            // only the area covered by the layer image is composited
+            int x0 = Math.max(srcBounds.x, 0);
+            int x1 = Math.min(srcBounds.x + srcBounds.width, width);
+            int y0 = Math.max(srcBounds.y, startY);
+            int y1 = Math.min(srcBounds.y + srcBounds.height, endY);
+            if (x0 >= x1 || y0 >= y1) {
+                return;
+            }
+            int w = x1 - x0;
+            int[] srcPix = null;
+            int[] dstPix = null;
+            if (context != null) {
+                srcPix = new int[4 * w];
+                dstPix = new int[4 * w];
+            }
+
+            for (int y = y0; y < y1; y++) {
+                int srcIndex = srcOffset + (y - srcBounds.y) * srcStride + x0 - srcBounds.x;
+                int dstIndex = dstOffset + y * dstStride + x0;
+                if (context == null) {
+                    if (srcPremultiplied) {
+                        srcOverPremultiplied(src, srcIndex, dst, dstIndex, w, extraAlpha);
+                    } else {
+                        srcOver(src, srcIndex, dst, dstIndex, w, extraAlpha);
+                    }
+                } else {
+                    unpack(src, srcIndex, srcPix, w);
+                    unpack(dst, dstIndex, dstPix, w);
+                    context.composeRGB(srcPix, dstPix, alpha);
+                    pack(dstPix, dst, dstIndex, w);
+                }
+            }
+        }
+
+        private void compositeMasked(int[] dst, int dstOffset, int dstStride,
+                                     int width, int startY, int endY) {
+            // Java2D composites the canvas-sized masked image,
+            // therefore the whole width is composited
+            int[] masked = new int[width];
+            int[] srcPix = null;
+            int[] dstPix = null;
+            if (context != null) {
+                srcPix = new int[4 * width];
+                dstPix = new int[4 * width];
+            }
+
+            int srcX0 = Math.max(srcBounds.x, 0);
+            int srcX1 = Math.min(srcBounds.x + srcBounds.width, width);
+            int maskX0 = Math.max(maskBounds.x, 0);
+            int maskX1 = Math.min(maskBounds.x + maskBounds.width, width);
+
+            int[] maskedData = null;
+            if (maskedImage != null) {
+                maskedData = ((DataBufferInt) maskedImage.getRaster().getDataBuffer()).getData();
+            }
+
+            for (int y = startY; y < endY; y++) {
+                fillMaskedRow(masked, y, srcX0, srcX1, maskX0, maskX1);
+                if (maskedData != null) {
+                    System.arraycopy(masked, 0, maskedData, y * width, width);
+                }
+
+                int dstIndex = dstOffset + y * dstStride;
+                if (context == null) {
+                    srcOver(masked, 0, dst, dstIndex, width, extraAlpha);
+                } else {
+                    unpack(masked, 0, srcPix, width);
+                    unpack(dst, dstIndex, dstPix, width);
+                    context.composeRGB(srcPix, dstPix, alpha);
+                    pack(dstPix, dst, dstIndex, width);
+                }
+            }
+        }
+
+        /**
+         * Calculates a row of the masked image the same way as
+         * Java2D: first the layer is painted on a transparent
+         * TYPE_INT_ARGB image, then the mask is applied with DstIn.
+         */
+        private void fillMaskedRow(int[] masked, int y,
+                                   int srcX0, int srcX1, int maskX0, int maskX1) {
+            int width = masked.length;
+            for (int x = 0; x < width; x++) {
+                masked[x] = 0;
+            }
+            if (y >= srcBounds.y && y < srcBounds.y + srcBounds.height) {
+                int srcIndex = srcOffset + (y - srcBounds.y) * srcStride - srcBounds.x;
+                for (int x = srcX0; x < srcX1; x++) {
+                    int s = src[srcIndex + x];
+                    masked[x] = srcPremultiplied ? toNonPremultiplied(s) : srcOverTransparent(s);
+                }
+            }
+            if (y >= maskBounds.y && y < maskBounds.y + maskBounds.height) {
+                int maskIndex = maskOffset + (y - maskBounds.y) * maskStride - maskBounds.x;
+                for (int x = maskX0; x < maskX1; x++) {
+                    masked[x] = dstIn(masked[x], mask[maskIndex + x] & 0xFF);
+                }
+            }
+        }
+    }
+
+    /**
+     * The Java2D SrcOver of non-premultiplied source pixels
+     * with the given extra alpha onto premultiplied pixels.
+     */
+    private static void srcOver(int[] src, int srcIndex,
+                                int[] dst, int dstIndex,
+                                int length, int extraAlpha) {
+        int extraRow = extraAlpha << 8;
+        for (int i = 0; i < length; i++) {
+            int s = src[srcIndex + i];
+            int srcF = mul8(extraRow | (s >>> 24));
+            if (srcF == 0) {
+                continue;
+            }
+            if (srcF == 255) {
+                dst[dstIndex + i] = 0xFF_00_00_00 | s;
+                continue;
+            }
+            int d = dst[dstIndex + i];
+            int srcRow = srcF << 8;
+            int dstRow = (255 - srcF) << 8;
+
+            int a = srcF + mul8(dstRow | (d >>> 24));
+            int r = mul8(srcRow | ((s >> 16) & 0xFF)) + mul8(dstRow | ((d >> 16) & 0xFF));
+            int g = mul8(srcRow | ((s >> 8) & 0xFF)) + mul8(dstRow | ((d >> 8) & 0xFF));
+            int b = mul8(srcRow | (s & 0xFF)) + mul8(dstRow | (d & 0xFF));
+            dst[dstIndex + i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * The Java2D SrcOver of premultiplied source pixels
+     * with the given extra alpha onto premultiplied pixels.
+     */
+    private static void srcOverPremultiplied(int[] src, int srcIndex,
+                                             int[] dst, int dstIndex,
+                                             int length, int extraAlpha) {
+        int extraRow = extraAlpha << 8;
+        for (int i = 0; i < length; i++) {
+            int s = src[srcIndex + i];
+            int srcF = mul8(extraRow | (s >>> 24));
+            if (srcF == 0) {
+                continue;
+            }
+            int r = (s >> 16) & 0xFF;
+            int g = (s >> 8) & 0xFF;
+            int b = s & 0xFF;
+            if (extraAlpha < 255) {
+                // the color components are already multiplied by the alpha
+                r = mul8(extraRow | r);
+                g = mul8(extraRow | g);
+                b = mul8(extraRow | b);
+            }
+            if (srcF == 255) {
+                dst[dstIndex + i] = 0xFF_00_00_00 | (r << 16) | (g << 8) | b;
+                continue;
+            }
+            int d = dst[dstIndex + i];
+            int dstRow = (255 - srcF) << 8;
+
+            int a = srcF + mul8(dstRow | (d >>> 24));
+            r += mul8(dstRow | ((d >> 16) & 0xFF));
+            g += mul8(dstRow | ((d >> 8) & 0xFF));
+            b += mul8(dstRow | (d & 0xFF));
+            dst[dstIndex + i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * The Java2D conversion of a premultiplied pixel,
+     * as it is painted onto a transparent non-premultiplied pixel.
+     */
+    private static int toNonPremultiplied(int s) {
+        int a = s >>> 24;
+        if (a == 0) {
+            return 0;
+        }
+        if (a == 255) {
+            return s;
+        }
+        int aRow = a << 8;
+        int r = div8(aRow | ((s >> 16) & 0xFF));
+        int g = div8(aRow | ((s >> 8) & 0xFF));
+        int b = div8(aRow | (s & 0xFF));
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * The Java2D SrcOver of a non-premultiplied pixel
+     * onto a transparent non-premultiplied pixel.
+     */
+    private static int srcOverTransparent(int s) {
+        int a = s >>> 24;
+        if (a == 0) {
+            return 0;
+        }
+        if (a == 255) {
+            return s;
+        }
+        int aRow = a << 8;
+        int r = div8(aRow | mul8(aRow | ((s >> 16) & 0xFF)));
+        int g = div8(aRow | mul8(aRow | ((s >> 8) & 0xFF)));
+        int b = div8(aRow | mul8(aRow | (s & 0xFF)));
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * The Java2D DstIn of a non-premultiplied
+     * pixel with the given mask alpha.
+     */
+    private static int dstIn(int d, int maskAlpha) {
+        if (maskAlpha == 255) {
+            return d;
+        }
+        int a = mul8((maskAlpha << 8) | (d >>> 24));
+        if (a == 0) {
+            return 0;
+        }
+        int aRow = a << 8;
+        int r = div8(aRow | mul8(aRow | ((d >> 16) & 0xFF)));
+        int g = div8(aRow | mul8(aRow | ((d >> 8) & 0xFF)));
+        int b = div8(aRow | mul8(aRow | (d & 0xFF)));
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int mul8(int index) {
+        return MUL8[index] & 0xFF;
+    }
+
+    private static int div8(int index) {
+        return DIV8[index] & 0xFF;
+    }
+
+    private static void unpack(int[] data, int offset, int[] pix, int w) {
+        for (int i = 0, j = 0; i < w; i++, j += 4) {
+            int p = data[offset + i];
+            pix[j] = (p >> 16) & 0xFF;
+            pix[j + 1] = (p >> 8) & 0xFF;
+            pix[j + 2] = p & 0xFF;
+            pix[j + 3] = p >>> 24;
+        }
+    }
+
+    // the bands are masked, but not clamped, just like in Raster.setPixels
+    private static void pack(int[] pix, int[] data, int offset, int w) {
+        for (int i = 0, j = 0; i < w; i++, j += 4) {
+            data[offset + i] = ((pix[j] << 16) & 0xFF_00_00)
+                    | ((pix[j + 1] << 8) & 0xFF_00)
+                    | (pix[j + 2] & 0xFF)
+                    | (pix[j + 3] << 24);
+        }
+    }
+
+    // the index of the given pixel in the data array of the raster
+    private static int offsetOf(Raster raster, int x, int y) {
+        return raster.getDataBuffer().getOffset()
+                + (y - raster.getSampleModelTranslateY()) * strideOf(raster)
+                + x - raster.getSampleModelTranslateX();
+    }
+
+    private static int strideOf(Raster raster) {
+        var sampleModel = raster.getSampleModel();
+        if (sampleModel instanceof SinglePixelPackedSampleModel) {
+            return ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+        }
+        return ((ComponentSampleModel) sampleModel).getScanlineStride();
+    }
+
+    // TYPE_INT_ARGB or TYPE_INT_ARGB_PRE
+    private static boolean isPackedARGB(BufferedImage image) {
+        int type = image.getType();
+        return (type == TYPE_INT_ARGB || type == TYPE_INT_ARGB_PRE)
+                && isPackedInt(image.getRaster());
+    }
+
+    private static boolean isPackedInt(Raster raster) {
+        return raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    private static boolean isByteGray(Raster raster) {
+        if (!(raster.getDataBuffer() instanceof DataBufferByte)
+                || raster.getNumBands() != 1
+                || !(raster.getSampleModel() instanceof ComponentSampleModel)) {
+            return false;
+        }
+        var sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        return sampleModel.getPixelStride() == 1 && sampleModel.getBandOffsets()[0] == 0;
+    }
+}
+
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.layers;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The canvas-sized product of the visible image of an {@link ImageLayer}
+ * and its {@link LayerMask}, together with the images and translations
+ * it was calculated from. It's not valid anymore if any of these change,
+ * changes of the pixels are signaled by invalidating the cache explicitly.
+ */
+final class MaskedImage {
+    private final BufferedImage image;
+
+    private final BufferedImage layerImage;
+    private final BufferedImage transparencyImage;
+    private final int tx;
+    private final int ty;
+    private final int maskTx;
+    private final int maskTy;
+
+    MaskedImage(BufferedImage image, BufferedImage layerImage,
+                ImageLayer layer, LayerMask mask) {
+        this.image = image;
+        this.layerImage = layerImage;
+        transparencyImage = mask.getTransparencyImage();
+        tx = layer.getTx();
+        ty = layer.getTy();
+        maskTx = mask.getTx();
+        maskTy = mask.getTy();
+    }
+
+    BufferedImage getImage() {
+        return image;
+    }
+
+    boolean isValidFor(BufferedImage layerImage, ImageLayer layer, LayerMask mask) {
+        var canvas = layer.getComp().getCanvas();
+        return this.layerImage == layerImage
+                && transparencyImage == mask.getTransparencyImage()
+                && tx == layer.getTx()
+                && ty == layer.getTy()
+                && maskTx == mask.getTx()
+                && maskTy == mask.getTy()
+                && image.getWidth() == canvas.getImWidth()
+                && image.getHeight() == canvas.getImHeight();
+    }
+}
@@ -31,6 +31,7 @@ import pixelitor.gui.utils.SliderSpinner;
 import pixelitor.history.History;
 import pixelitor.history.MultiEdit;
 import pixelitor.layers.Drawable;
+import pixelitor.layers.Layer;
 import pixelitor.layers.LayerMask;
 import pixelitor.tools.brushes.AffectedArea;
 import pixelitor.tools.brushes.Brush;
@@ -389,6 +390,8 @@ public abstract class AbstractBrushTool extends Tool {
     private void finishBrushStroke(Drawable dr) {
         brush.finishBrushStroke();
 
+        // the region changed by the stroke, in image space
+        var strokeRect = affectedArea.asRectangle(brush.getEffectiveRadius());
         addBrushStrokeToHistory(dr);
 
         if (graphics != null) {
@@ -400,7 +403,8 @@ public abstract class AbstractBrushTool extends Tool {
 
         dr.updateIconImage();
 
-        dr.getComp().imageChanged(HISTOGRAM);
+        // only the histograms of the stroke's region have to be updated
+        dr.getComp().layerRegionChanged((Layer) dr, strokeRect, HISTOGRAM);
     }
 
     private void addBrushStrokeToHistory(Drawable dr) {
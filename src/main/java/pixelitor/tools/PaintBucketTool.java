@@ -17,6 +17,7 @@
 
 package pixelitor.tools;
 
+import pixelitor.ThreadPool;
 import pixelitor.filters.gui.RangeParam;
 import pixelitor.gui.utils.SliderSpinner;
 import pixelitor.history.History;
@@ -25,20 +26,20 @@ import pixelitor.layers.Drawable;
 import pixelitor.tools.util.PMouseEvent;
 import pixelitor.utils.Cursors;
 import pixelitor.utils.ImageUtils;
+import pixelitor.utils.VisibleForTesting;
 import pixelitor.utils.debug.DebugNode;
 
 import javax.swing.*;
 import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
-import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.Arrays;
 
 import static pixelitor.colors.FgBgColors.getBGColor;
 import static pixelitor.colors.FgBgColors.getFGColor;
 import static pixelitor.gui.utils.SliderSpinner.TextPosition.WEST;
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
 
 /**
  * The paint bucket tool.
@@ -185,10 +186,16 @@ public class PaintBucketTool extends Tool {
     /**
      * Uses the "Scanline fill" algorithm described at
      * http://en.wikipedia.org/wiki/Flood_fill
+     *
+     * The pixels that are similar to the clicked color are first marked
+     * in a bitset (in parallel), and then the fill follows only these bits,
+     * clearing them as it goes. At the end the pixels of the filled area
+     * are those that are similar, but no longer marked.
      */
-    private static Rectangle scanlineFloodFill(BufferedImage img,
-                                               int x, int y, int tolerance,
-                                               int rgbAtMouse, int newRGB) {
+    @VisibleForTesting
+    static Rectangle scanlineFloodFill(BufferedImage img,
+                                       int x, int y, int tolerance,
+                                       int rgbAtMouse, int newRGB) {
         int minX = x;
         int maxX = x;
         int minY = y;
@@ -199,32 +206,42 @@ public class PaintBucketTool extends Tool {
         int[] pixels = ImageUtils.getPixelsAsArray(img);
 
         // Needed because the tolerance: we cannot assume that
-        // if the pixel is within the target range, it has been processed
-        boolean[] checkedPixels = new boolean[pixels.length];
-
-        // the double-ended queue is used as a simple LIFO stack
-        Deque<Point> stack = new ArrayDeque<>();
-        stack.push(new Point(x, y));
-
-        while (!stack.isEmpty()) {
-            Point p = stack.pop();
-
-            x = p.x;
-            y = p.y;
+        // if the pixel is within the target range, it has not been processed.
+        // Each row starts at a new long, so that the rows can be marked in parallel.
+        int wordsPerRow = (imgWidth + 63) >>> 6;
+        long[] toFill = markSimilarPixels(pixels, imgWidth, imgHeight,
+                wordsPerRow, tolerance, rgbAtMouse);
+
+        // The clicked pixel is always filled, even if the raw pixel
+        // value is not similar to the clicked color (premultiplied images)
+        int clickedIndex = y * imgWidth + x;
+        toFill[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+
+        // a stack of the points to be inspected later, as y * width + x
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = clickedIndex;
+
+        while (stackSize > 0) {
+            int p = stack[--stackSize];
+            x = p % imgWidth;
+            y = p / imgWidth;
+
+            int rowStart = y * wordsPerRow;
+            if (!isSet(toFill, rowStart, x)) {
+                continue; // filled since it was pushed
+            }
 
             // find the last replaceable point to the left
             int scanlineMinX = x - 1;
-            int offset = y * imgWidth;
-            while (scanlineMinX >= 0
-                    && isSimilar(pixels[scanlineMinX + offset], rgbAtMouse, tolerance)) {
+            while (scanlineMinX >= 0 && isSet(toFill, rowStart, scanlineMinX)) {
                 scanlineMinX--;
             }
             scanlineMinX++;
 
             // find the last replaceable point to the right
             int scanlineMaxX = x + 1;
-            while (scanlineMaxX < img.getWidth()
-                    && isSimilar(pixels[scanlineMaxX + offset], rgbAtMouse, tolerance)) {
+            while (scanlineMaxX < imgWidth && isSet(toFill, rowStart, scanlineMaxX)) {
                 scanlineMaxX++;
             }
             scanlineMaxX--;
@@ -243,71 +260,113 @@ public class PaintBucketTool extends Tool {
                 minY = y;
             }
 
-            // draw a line between (scanlineMinX, y) and (scanlineMaxX, y)
+            // the line between (scanlineMinX, y) and (scanlineMaxX, y)
+            // is filled, the pixels are only painted at the end
             for (int i = scanlineMinX; i <= scanlineMaxX; i++) {
-                int index = i + offset;
-                pixels[index] = newRGB;
-                checkedPixels[index] = true;
+                toFill[rowStart + (i >>> 6)] &= ~(1L << i);
             }
 
-            // look upwards for new points to be inspected later
+            // look upwards and downwards for new points to be inspected later
+            stack = ensureCapacity(stack, stackSize + scanlineMaxX - scanlineMinX + 2);
             if (y > 0) {
-                // if there are multiple pixels to be replaced
-                // that are horizontal neighbours,
-                // only one of them has to be inspected later
-                boolean pointsInLine = false;
-
-                int upOffset = (y - 1) * imgWidth;
-
-                for (int i = scanlineMinX; i <= scanlineMaxX; i++) {
-                    int upIndex = i + upOffset;
-                    boolean shouldBeReplaced = !checkedPixels[upIndex]
-                            && isSimilar(pixels[upIndex], rgbAtMouse, tolerance);
-
-                    if (!pointsInLine && shouldBeReplaced) {
-                        Point inspectLater = new Point(i, y - 1);
-                        stack.push(inspectLater);
-                        pointsInLine = true;
-                    } else if (pointsInLine && !shouldBeReplaced) {
-                        pointsInLine = false;
+                stackSize = pushRuns(stack, stackSize, toFill, rowStart - wordsPerRow,
+                        scanlineMinX, scanlineMaxX, (y - 1) * imgWidth);
+            }
+            if (y < imgHeight - 1) {
+                stackSize = pushRuns(stack, stackSize, toFill, rowStart + wordsPerRow,
+                        scanlineMinX, scanlineMaxX, (y + 1) * imgWidth);
+            }
+        }
+
+        // paint the similar pixels that are no longer marked
+        int startX = minX;
+        int endX = maxX + 1;
+        int startY = minY;
+        ThreadPool.processBands(maxY - minY + 1, endX - startX, (bandStart, bandEnd) -> {
+            for (int row = startY + bandStart; row < startY + bandEnd; row++) {
+                int offset = row * imgWidth;
+                int rowStart = row * wordsPerRow;
+                for (int i = startX; i < endX; i++) {
+                    if (!isSet(toFill, rowStart, i)
+                            && isSimilar(pixels[offset + i], rgbAtMouse, tolerance)) {
+                        pixels[offset + i] = newRGB;
                     }
                 }
             }
+        }, NULL_TRACKER);
+        pixels[clickedIndex] = newRGB;
 
-            // look downwards for new points to be inspected later
-            if (y < imgHeight - 1) {
-                boolean pointsInLine = false;
-                int downOffset = (y + 1) * imgWidth;
-
-                for (int i = scanlineMinX; i <= scanlineMaxX; i++) {
-                    int downIndex = i + downOffset;
-                    boolean shouldBeReplaced = !checkedPixels[downIndex]
-                            && isSimilar(pixels[downIndex], rgbAtMouse, tolerance);
-
-                    if (!pointsInLine && shouldBeReplaced) {
-                        Point inspectLater = new Point(i, y + 1);
-                        stack.push(inspectLater);
-                        pointsInLine = true;
-                    } else if (pointsInLine && !shouldBeReplaced) {
-                        pointsInLine = false;
+        // return the affected area
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * Returns a bitset in which the pixels similar to the given color are set.
+     */
+    private static long[] markSimilarPixels(int[] pixels, int width, int height,
+                                            int wordsPerRow, int tolerance, int rgb) {
+        long[] bits = new long[height * wordsPerRow];
+        ThreadPool.processBands(height, width, (startY, endY) -> {
+            for (int y = startY; y < endY; y++) {
+                int offset = y * width;
+                int rowStart = y * wordsPerRow;
+                for (int x = 0; x < width; x++) {
+                    if (isSimilar(pixels[offset + x], rgb, tolerance)) {
+                        bits[rowStart + (x >>> 6)] |= 1L << x;
                     }
                 }
             }
+        }, NULL_TRACKER);
+        return bits;
+    }
+
+    private static boolean isSet(long[] bits, int rowStart, int x) {
+        return (bits[rowStart + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * Pushes the first point of each marked run of the given row
+     * between the given x coordinates, and returns the new stack size.
+     */
+    private static int pushRuns(int[] stack, int stackSize, long[] toFill, int rowStart,
+                                int minX, int maxX, int rowOffset) {
+        // if there are multiple pixels to be replaced
+        // that are horizontal neighbours,
+        // only one of them has to be inspected later
+        boolean pointsInLine = false;
+        for (int i = minX; i <= maxX; i++) {
+            boolean shouldBeReplaced = isSet(toFill, rowStart, i);
+            if (!pointsInLine && shouldBeReplaced) {
+                stack[stackSize++] = rowOffset + i;
+                pointsInLine = true;
+            } else if (pointsInLine && !shouldBeReplaced) {
+                pointsInLine = false;
+            }
         }
+        return stackSize;
+    }
 
-        // return the affected area
-        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    // a line of n pixels can have at most n + 1 runs in the two neighbouring rows
+    private static int[] ensureCapacity(int[] stack, int capacity) {
+        if (capacity > stack.length) {
+            return Arrays.copyOf(stack, Math.max(2 * stack.length, capacity));
+        }
+        return stack;
     }
 
-    private static void globalReplaceColor(BufferedImage img,
-                                           int tolerance,
-                                           int rgbAtMouse, int newRGB) {
+    @VisibleForTesting
+    static void globalReplaceColor(BufferedImage img,
+                                   int tolerance,
+                                   int rgbAtMouse, int newRGB) {
         int[] pixels = ImageUtils.getPixelsAsArray(img);
-        for (int i = 0; i < pixels.length; i++) {
-            if (isSimilar(pixels[i], rgbAtMouse, tolerance)) {
-                pixels[i] = newRGB;
+        int width = img.getWidth();
+        ThreadPool.processBands(img.getHeight(), width, (startY, endY) -> {
+            for (int i = startY * width, end = endY * width; i < end; i++) {
+                if (isSimilar(pixels[i], rgbAtMouse, tolerance)) {
+                    pixels[i] = newRGB;
+                }
             }
-        }
+        }, NULL_TRACKER);
     }
 
     private static boolean isSimilar(int color1, int color2, int tolerance) {
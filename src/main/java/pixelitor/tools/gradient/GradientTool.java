@@ -48,6 +48,7 @@ import java.awt.geom.AffineTransform;
 import static java.awt.MultipleGradientPaint.CycleMethod.NO_CYCLE;
 import static java.awt.MultipleGradientPaint.CycleMethod.REFLECT;
 import static java.awt.MultipleGradientPaint.CycleMethod.REPEAT;
+import static pixelitor.Composition.ImageChangeActions.FULL;
 import static pixelitor.colors.FgBgColors.setBGColor;
 import static pixelitor.colors.FgBgColors.setFGColor;
 import static pixelitor.tools.util.DraggablePoint.activePoint;
@@ -395,7 +396,7 @@ public class GradientTool extends DragTool {
         }
 
         gradient.drawOn(dr);
-        dr.getComp().imageChanged();
+        dr.getComp().layerImageChanged((Layer) dr, FULL);
         lastGradient = gradient;
     }
 
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.utils;
+
+import pixelitor.ThreadPool;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
+
+/**
+ * A lazily built mip pyramid of an image, which is used for
+ * painting the image at small zoom levels. Each level has half
+ * the width and height of the previous one, and the levels
+ * are updated incrementally when some regions of the image change.
+ */
+public class ImagePyramid {
+    // smaller regions are not worth splitting into parallel bands
+    private static final int MIN_PIXELS_FOR_PARALLEL = 64 * 1024;
+
+    private BufferedImage base;
+
+    // the level n is at the index n - 1
+    private final List<BufferedImage> levels = new ArrayList<>();
+
+    // the regions (in the coordinates of the base image)
+    // in which the levels are out of date, or null
+    private final List<Rectangle> dirtyRegions = new ArrayList<>();
+
+    /**
+     * Returns the level that should be painted at the given scaling:
+     * 0 means the image itself, and the level n is 2^n times smaller.
+     */
+    public static int levelFor(double scaling, int width, int height) {
+        int level = 0;
+        while (scaling <= 0.5 && (width >> (level + 1)) > 0 && (height >> (level + 1)) > 0) {
+            scaling *= 2;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Only images with premultiplied packed int pixels,
+     * which are not subimages, are supported.
+     */
+    public static boolean canBeUsedFor(BufferedImage img) {
+        return img.getType() == TYPE_INT_ARGB_PRE
+                && ImageUtils.getPixelsAsArray(img).length == img.getWidth() * img.getHeight();
+    }
+
+    /**
+     * Returns the given level of the pyramid of the given image.
+     * If the image is not the one seen the last time,
+     * then the whole pyramid is built again.
+     */
+    public BufferedImage getLevel(BufferedImage img, int level) {
+        assert canBeUsedFor(img);
+        if (img != base) {
+            clear();
+            base = img;
+        }
+        if (level == 0) {
+            return img;
+        }
+
+        BufferedImage prev = img;
+        for (int n = 1; n <= level; n++) {
+            if (levels.size() < n) {
+                BufferedImage next = new BufferedImage(
+                        halfSize(prev.getWidth()), halfSize(prev.getHeight()), TYPE_INT_ARGB_PRE);
+                downsample(prev, next, new Rectangle(0, 0, next.getWidth(), next.getHeight()));
+                levels.add(next);
+                dirtyRegions.add(null);
+            } else {
+                Rectangle dirty = dirtyRegions.get(n - 1);
+                if (dirty != null) {
+                    BufferedImage current = levels.get(n - 1);
+                    downsample(prev, current, toLevel(dirty, n, current));
+                    dirtyRegions.set(n - 1, null);
+                }
+            }
+            prev = levels.get(n - 1);
+        }
+        return prev;
+    }
+
+    /**
+     * Called when the given region of the source image was changed.
+     * The result image is either the source image itself, if it was
+     * changed in place, or a copy of it that differs only in the given region.
+     * If the source is not the image seen the last time, then the
+     * pyramid is cleared, because the other regions might also differ.
+     */
+    public void regionChanged(BufferedImage source, BufferedImage result, Rectangle region) {
+        if (base == null) {
+            return;
+        }
+        if (source != base || result.getWidth() != base.getWidth()
+                || result.getHeight() != base.getHeight()) {
+            clear();
+            return;
+        }
+        base = result;
+        for (int i = 0; i < dirtyRegions.size(); i++) {
+            Rectangle dirty = dirtyRegions.get(i);
+            if (dirty == null) {
+                dirtyRegions.set(i, new Rectangle(region));
+            } else {
+                dirty.add(region);
+            }
+        }
+    }
+
+    public void clear() {
+        base = null;
+        levels.clear();
+        dirtyRegions.clear();
+    }
+
+    private static int halfSize(int size) {
+        return (size + 1) / 2;
+    }
+
+    // converts a region of the base image into the coordinates of the given level
+    private static Rectangle toLevel(Rectangle region, int level, BufferedImage levelImg) {
+        int x1 = region.x >> level;
+        int y1 = region.y >> level;
+        int x2 = (region.x + region.width + (1 << level) - 1) >> level;
+        int y2 = (region.y + region.height + (1 << level) - 1) >> level;
+        Rectangle r = new Rectangle(x1, y1, x2 - x1, y2 - y1);
+        return r.intersection(new Rectangle(0, 0, levelImg.getWidth(), levelImg.getHeight()));
+    }
+
+    /**
+     * Calculates the given region of the destination image by
+     * averaging 2x2 blocks of the two times bigger source image.
+     */
+    private static void downsample(BufferedImage src, BufferedImage dst, Rectangle region) {
+        if (region.isEmpty()) {
+            return;
+        }
+        int[] srcData = ImageUtils.getPixelsAsArray(src);
+        int[] dstData = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        int dstWidth = dst.getWidth();
+
+        if ((long) region.width * region.height < MIN_PIXELS_FOR_PARALLEL) {
+            downsampleRows(srcData, srcWidth, srcHeight, dstData, dstWidth,
+                    region.x, region.y, region.x + region.width, region.y + region.height);
+        } else {
+            ThreadPool.processBands(region.height, region.width, (startY, endY) ->
+                    downsampleRows(srcData, srcWidth, srcHeight, dstData, dstWidth,
+                            region.x, region.y + startY, region.x + region.width, region.y + endY),
+                    NULL_TRACKER);
+        }
+    }
+
+    private static void downsampleRows(int[] srcData, int srcWidth, int srcHeight,
+                                       int[] dstData, int dstWidth,
+                                       int startX, int startY, int endX, int endY) {
+        for (int y = startY; y < endY; y++) {
+            // at odd sizes the last row and column are used twice
+            int row1 = 2 * y * srcWidth;
+            int row2 = Math.min(2 * y + 1, srcHeight - 1) * srcWidth;
+            int dstIndex = y * dstWidth + startX;
+            for (int x = startX; x < endX; x++) {
+                int x1 = 2 * x;
+                int x2 = Math.min(x1 + 1, srcWidth - 1);
+                dstData[dstIndex++] = average(srcData[row1 + x1], srcData[row1 + x2],
+                        srcData[row2 + x1], srcData[row2 + x2]);
+            }
+        }
+    }
+
+    // the premultiplied components can be simply averaged
+    private static int average(int p1, int p2, int p3, int p4) {
+        int a = ((p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24) + (p4 >>> 24) + 2) >> 2;
+        int r = (((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF)
+                + ((p3 >> 16) & 0xFF) + ((p4 >> 16) & 0xFF) + 2) >> 2;
+        int g = (((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF)
+                + ((p3 >> 8) & 0xFF) + ((p4 >> 8) & 0xFF) + 2) >> 2;
+        int b = ((p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + (p4 & 0xFF) + 2) >> 2;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.utils;
+
+import pixelitor.ThreadPool;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
+
+/**
+ * The red, green and blue histograms of an image. The transparent
+ * pixels are not counted. The counts can be updated incrementally,
+ * if only some regions of the image change.
+ */
+public class RGBHistograms {
+    public static final int NUM_BINS = 256;
+
+    private final int[] reds = new int[NUM_BINS];
+    private final int[] greens = new int[NUM_BINS];
+    private final int[] blues = new int[NUM_BINS];
+
+    private RGBHistograms() {
+    }
+
+    /**
+     * Counts the pixels of the given image in parallel bands.
+     */
+    public static RGBHistograms count(BufferedImage img) {
+        var histograms = new RGBHistograms();
+        int[] data = ImageUtils.getPixelsAsArray(img);
+        int width = img.getWidth();
+        ThreadPool.processBands(img.getHeight(), width, (startY, endY) -> {
+            var band = new RGBHistograms();
+            band.addRows(data, width, 0, startY, width, endY, 1);
+            histograms.addAll(band);
+        }, NULL_TRACKER);
+        return histograms;
+    }
+
+    /**
+     * Removes the counts of the given region of the given
+     * image, which is about to be changed in that region.
+     */
+    public void remove(BufferedImage img, Rectangle region) {
+        addRegion(img, region, -1);
+    }
+
+    /**
+     * Adds the counts of the given region of the given image.
+     */
+    public void add(BufferedImage img, Rectangle region) {
+        addRegion(img, region, 1);
+    }
+
+    private void addRegion(BufferedImage img, Rectangle region, int sign) {
+        int[] data = ImageUtils.getPixelsAsArray(img);
+        addRows(data, img.getWidth(), region.x, region.y,
+                region.x + region.width, region.y + region.height, sign);
+    }
+
+    private void addRows(int[] data, int width, int startX, int startY,
+                         int endX, int endY, int sign) {
+        for (int y = startY; y < endY; y++) {
+            int offset = y * width;
+            for (int x = startX; x < endX; x++) {
+                int rgb = data[offset + x];
+                int a = (rgb >>> 24) & 0xFF;
+                if (a > 0) {
+                    int r = (rgb >>> 16) & 0xFF;
+                    int g = (rgb >>> 8) & 0xFF;
+                    int b = rgb & 0xFF;
+
+                    reds[r] += sign;
+                    greens[g] += sign;
+                    blues[b] += sign;
+                }
+            }
+        }
+    }
+
+    private synchronized void addAll(RGBHistograms other) {
+        for (int i = 0; i < NUM_BINS; i++) {
+            reds[i] += other.reds[i];
+            greens[i] += other.greens[i];
+            blues[i] += other.blues[i];
+        }
+    }
+
+    public int[] getReds() {
+        return reds.clone();
+    }
+
+    public int[] getGreens() {
+        return greens.clone();
+    }
+
+    public int[] getBlues() {
+        return blues.clone();
+    }
+}
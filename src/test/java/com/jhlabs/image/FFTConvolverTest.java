@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jhlabs.image;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
+
+/**
+ * Compares the {@link FFTConvolver} with a direct convolution
+ */
+public class FFTConvolverTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void matchesDirectConvolution() {
+        for (int i = 0; i < 12; i++) {
+            // also asymmetric kernels with even sizes
+            int kernelWidth = 1 + random.nextInt(12);
+            int kernelHeight = 1 + random.nextInt(12);
+            int width = 1 + random.nextInt(90);
+            int height = 1 + random.nextInt(90);
+            checkImage(width, height, kernelWidth, kernelHeight);
+        }
+    }
+
+    @Test
+    public void manyTilesMatchDirectConvolution() {
+        checkImage(700, 300, 9, 5);
+    }
+
+    private void checkImage(int width, int height, int kernelWidth, int kernelHeight) {
+        float[] kernel = new float[kernelWidth * kernelHeight];
+        float total = 0;
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] = random.nextFloat();
+            total += kernel[i];
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= total;
+        }
+
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+
+        var convolver = new FFTConvolver(kernel, kernelWidth, kernelHeight);
+        int[] actual = convolver.convolve(pixels, width, height, null, NULL_TRACKER);
+
+        int centerX = kernelWidth / 2;
+        int centerY = kernelHeight / 2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int shift = 0; shift <= 24; shift += 8) {
+                    float sum = 0;
+                    for (int ky = 0; ky < kernelHeight; ky++) {
+                        int yy = ImageMath.clamp(y - (ky - centerY), 0, height - 1);
+                        for (int kx = 0; kx < kernelWidth; kx++) {
+                            int xx = ImageMath.clamp(x - (kx - centerX), 0, width - 1);
+                            int value = (pixels[yy * width + xx] >>> shift) & 0xFF;
+                            sum += kernel[ky * kernelWidth + kx] * value;
+                        }
+                    }
+                    int actualValue = (actual[y * width + x] >>> shift) & 0xFF;
+                    assertThat(actualValue)
+                            .as("%dx%d image, %dx%d kernel at %d, %d",
+                                    width, height, kernelWidth, kernelHeight, x, y)
+                            .isBetween((int) sum - 1, (int) sum + 2);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jhlabs.image;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
+
+/**
+ * Compares the histogram-based {@link PercentileEngine}
+ * with sorting the pixels of every window
+ */
+public class PercentileEngineTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void matchesSorting() {
+        for (int i = 0; i < 30; i++) {
+            int width = 1 + random.nextInt(40);
+            int height = 1 + random.nextInt(40);
+            int radius = random.nextInt(12);
+            double percentile = i < 3 ? i / 2.0 : random.nextDouble();
+            checkImage(width, height, radius, percentile);
+        }
+    }
+
+    @Test
+    public void tilesMatchSorting() {
+        // big enough for several tiles in both directions,
+        // with a window crossing the tile borders
+        checkImage(600, 150, 5, 0.5);
+        checkImage(530, 290, 70, 0.3);
+    }
+
+    private void checkImage(int width, int height, int radius, double percentile) {
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            // few distinct values, so that there are many equal values
+            pixels[i] = random.nextBoolean() ? random.nextInt() : random.nextInt(4) * 0x3F3F3F3F;
+        }
+
+        int[] actual = new PercentileEngine(width, height, radius)
+                .filter(pixels, percentile, NULL_TRACKER);
+
+        // checking only some pixels of big images
+        int step = width * height > 10_000 ? 7 : 1;
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step) {
+                assertThat(actual[y * width + x])
+                        .as("%dx%d, radius = %d, percentile = %.2f, at %d, %d",
+                                width, height, radius, percentile, x, y)
+                        .isEqualTo(sortWindow(pixels, width, height, x, y, radius, percentile));
+            }
+        }
+    }
+
+    private static int sortWindow(int[] pixels, int width, int height,
+                                  int x, int y, int radius, double percentile) {
+        int minX = Math.max(0, x - radius);
+        int maxX = Math.min(width - 1, x + radius);
+        int minY = Math.max(0, y - radius);
+        int maxY = Math.min(height - 1, y + radius);
+        int n = (maxX - minX + 1) * (maxY - minY + 1);
+        int rank = (int) (percentile * (n - 1) + 0.5);
+
+        int result = 0;
+        int[] values = new int[n];
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            int i = 0;
+            for (int yy = minY; yy <= maxY; yy++) {
+                for (int xx = minX; xx <= maxX; xx++) {
+                    values[i++] = (pixels[yy * width + xx] >>> shift) & 0xFF;
+                }
+            }
+            Arrays.sort(values);
+            result |= values[rank] << shift;
+        }
+        return result;
+    }
+}
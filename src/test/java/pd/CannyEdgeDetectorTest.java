@@ -0,0 +1,282 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pd;
+
+import net.jafama.FastMath;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
+
+/**
+ * Compares the band-based {@link CannyEdgeDetector} with a straightforward
+ * single-threaded version of the same steps
+ */
+public class CannyEdgeDetectorTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void matchesReference() {
+        checkImage(createImage(90, 60), 2.5f, 7.5f, 2.0f, 16, false);
+        checkImage(createImage(150, 230), 1.0f, 3.0f, 1.5f, 10, false);
+        checkImage(createImage(230, 170), 2.0f, 5.0f, 3.0f, 30, true);
+        checkImage(createImage(20, 300), 0.5f, 9.0f, 1.0f, 2, false);
+        checkImage(createImage(7, 5), 2.5f, 7.5f, 2.0f, 16, false);
+    }
+
+    @Test
+    public void longEdgesDontOverflowTheStack() {
+        // long nested outlines, which were traced recursively pixel by pixel
+        int size = 1200;
+        BufferedImage img = new BufferedImage(size, size, TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, size, size);
+        g.setColor(Color.WHITE);
+        int numRects = 0;
+        for (int i = 10; i < size / 2 - 10; i += 8) {
+            g.drawRect(i, i, size - 2 * i, size - 2 * i);
+            numRects++;
+        }
+        g.dispose();
+
+        var detector = new CannyEdgeDetector();
+        detector.setSourceImage(img);
+        detector.process(NULL_TRACKER);
+
+        // every outline crosses the middle row twice
+        BufferedImage edges = detector.getEdgesImage();
+        int numEdges = 0;
+        for (int x = 0; x < size; x++) {
+            if (edges.getRGB(x, size / 2) == 0xFF_FF_FF_FF) {
+                numEdges++;
+            }
+        }
+        assertThat(numEdges).isGreaterThanOrEqualTo(2 * numRects);
+    }
+
+    private BufferedImage createImage(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        for (int i = 0; i < 30; i++) {
+            g.setColor(new Color(random.nextInt(0xFF_FF_FF)));
+            g.fillOval(random.nextInt(width) - 10, random.nextInt(height) - 10,
+                    5 + random.nextInt(width), 5 + random.nextInt(height));
+        }
+        g.dispose();
+        for (int i = 0; i < width * height / 20; i++) {
+            img.setRGB(random.nextInt(width), random.nextInt(height), 0xFF_00_00_00 | random.nextInt());
+        }
+        return img;
+    }
+
+    private static void checkImage(BufferedImage img, float low, float high,
+                                   float kernelRadius, int kernelWidth, boolean normalize) {
+        var detector = new CannyEdgeDetector();
+        detector.setLowThreshold(low);
+        detector.setHighThreshold(high);
+        detector.setGaussianKernelRadius(kernelRadius);
+        detector.setGaussianKernelWidth(kernelWidth);
+        detector.setContrastNormalized(normalize);
+        detector.setSourceImage(img);
+        detector.process(NULL_TRACKER);
+        BufferedImage edges = detector.getEdgesImage();
+
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] expected = reference(img, low, high, kernelRadius, kernelWidth, normalize);
+        int numEdges = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = edges.getRGB(x, y);
+                assertThat(pixel)
+                        .as("%dx%d at %d, %d", width, height, x, y)
+                        .isEqualTo(expected[y * width + x]);
+                if (pixel == 0xFF_FF_FF_FF) {
+                    numEdges++;
+                }
+            }
+        }
+        if (width > 20 && height > 20) {
+            assertThat(numEdges).isPositive();
+        }
+    }
+
+    // the column by column version of the same steps
+    private static int[] reference(BufferedImage img, float low, float high,
+                                   float kernelRadius, int kernelWidth, boolean normalize) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int picsize = width * height;
+        int[] data = new int[picsize];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int p = img.getRGB(x, y);
+                data[y * width + x] = Math.round(0.299f * ((p >> 16) & 0xFF)
+                        + 0.587f * ((p >> 8) & 0xFF) + 0.114f * (p & 0xFF));
+            }
+        }
+        if (normalize) {
+            int[] histogram = new int[256];
+            for (int datum : data) {
+                histogram[datum]++;
+            }
+            int[] remap = new int[256];
+            int sum = 0;
+            int j = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                sum += histogram[i];
+                int target = sum * 255 / picsize;
+                for (int k = j + 1; k <= target; k++) {
+                    remap[k] = i;
+                }
+                j = target;
+            }
+            for (int i = 0; i < picsize; i++) {
+                data[i] = remap[data[i]];
+            }
+        }
+
+        float[] kernel = new float[kernelWidth];
+        float[] diffKernel = new float[kernelWidth];
+        int kwidth;
+        for (kwidth = 0; kwidth < kernelWidth; kwidth++) {
+            float g1 = gaussian(kwidth, kernelRadius);
+            if (g1 <= 0.005f && kwidth >= 2) {
+                break;
+            }
+            float g2 = gaussian(kwidth - 0.5f, kernelRadius);
+            float g3 = gaussian(kwidth + 0.5f, kernelRadius);
+            kernel[kwidth] = (g1 + g2 + g3) / 3.0f / (2.0f * (float) Math.PI * kernelRadius * kernelRadius);
+            diffKernel[kwidth] = g3 - g2;
+        }
+
+        float[] xConv = new float[picsize];
+        float[] yConv = new float[picsize];
+        float[] xGradient = new float[picsize];
+        float[] yGradient = new float[picsize];
+        for (int x = kwidth - 1; x < width - (kwidth - 1); x++) {
+            for (int y = width * (kwidth - 1); y < width * (height - (kwidth - 1)); y += width) {
+                int index = x + y;
+                float sumX = data[index] * kernel[0];
+                float sumY = sumX;
+                for (int i = 1; i < kwidth; i++) {
+                    sumY += kernel[i] * (data[index - i * width] + data[index + i * width]);
+                    sumX += kernel[i] * (data[index - i] + data[index + i]);
+                }
+                yConv[index] = sumY;
+                xConv[index] = sumX;
+            }
+        }
+        for (int x = kwidth - 1; x < width - (kwidth - 1); x++) {
+            for (int y = width * (kwidth - 1); y < width * (height - (kwidth - 1)); y += width) {
+                float sum = 0.0f;
+                int index = x + y;
+                for (int i = 1; i < kwidth; i++) {
+                    sum += diffKernel[i] * (yConv[index - i] - yConv[index + i]);
+                }
+                xGradient[index] = sum;
+            }
+        }
+        for (int x = kwidth; x < width - kwidth; x++) {
+            for (int y = width * (kwidth - 1); y < width * (height - (kwidth - 1)); y += width) {
+                float sum = 0.0f;
+                int index = x + y;
+                for (int i = 1; i < kwidth; i++) {
+                    sum += diffKernel[i] * (xConv[index - i * width] - xConv[index + i * width]);
+                }
+                yGradient[index] = sum;
+            }
+        }
+
+        int[] magnitude = new int[picsize];
+        for (int x = kwidth; x < width - kwidth; x++) {
+            for (int y = width * kwidth; y < width * (height - kwidth); y += width) {
+                int index = x + y;
+                float xGrad = xGradient[index];
+                float yGrad = yGradient[index];
+                float gradMag = hypot(xGrad, yGrad);
+                float nMag = hypot(xGradient[index - width], yGradient[index - width]);
+                float sMag = hypot(xGradient[index + width], yGradient[index + width]);
+                float wMag = hypot(xGradient[index - 1], yGradient[index - 1]);
+                float eMag = hypot(xGradient[index + 1], yGradient[index + 1]);
+                float neMag = hypot(xGradient[index - width + 1], yGradient[index - width + 1]);
+                float seMag = hypot(xGradient[index + width + 1], yGradient[index + width + 1]);
+                float swMag = hypot(xGradient[index + width - 1], yGradient[index + width - 1]);
+                float nwMag = hypot(xGradient[index - width - 1], yGradient[index - width - 1]);
+                float tmp;
+                if (xGrad * yGrad <= 0
+                        ? Math.abs(xGrad) >= Math.abs(yGrad)
+                        ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * neMag - (xGrad + yGrad) * eMag)
+                        && tmp > Math.abs(yGrad * swMag - (xGrad + yGrad) * wMag)
+                        : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * neMag - (yGrad + xGrad) * nMag)
+                        && tmp > Math.abs(xGrad * swMag - (yGrad + xGrad) * sMag)
+                        : Math.abs(xGrad) >= Math.abs(yGrad)
+                        ? (tmp = Math.abs(xGrad * gradMag)) >= Math.abs(yGrad * seMag + (xGrad - yGrad) * eMag)
+                        && tmp > Math.abs(yGrad * nwMag + (xGrad - yGrad) * wMag)
+                        : (tmp = Math.abs(yGrad * gradMag)) >= Math.abs(xGrad * seMag + (yGrad - xGrad) * sMag)
+                        && tmp > Math.abs(xGrad * nwMag + (yGrad - xGrad) * nMag)) {
+                    magnitude[index] = gradMag >= 1000.0f ? 100_000 : (int) (100.0f * gradMag);
+                }
+            }
+        }
+
+        // breadth-first hysteresis
+        int lowMag = Math.round(low * 100.0f);
+        int highMag = Math.round(high * 100.0f);
+        int[] edges = new int[picsize];
+        java.util.Arrays.fill(edges, 0xFF_00_00_00);
+        var queue = new ArrayDeque<Integer>();
+        for (int i = 0; i < picsize; i++) {
+            if (magnitude[i] >= highMag && edges[i] != -1) {
+                edges[i] = -1;
+                queue.add(i);
+                while (!queue.isEmpty()) {
+                    int p = queue.poll();
+                    int px = p % width;
+                    int py = p / width;
+                    for (int y = Math.max(0, py - 1); y <= Math.min(height - 1, py + 1); y++) {
+                        for (int x = Math.max(0, px - 1); x <= Math.min(width - 1, px + 1); x++) {
+                            int q = y * width + x;
+                            if (edges[q] != -1 && magnitude[q] >= lowMag) {
+                                edges[q] = -1;
+                                queue.add(q);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return edges;
+    }
+
+    private static float hypot(float x, float y) {
+        return (float) FastMath.hypot(x, y);
+    }
+
+    private static float gaussian(float x, float sigma) {
+        return (float) Math.exp(-(x * x) / (2.0f * sigma * sigma));
+    }
+}
@@ -17,8 +17,11 @@
 
 package pixelitor;
 
+import com.jhlabs.image.FFTConvolverTest;
+import com.jhlabs.image.PercentileEngineTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
+import pd.CannyEdgeDetectorTest;
 import pixelitor.compactions.MultiLayerEditTest;
 import pixelitor.filters.RandomFilterSourceTest;
 import pixelitor.filters.gui.BooleanParamTest;
@@ -27,19 +30,27 @@ import pixelitor.filters.gui.IntChoiceParamTest;
 import pixelitor.filters.gui.ParamSetTest;
 import pixelitor.filters.gui.ParamStateTest;
 import pixelitor.filters.gui.RangeParamTest;
+import pixelitor.filters.impl.MorphologyFilterTest;
+import pixelitor.filters.impl.VoronoiFilterTest;
 import pixelitor.filters.levels.LevelsTest;
 import pixelitor.guides.GuidesTest;
+import pixelitor.history.BackupStoreTest;
 import pixelitor.history.PixelitorUndoManagerTest;
+import pixelitor.history.TileDeltaTest;
+import pixelitor.layers.AdjustmentLayerTest;
 import pixelitor.layers.ContentLayerTest;
 import pixelitor.layers.ImageLayerTest;
 import pixelitor.layers.LayerBlendingModesTest;
+import pixelitor.layers.LayerStackCompositorTest;
 import pixelitor.layers.LayerTest;
 import pixelitor.layers.TextLayerTest;
 import pixelitor.tools.AbstractBrushToolTest;
+import pixelitor.tools.PaintBucketToolTest;
 import pixelitor.tools.crop.CompositionGuideTest;
 import pixelitor.tools.gradient.GradientHandlesTest;
 import pixelitor.tools.transform.TransformBoxTest;
 import pixelitor.transform.TransformHelperTest;
+import pixelitor.utils.ImagePyramidTest;
 import pixelitor.utils.ShapesTest;
 import pixelitor.utils.TrackedIOTest;
 import pixelitor.utils.UtilsTest;
@@ -63,31 +74,43 @@ import pixelitor.utils.UtilsTest;
 //        AllTestsSuite.class,
 
         AbstractBrushToolTest.class,
+        AdjustmentLayerTest.class,
+        BackupStoreTest.class,
         BooleanParamTest.class,
+        CannyEdgeDetectorTest.class,
         CompositionIOTest.class,
         CompositionTest.class,
         ContentLayerTest.class,
+        FFTConvolverTest.class,
         FilterParamTest.class,
         GradientHandlesTest.class,
         GuidesTest.class,
         ImageLayerTest.class,
+        ImagePyramidTest.class,
         IntChoiceParamTest.class,
         LayerBlendingModesTest.class,
+        LayerStackCompositorTest.class,
         LayerTest.class,
         LevelsTest.class,
+        MorphologyFilterTest.class,
         MultiLayerEditTest.class,
+        PaintBucketToolTest.class,
         ParamSetTest.class,
         ParamStateTest.class,
+        PercentileEngineTest.class,
         PixelitorUndoManagerTest.class,
         RandomFilterSourceTest.class,
         RangeParamTest.class,
         CompositionGuideTest.class,
         ShapesTest.class,
         TextLayerTest.class,
+        ThreadPoolTest.class,
+        TileDeltaTest.class,
         TrackedIOTest.class,
         TransformBoxTest.class,
         TransformHelperTest.class,
-        UtilsTest.class,})
+        UtilsTest.class,
+        VoronoiFilterTest.class,})
 public class AllTestsSuite {
     // empty
 }
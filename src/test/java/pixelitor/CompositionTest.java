@@ -20,14 +20,22 @@ package pixelitor;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import pixelitor.Composition.ImageChangeActions;
 import pixelitor.Composition.LayerAdder;
 import pixelitor.compactions.Crop;
+import pixelitor.gui.View;
 import pixelitor.history.History;
+import pixelitor.layers.ImageLayer;
 import pixelitor.layers.Layer;
 import pixelitor.tools.Tools;
+import pixelitor.tools.util.PRectangle;
+import pixelitor.utils.ImageUtils;
+import pixelitor.utils.RGBHistograms;
 
+import java.awt.Color;
 import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 
 import static pixelitor.Composition.LayerAdder.Position.ABOVE_ACTIVE;
 import static pixelitor.Composition.LayerAdder.Position.BELLOW_ACTIVE;
@@ -834,4 +842,139 @@ public class CompositionTest {
         // There is no undo at this level
         History.assertNumEditsIs(0);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void test_repaintRegion() {
+        BufferedImage shared = comp.getCompositeImage();
+        int[] sharedPixels = shared.getRGB(0, 0, shared.getWidth(), shared.getHeight(), null, 0, shared.getWidth());
+
+        fillRect((ImageLayer) comp.getActiveLayer(), Color.RED, 3, 3, 4, 2);
+        comp.repaintRegion(PRectangle.fromIm(3, 3, 4, 2, comp.getView()));
+
+        // an image returned by getCompositeImage is never updated in place
+        BufferedImage updated = comp.getCompositeImageForPainting();
+        assertThat(updated).isNotSameAs(shared);
+        assertThat(shared.getRGB(0, 0, shared.getWidth(), shared.getHeight(), null, 0, shared.getWidth()))
+                .isEqualTo(sharedPixels);
+        assertThat(updated.getRGB(4, 4)).isEqualTo(Color.RED.getRGB());
+
+        // the partial update gives the same result as a full recalculation
+        BufferedImage full = comp.calculateCompositeImage();
+        for (int y = 0; y < full.getHeight(); y++) {
+            for (int x = 0; x < full.getWidth(); x++) {
+                assertThat(updated.getRGB(x, y)).isEqualTo(full.getRGB(x, y));
+            }
+        }
+
+        // an image used only for painting can be updated in place
+        comp.repaintRegion(PRectangle.fromIm(0, 0, 2, 2, comp.getView()));
+        assertThat(comp.getCompositeImageForPainting()).isSameAs(updated);
+    }
+
+    @Test
+    public void test_belowActiveCache() {
+        var layer1 = (ImageLayer) comp.getLayer(0);
+        var layer3 = TestHelper.createImageLayer("layer 3", comp);
+        comp.addLayerInInitMode(layer3);
+        comp.setActiveLayer(layer3, false);
+
+        fillRect(layer1, Color.BLUE, 0, 0, TestHelper.TEST_WIDTH, TestHelper.TEST_HEIGHT);
+        comp.imageChanged();
+        assertThat(comp.getCompositeImage().getRGB(5, 5)).isEqualTo(Color.BLUE.getRGB());
+
+        // only the active layer changed, the layers bellow it can come from the cache
+        fillRect(layer3, Color.RED, 0, 0, 2, 2);
+        comp.layerImageChanged(layer3, ImageChangeActions.FULL);
+        BufferedImage composite = comp.getCompositeImage();
+        assertThat(composite.getRGB(1, 1)).isEqualTo(Color.RED.getRGB());
+        assertThat(composite.getRGB(5, 5)).isEqualTo(Color.BLUE.getRGB());
+
+        // a layer bellow the active layer changed
+        fillRect(layer1, Color.GREEN, 0, 0, TestHelper.TEST_WIDTH, TestHelper.TEST_HEIGHT);
+        comp.layerImageChanged(layer1, ImageChangeActions.FULL);
+        composite = comp.getCompositeImage();
+        assertThat(composite.getRGB(1, 1)).isEqualTo(Color.RED.getRGB());
+        assertThat(composite.getRGB(5, 5)).isEqualTo(Color.GREEN.getRGB());
+    }
+
+    @Test
+    public void test_belowActiveCacheReleasedWithoutView() {
+        var layer3 = TestHelper.createImageLayer("layer 3", comp);
+        comp.addLayerInInitMode(layer3);
+        comp.setActiveLayer(layer3, false);
+
+        long bytesBefore = Composition.getBelowActiveBytesTotal();
+        comp.getCompositeImage();
+        assertThat(Composition.getBelowActiveBytesTotal()).isGreaterThan(bytesBefore);
+
+        // what happens to a comp replaced in its view
+        View view = comp.getView();
+        comp.setView(null);
+        assertThat(Composition.getBelowActiveBytesTotal()).isEqualTo(bytesBefore);
+
+        // without a view the cache is not recreated
+        comp.getCompositeImage();
+        assertThat(Composition.getBelowActiveBytesTotal()).isEqualTo(bytesBefore);
+
+        comp.setView(view);
+    }
+
+    @Test
+    public void test_createCopyForUndoSharesImages() {
+        var layer1 = (ImageLayer) comp.getLayer(0);
+        var layer2 = (ImageLayer) comp.getLayer(1);
+        Composition copy = comp.createCopy(true, false);
+        var layer1Copy = (ImageLayer) copy.getLayer(0);
+        var layer2Copy = (ImageLayer) copy.getLayer(1);
+        assertThat(layer1Copy.getImage()).isSameAs(layer1.getImage());
+        assertThat(layer1Copy.getMask().getImage()).isSameAs(layer1.getMask().getImage());
+
+        // a transformation replaces the image of the first layer only
+        BufferedImage replacement = ImageUtils.copyImage(layer1.getImage());
+        layer1Copy.setImage(replacement);
+
+        copy.unshareImages();
+        assertThat(layer1Copy.getImage()).isSameAs(replacement);
+        assertThat(layer2Copy.getImage()).isNotSameAs(layer2.getImage());
+        assertThat(layer2Copy.getMask().getImage()).isNotSameAs(layer2.getMask().getImage());
+
+        // the unshared copy can be modified without affecting the original
+        int origRGB = layer2.getImage().getRGB(0, 0);
+        fillRect(layer2Copy, Color.RED, 0, 0, 1, 1);
+        assertThat(layer2.getImage().getRGB(0, 0)).isEqualTo(origRGB);
+    }
+
+    @Test
+    public void test_compositeHistogramsAreUpdatedByRegion() {
+        assertThat(comp.getCompositeHistograms()).isNull();
+        BufferedImage composite = comp.getCompositeImage();
+        comp.setCompositeHistograms(composite, RGBHistograms.count(composite));
+        assertThat(comp.getCompositeHistograms()).isNotNull();
+
+        // changing a region of the active layer updates the histograms
+        var layer2 = (ImageLayer) comp.getLayer(1);
+        fillRect(layer2, Color.BLUE, 2, 3, 4, 5);
+        comp.layerRegionChanged(layer2, new Rectangle(2, 3, 4, 5), ImageChangeActions.HISTOGRAM);
+        RGBHistograms histograms = comp.getCompositeHistograms();
+        RGBHistograms recounted = RGBHistograms.count(comp.getCompositeImage());
+        assertThat(histograms.getReds()).isEqualTo(recounted.getReds());
+        assertThat(histograms.getGreens()).isEqualTo(recounted.getGreens());
+        assertThat(histograms.getBlues()).isEqualTo(recounted.getBlues());
+
+        // other changes discard them
+        comp.imageChanged();
+        assertThat(comp.getCompositeHistograms()).isNull();
+
+        // histograms counted from an outdated image are not kept
+        comp.setCompositeHistograms(composite, RGBHistograms.count(composite));
+        assertThat(comp.getCompositeHistograms()).isNull();
+    }
+
+    private static void fillRect(ImageLayer layer, Color color,
+                                 int x, int y, int width, int height) {
+        var g = layer.getImage().createGraphics();
+        g.setColor(color);
+        g.fillRect(x, y, width, height);
+        g.dispose();
+    }
+}
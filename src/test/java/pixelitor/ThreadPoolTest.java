@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor;
+
+import org.junit.Test;
+import pixelitor.utils.ProgressTracker;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests the band-based parallel processing in {@link ThreadPool}
+ */
+public class ThreadPoolTest {
+    @Test
+    public void everyRowIsProcessedOnce() {
+        for (int numRows : new int[]{1, 7, 100, 5_000}) {
+            for (int rowWidth : new int[]{1, 100, 100_000}) {
+                var counts = new AtomicIntegerArray(numRows);
+                var tracker = new CountingTracker();
+
+                ThreadPool.processBands(numRows, rowWidth, (startY, endY) -> {
+                    assertThat(startY).isLessThan(endY);
+                    for (int y = startY; y < endY; y++) {
+                        counts.incrementAndGet(y);
+                    }
+                }, tracker);
+
+                for (int y = 0; y < numRows; y++) {
+                    assertThat(counts.get(y)).isEqualTo(1);
+                }
+                assertThat(tracker.units.get()).isEqualTo(numRows);
+            }
+        }
+    }
+
+    @Test
+    public void nestedCallsComplete() {
+        var total = new AtomicInteger();
+        ThreadPool.processRows(50, 1000, y ->
+                ThreadPool.processRows(20, 1000, y2 ->
+                        total.incrementAndGet(), ProgressTracker.NULL_TRACKER),
+                ProgressTracker.NULL_TRACKER);
+
+        assertThat(total.get()).isEqualTo(50 * 20);
+    }
+
+    @Test
+    public void failuresAreRethrown() {
+        assertThatThrownBy(() -> ThreadPool.processBands(100, 100_000, (startY, endY) -> {
+            if (startY <= 50 && 50 < endY) {
+                throw new IllegalStateException("band failure");
+            }
+        }, ProgressTracker.NULL_TRACKER))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessage("band failure");
+    }
+
+    @Test
+    public void interruptionCancelsTheBands() {
+        var running = new AtomicInteger();
+        var started = new AtomicInteger();
+        Thread.currentThread().interrupt();
+        try {
+            assertThatThrownBy(() -> ThreadPool.processBands(1000, 100_000, (startY, endY) -> {
+                running.incrementAndGet();
+                started.incrementAndGet();
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+            }, ProgressTracker.NULL_TRACKER))
+                    .isInstanceOf(CancellationException.class);
+
+            // the interrupt flag is kept for the caller
+            assertThat(Thread.interrupted()).isTrue();
+        } finally {
+            Thread.interrupted();
+        }
+
+        // no band is running after the method returned,
+        // and the remaining bands were skipped
+        assertThat(running.get()).isZero();
+        assertThat(started.get()).isLessThan(1000);
+    }
+
+    private static class CountingTracker implements ProgressTracker {
+        private final AtomicInteger units = new AtomicInteger();
+
+        @Override
+        public void unitDone() {
+            units.incrementAndGet();
+        }
+
+        @Override
+        public void unitsDone(int units) {
+            this.units.addAndGet(units);
+        }
+
+        @Override
+        public void finished() {
+        }
+    }
+}
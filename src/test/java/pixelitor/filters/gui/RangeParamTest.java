@@ -63,6 +63,23 @@ public class RangeParamTest {
         verify(adjListener, times(1)).paramAdjusted();
     }
 
+    @Test
+    public void test_callScaled() {
+        var distance = new RangeParam("Distance", 2, 40, 100).scalesWithImage();
+        var amount = new RangeParam("Amount", 0, 40, 100);
+
+        int[] scaledValues = RangeParam.callScaled(0.25, () ->
+                new int[]{distance.getValue(), amount.getValue()});
+        assertThat(scaledValues).containsExactly(10, 40);
+
+        // the minimum is respected
+        float smallValue = RangeParam.callScaled(0.01, distance::getValueAsFloat);
+        assertThat(smallValue).isEqualTo(2.0f);
+
+        // outside the call the real value is returned
+        assertThat(distance.getValue()).isEqualTo(40);
+    }
+
     @Test(expected = AssertionError.class)
     public void invalidArgsMinIsMax() {
         new RangeParam("name", 10, 10, 10);
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters.impl;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static pixelitor.filters.impl.MorphologyFilter.KERNEL_DIAMOND;
+import static pixelitor.filters.impl.MorphologyFilter.KERNEL_OCTAGON;
+import static pixelitor.filters.impl.MorphologyFilter.KERNEL_SQUARE;
+import static pixelitor.filters.impl.MorphologyFilter.OP_DILATE;
+import static pixelitor.filters.impl.MorphologyFilter.OP_ERODE;
+import static pixelitor.utils.ProgressTracker.NULL_TRACKER;
+
+/**
+ * Compares the {@link MorphologyFilter} with
+ * checking every pixel of the kernel
+ */
+public class MorphologyFilterTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void matchesBruteForce() {
+        for (int kernel : new int[]{KERNEL_DIAMOND, KERNEL_SQUARE, KERNEL_OCTAGON}) {
+            for (int op : new int[]{OP_ERODE, OP_DILATE}) {
+                for (int radius = 0; radius <= 9; radius++) {
+                    // also thin images, where the kernel doesn't fit
+                    int width = radius % 3 == 0 ? 1 + random.nextInt(3) : 10 + random.nextInt(30);
+                    int height = 1 + random.nextInt(40);
+                    checkImage(width, height, kernel, op, radius);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void diamondMatchesIteratedCross() {
+        // the diamond kernel should give the same result
+        // as the iterated 3x3 operation it replaced
+        int width = 23;
+        int height = 17;
+        int[] pixels = createRandomPixels(width, height);
+        int[] iterated = pixels;
+        for (int radius = 1; radius <= 6; radius++) {
+            iterated = crossMin(iterated, width, height);
+
+            var filter = createFilter(KERNEL_DIAMOND, OP_ERODE, radius);
+            int[] actual = filter.filterPixels(width, height, pixels.clone(), null);
+            assertThat(actual).as("radius = " + radius).isEqualTo(iterated);
+        }
+    }
+
+    @Test
+    public void alphaOfTranslucentImages() {
+        int width = 5;
+        int height = 5;
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (0x20 + i) << 24 | 0x00_40_80_C0;
+        }
+
+        // the erosion takes the minimum of the alpha values
+        var erode = createFilter(KERNEL_SQUARE, OP_ERODE, 1);
+        int[] eroded = erode.filterPixels(width, height, pixels.clone(), null);
+        assertThat(eroded[0]).isEqualTo(0x20_40_80_C0);
+        assertThat(eroded[width + 1]).isEqualTo(0x20_40_80_C0);
+
+        // the dilation makes the pixels opaque, as
+        // the original iterated version did
+        var dilate = createFilter(KERNEL_SQUARE, OP_DILATE, 1);
+        int[] dilated = dilate.filterPixels(width, height, pixels.clone(), null);
+        for (int rgb : dilated) {
+            assertThat(rgb).isEqualTo(0xFF_40_80_C0);
+        }
+    }
+
+    private void checkImage(int width, int height, int kernel, int op, int radius) {
+        int[] pixels = createRandomPixels(width, height);
+        var filter = createFilter(kernel, op, radius);
+        int[] actual = filter.filterPixels(width, height, pixels.clone(), null);
+
+        // the octagon is a square expanded by a diamond
+        int squareRadius = kernel == KERNEL_OCTAGON
+                ? (int) Math.round(radius * (Math.sqrt(2) - 1)) : 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int expected = 0;
+                for (int shift = 0; shift <= 24; shift += 8) {
+                    int result = op == OP_ERODE ? 255 : 0;
+                    for (int dy = -radius; dy <= radius; dy++) {
+                        for (int dx = -radius; dx <= radius; dx++) {
+                            boolean inKernel;
+                            if (kernel == KERNEL_SQUARE) {
+                                inKernel = true;
+                            } else {
+                                int distX = Math.max(0, Math.abs(dx) - squareRadius);
+                                int distY = Math.max(0, Math.abs(dy) - squareRadius);
+                                inKernel = distX + distY <= radius - squareRadius;
+                            }
+                            int xx = x + dx;
+                            int yy = y + dy;
+                            if (inKernel && xx >= 0 && xx < width && yy >= 0 && yy < height) {
+                                int value = (pixels[yy * width + xx] >>> shift) & 0xFF;
+                                result = op == OP_ERODE ? Math.min(result, value) : Math.max(result, value);
+                            }
+                        }
+                    }
+                    expected |= result << shift;
+                }
+                if (op == OP_DILATE && radius > 0) {
+                    // the dilation makes the image opaque
+                    expected |= 0xFF_00_00_00;
+                }
+                assertThat(actual[y * width + x])
+                        .as("kernel = %d, op = %d, radius = %d, %dx%d at %d, %d",
+                                kernel, op, radius, width, height, x, y)
+                        .isEqualTo(expected);
+            }
+        }
+    }
+
+    private static int[] crossMin(int[] pixels, int width, int height) {
+        int[] result = new int[pixels.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = 0;
+                for (int shift = 0; shift <= 24; shift += 8) {
+                    int min = 255;
+                    for (int[] d : new int[][]{{0, 0}, {-1, 0}, {1, 0}, {0, -1}, {0, 1}}) {
+                        int xx = x + d[0];
+                        int yy = y + d[1];
+                        if (xx >= 0 && xx < width && yy >= 0 && yy < height) {
+                            min = Math.min(min, (pixels[yy * width + xx] >>> shift) & 0xFF);
+                        }
+                    }
+                    rgb |= min << shift;
+                }
+                result[y * width + x] = rgb;
+            }
+        }
+        return result;
+    }
+
+    private static MorphologyFilter createFilter(int kernel, int op, int radius) {
+        var filter = new MorphologyFilter("test");
+        filter.setKernel(kernel);
+        filter.setOp(op);
+        filter.setRadius(radius);
+        filter.setProgressTracker(NULL_TRACKER);
+        return filter;
+    }
+
+    private int[] createRandomPixels(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+}
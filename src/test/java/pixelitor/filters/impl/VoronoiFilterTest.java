@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters.impl;
+
+import org.junit.Test;
+import pixelitor.utils.Metric;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the grid-based nearest point search of
+ * the {@link VoronoiFilter} with checking all the points
+ */
+public class VoronoiFilterTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void nearestSiteMatchesBruteForce() {
+        for (Metric metric : Metric.values()) {
+            for (int numPoints : new int[]{1, 2, 7, 100, 500}) {
+                int width = 1 + random.nextInt(120);
+                int height = 1 + random.nextInt(120);
+                int[] xCoords = new int[numPoints];
+                int[] yCoords = new int[numPoints];
+                for (int i = 0; i < numPoints; i++) {
+                    xCoords[i] = random.nextInt(width);
+                    yCoords[i] = random.nextInt(height);
+                }
+
+                var filter = new VoronoiFilter("test");
+                filter.setMetric(metric);
+                filter.setPoints(xCoords, yCoords, width, height);
+
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        assertThat(filter.nearestSite(x, y))
+                                .as("%s, %d points at %d, %d", metric, numPoints, x, y)
+                                .isEqualTo(bruteForce(metric, xCoords, yCoords, x, y));
+                    }
+                }
+
+                // the supersampling locations can be also slightly outside
+                for (int i = 0; i < 1000; i++) {
+                    double x = random.nextDouble() * (width + 1) - 0.5;
+                    double y = random.nextDouble() * (height + 1) - 0.5;
+                    assertThat(filter.nearestSite(x, y))
+                            .as("%s, %d points at %.2f, %.2f", metric, numPoints, x, y)
+                            .isEqualTo(bruteForce(metric, xCoords, yCoords, x, y));
+                }
+            }
+        }
+    }
+
+    private static int bruteForce(Metric metric, int[] xCoords, int[] yCoords, double x, double y) {
+        int closest = 0;
+        double minDist = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < xCoords.length; i++) {
+            double dist = metric.distanceDouble(xCoords[i], x, yCoords[i], y);
+            if (dist < minDist) {
+                closest = i;
+                minDist = dist;
+            }
+        }
+        return closest;
+    }
+}
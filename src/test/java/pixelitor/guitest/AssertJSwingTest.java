@@ -1728,7 +1728,7 @@ public class AssertJSwingTest {
 
     private void testFiltersNoise() {
         testNoDialogFilter("Reduce Single Pixel Noise");
-        testNoDialogFilter("3x3 Median Filter");
+        testFilterWithDialog("Median", Randomize.YES, Reseed.NO, ShowOriginal.YES);
         testFilterWithDialog("Add Noise", Randomize.YES, Reseed.NO, ShowOriginal.YES);
         testFilterWithDialog("Pixelate", Randomize.YES, Reseed.NO, ShowOriginal.YES);
     }
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.history;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pixelitor.Build;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+import static pixelitor.history.BackupStore.DEFAULT_COMPRESSED_BUDGET;
+import static pixelitor.history.BackupStore.DEFAULT_MEMORY_BUDGET;
+
+public class BackupStoreTest {
+    @BeforeClass
+    public static void setupClass() {
+        Build.setUnitTestingMode();
+    }
+
+    @After
+    public void tearDown() {
+        BackupStore.setBudgets(DEFAULT_MEMORY_BUDGET, DEFAULT_COMPRESSED_BUDGET);
+    }
+
+    @Test
+    public void keptInMemoryWithinBudget() {
+        BufferedImage img = createRandomImage(TYPE_INT_ARGB);
+        long imageBytesBefore = BackupStore.getImageBytes();
+
+        var backup = new ImageBackup(img);
+        assertThat(BackupStore.getImageBytes() - imageBytesBefore)
+                .isEqualTo(20 * 10 * 4);
+        assertThat(backup.getImage()).isSameAs(img);
+
+        assertThat(backup.take()).isSameAs(img);
+        assertThat(BackupStore.getImageBytes()).isEqualTo(imageBytesBefore);
+        assertThat(backup.getImage()).isNull();
+    }
+
+    @Test
+    public void compressedOverMemoryBudget() throws InterruptedException {
+        BackupStore.setBudgets(0, DEFAULT_COMPRESSED_BUDGET);
+        BufferedImage img = createRandomImage(TYPE_BYTE_GRAY);
+
+        var backup = new ImageBackup(img);
+        BackupStore.waitForCompressions();
+        assertThat(BackupStore.getImageBytes()).isZero();
+        long compressedBytes = BackupStore.getCompressedBytes();
+        assertThat(compressedBytes).isPositive();
+
+        BackupStore.setBudgets(DEFAULT_MEMORY_BUDGET, DEFAULT_COMPRESSED_BUDGET);
+        assertSamePixels(backup.take(), img);
+        assertThat(BackupStore.getCompressedBytes()).isLessThan(compressedBytes);
+    }
+
+    @Test
+    public void spilledOverCompressedBudget() throws InterruptedException {
+        BackupStore.setBudgets(0, 0);
+        BufferedImage img1 = createRandomImage(TYPE_INT_ARGB);
+        BufferedImage img2 = createRandomImage(TYPE_INT_ARGB);
+
+        var backup1 = new ImageBackup(img1);
+        var backup2 = new ImageBackup(img2);
+        BackupStore.waitForCompressions();
+        assertThat(BackupStore.getImageBytes()).isZero();
+        assertThat(BackupStore.getCompressedBytes()).isZero();
+        // the backups of other tests might be also spilled
+        int numSpilled = BackupStore.getNumSpilled();
+        assertThat(numSpilled).isGreaterThanOrEqualTo(2);
+
+        BackupStore.setBudgets(DEFAULT_MEMORY_BUDGET, DEFAULT_COMPRESSED_BUDGET);
+        assertSamePixels(backup2.take(), img2);
+        assertThat(BackupStore.getNumSpilled()).isEqualTo(numSpilled - 1);
+
+        // restored, but still owned by the store
+        assertSamePixels(backup1.getImage(), img1);
+        assertThat(BackupStore.getNumSpilled()).isEqualTo(numSpilled - 2);
+
+        backup1.dispose();
+        assertThat(BackupStore.getImageBytes()).isZero();
+        assertThat(backup1.getImage()).isNull();
+    }
+
+    @Test
+    public void freedSpillSpaceIsReused() throws InterruptedException {
+        BackupStore.setBudgets(0, 0);
+        BufferedImage img1 = createRandomImage(TYPE_INT_ARGB);
+        BufferedImage img2 = createRandomImage(TYPE_INT_ARGB);
+
+        var backup1 = new ImageBackup(img1);
+        var backup2 = new ImageBackup(img2);
+        BackupStore.waitForCompressions();
+        long spillFileEnd = BackupStore.getSpillFileEnd();
+        assertThat(spillFileEnd).isPositive();
+
+        // frees a range before the end of the file
+        assertSamePixels(backup1.getImage(), img1);
+        backup1.dispose();
+
+        // the same data fits into the freed range
+        var backup3 = new ImageBackup(createRandomImage(TYPE_INT_ARGB));
+        BackupStore.waitForCompressions();
+        assertThat(BackupStore.getSpillFileEnd()).isEqualTo(spillFileEnd);
+
+        BackupStore.setBudgets(DEFAULT_MEMORY_BUDGET, DEFAULT_COMPRESSED_BUDGET);
+        assertSamePixels(backup3.take(), img1);
+        assertSamePixels(backup2.take(), img2);
+    }
+
+    @Test
+    public void subImageSizeIsCounted() {
+        BufferedImage img = createRandomImage(TYPE_INT_ARGB);
+        assertThat(BackupStore.sizeOf(img)).isEqualTo(20 * 10 * 4);
+
+        BufferedImage subImage = img.getSubimage(5, 5, 4, 5);
+        assertThat(BackupStore.sizeOf(subImage)).isEqualTo(4 * 5 * 4);
+    }
+
+    private static BufferedImage createRandomImage(int type) {
+        BufferedImage img = new BufferedImage(20, 10, type);
+        Random random = new Random(42);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+        return img;
+    }
+
+    private static void assertSamePixels(BufferedImage actual, BufferedImage expected) {
+        assertThat(actual).isNotNull();
+        assertThat(actual.getType()).isEqualTo(expected.getType());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertThat(actual.getRGB(x, y)).isEqualTo(expected.getRGB(x, y));
+            }
+        }
+    }
+}
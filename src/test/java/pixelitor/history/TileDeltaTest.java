@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.history;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pixelitor.Build;
+import pixelitor.utils.ImageUtils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+import static pixelitor.history.TileDelta.TILE_SIZE;
+
+public class TileDeltaTest {
+    private static final int WIDTH = 5 * TILE_SIZE + 10;
+    private static final int HEIGHT = 3 * TILE_SIZE + 20;
+
+    @BeforeClass
+    public static void setupClass() {
+        Build.setUnitTestingMode();
+    }
+
+    @Test
+    public void storesOnlyChangedTiles() {
+        BufferedImage before = createImage(TYPE_INT_ARGB);
+        BufferedImage after = ImageUtils.copyImage(before);
+        // changes two tiles (at the tile boundary) and the last edge tile
+        fill(after, Color.RED, TILE_SIZE - 5, 0, 10, 10);
+        fill(after, Color.BLUE, WIDTH - 1, HEIGHT - 1, 1, 1);
+
+        TileDelta delta = TileDelta.create(before, after);
+        assertThat(delta).isNotNull();
+        assertThat(delta.getNumStoredTiles()).isEqualTo(3);
+
+        assertSamePixels(delta.restore(after, false), before);
+        assertSamePixels(delta.restore(after, true), before);
+        assertThat(delta.restore(after, false)).isNull();
+        delta.dispose();
+    }
+
+    @Test
+    public void identicalTilesAreStoredOnce() {
+        BufferedImage before = createImage(TYPE_BYTE_GRAY);
+        fill(before, Color.WHITE, 0, 0, 2 * TILE_SIZE, TILE_SIZE);
+        BufferedImage after = ImageUtils.copyImage(before);
+        fill(after, Color.BLACK, 0, 0, 2 * TILE_SIZE, TILE_SIZE);
+
+        TileDelta delta = TileDelta.create(before, after);
+        assertThat(delta).isNotNull();
+        assertThat(delta.getNumStoredTiles()).isEqualTo(1);
+
+        assertSamePixels(delta.restore(after, true), before);
+    }
+
+    @Test
+    public void changedBaseIsRejected() {
+        BufferedImage before = createImage(TYPE_INT_ARGB);
+        BufferedImage after = ImageUtils.copyImage(before);
+        fill(after, Color.RED, 0, 0, 10, 10);
+
+        TileDelta delta = TileDelta.create(before, after);
+        assertThat(delta).isNotNull();
+
+        // a change outside the stored tiles
+        BufferedImage changed = ImageUtils.copyImage(after);
+        fill(changed, Color.GREEN, WIDTH - 10, HEIGHT - 10, 5, 5);
+        assertThat(delta.restore(changed, true)).isNull();
+
+        // the failed restore didn't release the stored tiles
+        assertSamePixels(delta.restore(after, true), before);
+        delta.dispose();
+    }
+
+    @Test
+    public void notCreatedIfNotWorthIt() {
+        BufferedImage before = createImage(TYPE_INT_ARGB);
+
+        // unchanged base
+        assertThat(TileDelta.create(before, ImageUtils.copyImage(before))).isNull();
+
+        // almost everything changed
+        BufferedImage after = ImageUtils.copyImage(before);
+        fill(after, Color.RED, 0, 0, WIDTH, HEIGHT);
+        assertThat(TileDelta.create(before, after)).isNull();
+
+        // different size
+        assertThat(TileDelta.create(before, new BufferedImage(10, 10, TYPE_INT_ARGB))).isNull();
+    }
+
+    private static BufferedImage createImage(int type) {
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, type);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                img.setRGB(x, y, 0xFF000000 | (x * 31 + y * 17));
+            }
+        }
+        return img;
+    }
+
+    private static void fill(BufferedImage img, Color color, int x, int y, int w, int h) {
+        Graphics2D g = img.createGraphics();
+        g.setColor(color);
+        g.fillRect(x, y, w, h);
+        g.dispose();
+    }
+
+    private static void assertSamePixels(BufferedImage actual, BufferedImage expected) {
+        assertThat(actual).isNotNull();
+        assertThat(actual.getType()).isEqualTo(expected.getType());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertThat(actual.getRGB(x, y)).isEqualTo(expected.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.layers;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pixelitor.Build;
+import pixelitor.Composition;
+import pixelitor.TestHelper;
+import pixelitor.filters.Invert;
+import pixelitor.tools.util.PRectangle;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static pixelitor.Composition.ImageChangeActions.INVALIDATE_CACHE;
+import static pixelitor.assertions.PixelitorAssertions.assertThat;
+import static pixelitor.layers.LayerMaskAddType.REVEAL_ALL;
+
+public class AdjustmentLayerTest {
+    private static final int WIDTH = 50;
+    private static final int HEIGHT = 40;
+
+    private Composition comp;
+    private ImageLayer bottom;
+    private ImageLayer middle;
+    private AdjustmentLayer adjustment;
+    private ImageLayer top;
+    private CountingInvert filter;
+
+    @BeforeClass
+    public static void setupClass() {
+        Build.setUnitTestingMode();
+    }
+
+    @Before
+    public void setUp() {
+        comp = TestHelper.createEmptyComposition(WIDTH, HEIGHT);
+        Random random = new Random(7);
+
+        bottom = createRandomLayer("bottom", random);
+        comp.addLayerInInitMode(bottom);
+        middle = createRandomLayer("middle", random);
+        comp.addLayerInInitMode(middle);
+        middle.setOpacity(0.5f, false, false, false);
+
+        filter = new CountingInvert();
+        adjustment = new AdjustmentLayer(comp, "Invert", filter);
+        comp.addLayerInInitMode(adjustment);
+        adjustment.addMask(REVEAL_ALL);
+
+        top = createRandomLayer("top", random);
+        comp.addLayerInInitMode(top);
+        top.setOpacity(0.5f, false, false, false);
+
+        // with the bottom layer as the active layer the
+        // adjustment layer is always evaluated, because
+        // there is no cached composite bellow the active layer
+        comp.setActiveLayer(bottom, false);
+    }
+
+    @Test
+    public void resultIsReused() {
+        BufferedImage first = comp.calculateCompositeImage();
+        assertThat(filter.numRuns).isEqualTo(1);
+        assertSamePixels(first, compositeWithoutCaching());
+
+        // the cached result must not be modified
+        // by the layers above the adjustment layer
+        assertSamePixels(comp.calculateCompositeImage(), first);
+        assertThat(filter.numRuns).isEqualTo(1);
+    }
+
+    @Test
+    public void blendedResultIsReusedWithoutCopying() {
+        // without a mask and with blending the
+        // cached result is only read, not modified
+        adjustment.setMaskEnabled(false, false);
+        adjustment.setBlendingMode(BlendingMode.MULTIPLY, false, false, false);
+
+        BufferedImage first = comp.calculateCompositeImage();
+        assertThat(filter.numRuns).isEqualTo(1);
+        assertSamePixels(first, compositeWithoutCaching());
+
+        fillRandom(top.getImage(), new Random(17));
+        comp.layerImageChanged(top, INVALIDATE_CACHE);
+        BufferedImage composite = comp.calculateCompositeImage();
+        assertThat(filter.numRuns).isEqualTo(1);
+        assertSamePixels(composite, compositeWithoutCaching());
+    }
+
+    @Test
+    public void changesAboveDoNotRerunTheFilter() {
+        comp.calculateCompositeImage();
+
+        fillRandom(top.getImage(), new Random(11));
+        comp.layerImageChanged(top, INVALIDATE_CACHE);
+        BufferedImage composite = comp.calculateCompositeImage();
+
+        assertThat(filter.numRuns).isEqualTo(1);
+        assertSamePixels(composite, compositeWithoutCaching());
+    }
+
+    @Test
+    public void changesBellowRerunTheFilter() {
+        comp.calculateCompositeImage();
+
+        fillRandom(middle.getImage(), new Random(11));
+        comp.layerImageChanged(middle, INVALIDATE_CACHE);
+        BufferedImage composite = comp.calculateCompositeImage();
+        assertThat(filter.numRuns).isEqualTo(2);
+        assertSamePixels(composite, compositeWithoutCaching());
+
+        // the active layer can be changed also by repainting a region
+        fillRandom(bottom.getImage(), new Random(13));
+        comp.repaintRegion(PRectangle.fromIm(0, 0, WIDTH, HEIGHT, comp.getView()));
+        composite = comp.calculateCompositeImage();
+        assertThat(filter.numRuns).isEqualTo(3);
+        assertSamePixels(composite, compositeWithoutCaching());
+    }
+
+    @Test
+    public void fullChangesRerunTheFilter() {
+        comp.calculateCompositeImage();
+
+        comp.imageChanged();
+        comp.calculateCompositeImage();
+        assertThat(filter.numRuns).isEqualTo(2);
+
+        middle.setVisible(false, true);
+        BufferedImage composite = comp.calculateCompositeImage();
+        assertThat(filter.numRuns).isEqualTo(3);
+        assertSamePixels(composite, compositeWithoutCaching());
+    }
+
+    private BufferedImage compositeWithoutCaching() {
+        // the runs of the reference calculation are not counted
+        int numRuns = filter.numRuns;
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB_PRE);
+        Graphics2D g = img.createGraphics();
+        boolean firstVisibleLayer = true;
+        for (Layer layer : comp.getLayers()) {
+            if (layer.isVisible()) {
+                BufferedImage result = layer.applyLayer(g, img, firstVisibleLayer);
+                if (result != null) {
+                    img = result;
+                    g.dispose();
+                    g = img.createGraphics();
+                }
+                firstVisibleLayer = false;
+            }
+        }
+        g.dispose();
+        filter.numRuns = numRuns;
+        return img;
+    }
+
+    private static void assertSamePixels(BufferedImage actual, BufferedImage expected) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertThat(actual.getRGB(x, y))
+                        .as("at " + x + ", " + y)
+                        .isEqualTo(expected.getRGB(x, y));
+            }
+        }
+    }
+
+    private ImageLayer createRandomLayer(String name, Random random) {
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB);
+        fillRandom(img, random);
+        return new ImageLayer(comp, img, name);
+    }
+
+    private static void fillRandom(BufferedImage img, Random random) {
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+    }
+
+    /**
+     * Counts how many times the filter was run
+     */
+    private static class CountingInvert extends Invert {
+        private int numRuns;
+
+        @Override
+        public BufferedImage transform(BufferedImage src, BufferedImage dest) {
+            numRuns++;
+            return super.transform(src, dest);
+        }
+    }
+}
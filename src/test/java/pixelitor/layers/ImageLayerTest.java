@@ -43,6 +43,8 @@ import java.util.Arrays;
 import java.util.Collection;
 
 import static org.junit.Assert.assertNotSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static pixelitor.ChangeReason.FILTER_WITHOUT_DIALOG;
@@ -119,7 +121,7 @@ public class ImageLayerTest {
         if (withTranslation.isYes()) {
             expectedImageChangedCalls++;
         }
-        verify(comp, times(expectedImageChangedCalls)).imageChanged(INVALIDATE_CACHE);
+        verify(comp, times(expectedImageChangedCalls)).layerImageChanged(any(Layer.class), eq(INVALIDATE_CACHE));
 
         BufferedImage image = layer.getImage();
         assertThat(image).isNotNull();
@@ -128,7 +130,7 @@ public class ImageLayerTest {
         layer.setImage(testImage);
 
         // called one more time
-        verify(comp, times(expectedImageChangedCalls + 1)).imageChanged(INVALIDATE_CACHE);
+        verify(comp, times(expectedImageChangedCalls + 1)).layerImageChanged(any(Layer.class), eq(INVALIDATE_CACHE));
 
         // actually setImage should not update the icon image
         iconUpdates.check(0, 0);
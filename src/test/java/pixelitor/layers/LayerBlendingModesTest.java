@@ -17,6 +17,7 @@
 
 package pixelitor.layers;
 
+import com.jhlabs.composite.RGBComposite;
 import org.jdesktop.swingx.painter.AbstractLayoutPainter.HorizontalAlignment;
 import org.jdesktop.swingx.painter.AbstractLayoutPainter.VerticalAlignment;
 import org.junit.Before;
@@ -28,9 +29,16 @@ import pixelitor.filters.NoOpFilter;
 import pixelitor.filters.OneColorFilter;
 import pixelitor.filters.painters.AreaEffects;
 import pixelitor.filters.painters.TextSettings;
+import pixelitor.utils.ImageUtils;
 
 import java.awt.Color;
+import java.awt.Composite;
 import java.awt.Font;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_4BYTE_ABGR;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
 
 import static pixelitor.Composition.fromImage;
 import static pixelitor.assertions.PixelitorAssertions.assertThat;
@@ -275,6 +283,50 @@ public class LayerBlendingModesTest {
         assertThat(comp).numLayersIs(1);
     }
 
+    @Test
+    public void packedComposeMatchesGenericCompose() {
+        // large enough to be composed in parallel bands
+        int width = 300;
+        int height = 250;
+        BufferedImage src = createRandomImage(width, height, TYPE_INT_ARGB, 1);
+        BufferedImage dst = createRandomImage(width, height, TYPE_INT_ARGB, 2);
+        BufferedImage genericSrc = createRandomImage(width, height, TYPE_4BYTE_ABGR, 1);
+        BufferedImage genericDst = createRandomImage(width, height, TYPE_4BYTE_ABGR, 2);
+
+        for (BlendingMode mode : BlendingMode.values()) {
+            Composite composite = mode.getComposite(0.8f);
+            if (!(composite instanceof RGBComposite)) {
+                continue;
+            }
+            BufferedImage packedResult = ImageUtils.copyImage(dst);
+            composite.createContext(src.getColorModel(), dst.getColorModel(), null)
+                    .compose(src.getRaster(), packedResult.getRaster(), packedResult.getRaster());
+
+            BufferedImage genericResult = ImageUtils.copyImage(genericDst);
+            composite.createContext(genericSrc.getColorModel(), genericDst.getColorModel(), null)
+                    .compose(genericSrc.getRaster(), genericResult.getRaster(), genericResult.getRaster());
+
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    assertThat(packedResult.getRGB(x, y))
+                            .as(mode + " at " + x + ", " + y)
+                            .isEqualTo(genericResult.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    private static BufferedImage createRandomImage(int width, int height, int type, long seed) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+        return img;
+    }
+
     private TextLayer createTestTextLayerWithColor(Color color) {
         var layer = new TextLayer(comp);
         layer.setSettings(new TextSettings(
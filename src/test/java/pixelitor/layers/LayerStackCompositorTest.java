@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.layers;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pixelitor.Build;
+import pixelitor.Composition;
+import pixelitor.TestHelper;
+import pixelitor.filters.Invert;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static pixelitor.Composition.ImageChangeActions.INVALIDATE_CACHE;
+import static pixelitor.assertions.PixelitorAssertions.assertThat;
+import static pixelitor.layers.LayerMaskAddType.REVEAL_ALL;
+
+public class LayerStackCompositorTest {
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+
+    private Composition comp;
+    private Random random;
+
+    @BeforeClass
+    public static void setupClass() {
+        Build.setUnitTestingMode();
+    }
+
+    @Before
+    public void setUp() {
+        comp = TestHelper.createEmptyComposition(WIDTH, HEIGHT);
+        random = new Random(42);
+
+        // a layer for every blending mode, with various opacities,
+        // translations, linked and unlinked masks
+        BlendingMode[] modes = BlendingMode.values();
+        int numLayers = modes.length + 4;
+        for (int i = 0; i < numLayers; i++) {
+            BlendingMode mode = i < modes.length ? modes[i] : BlendingMode.NORMAL;
+            int tx = i % 3 == 0 ? 0 : -random.nextInt(40);
+            int ty = i % 3 == 0 ? 0 : -random.nextInt(40);
+            // both the premultiplied and the non-premultiplied layer images are supported
+            int type = random.nextBoolean() ? TYPE_INT_ARGB : TYPE_INT_ARGB_PRE;
+            var layer = new ImageLayer(comp, createRandomImage(
+                    WIDTH - tx + random.nextInt(20), HEIGHT - ty + random.nextInt(20), type),
+                    "layer " + i);
+            comp.addLayerInInitMode(layer);
+            layer.setTranslation(tx, ty);
+            layer.setBlendingMode(mode, false, false, false);
+            layer.setOpacity(i % 2 == 0 ? 1.0f : random.nextFloat(), false, false, false);
+
+            if (i % 4 == 1) {
+                layer.addMask(REVEAL_ALL);
+                LayerMask mask = layer.getMask();
+                fillRandomGray(mask.getImage());
+                if (i % 8 == 1) {
+                    mask.setTranslation(tx / 2, ty / 2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compositeMatchesJava2D() {
+        BufferedImage actual = comp.calculateCompositeImage();
+        BufferedImage expected = compositeWithJava2D();
+
+        assertSamePixels(actual, expected, 0, 0);
+    }
+
+    @Test
+    public void regionMatchesJava2D() {
+        int x = 37;
+        int y = 21;
+        BufferedImage region = new BufferedImage(111, 77, TYPE_INT_ARGB_PRE);
+        int next = LayerStackCompositor.compositeLayers(comp.getLayers(),
+                0, comp.getNumLayers(), region, x, y, true);
+        assertThat(next).isEqualTo(comp.getNumLayers());
+
+        assertSamePixels(region, compositeWithJava2D(), x, y);
+    }
+
+    @Test
+    public void maskedImagesAreCached() {
+        var layer = (ImageLayer) comp.getLayer(1);
+        assertThat(layer.hasMask()).isTrue();
+        assertThat(layer.getCachedMaskedImage()).isNull();
+
+        BufferedImage first = comp.calculateCompositeImage();
+        BufferedImage cached = layer.getCachedMaskedImage();
+        assertThat(cached).isNotNull();
+
+        // the second time the cached masked images are used
+        assertSamePixels(comp.calculateCompositeImage(), first, 0, 0);
+        assertThat(layer.getCachedMaskedImage()).isSameAs(cached);
+
+        // moving the layer makes it out of date
+        layer.setTranslation(layer.getTx() - 1, layer.getTy());
+        assertThat(layer.getCachedMaskedImage()).isNull();
+        BufferedImage moved = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB_PRE);
+        LayerStackCompositor.compositeLayers(comp.getLayers(),
+                0, comp.getNumLayers(), moved, 0, 0, true);
+        assertSamePixels(moved, compositeWithJava2D(), 0, 0);
+
+        // changing the mask pixels invalidates it
+        LayerMask mask = layer.getMask();
+        fillRandomGray(mask.getImage());
+        comp.layerImageChanged(mask, INVALIDATE_CACHE);
+        assertThat(layer.getCachedMaskedImage()).isNull();
+        assertSamePixels(comp.calculateCompositeImage(), compositeWithJava2D(), 0, 0);
+    }
+
+    @Test
+    public void stopsAtLayersNeedingJava2D() {
+        comp.getLayer(2).setVisible(false, false);
+        comp.addLayerInInitMode(new AdjustmentLayer(comp, "Invert", new Invert()));
+        comp.addLayerInInitMode(new ImageLayer(comp,
+                createRandomImage(WIDTH, HEIGHT, TYPE_INT_ARGB), "top"));
+        int adjustmentIndex = comp.getNumLayers() - 2;
+
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB_PRE);
+        int next = LayerStackCompositor.compositeLayers(comp.getLayers(),
+                0, comp.getNumLayers(), img, 0, 0, true);
+        assertThat(next).isEqualTo(adjustmentIndex);
+
+        // mixing the two ways of compositing still gives the same result
+        assertSamePixels(comp.calculateCompositeImage(), compositeWithJava2D(), 0, 0);
+    }
+
+    private BufferedImage compositeWithJava2D() {
+        // the masked images cached by the other way of compositing
+        // should not be reused in the reference image
+        for (Layer layer : comp.getLayers()) {
+            if (layer instanceof ImageLayer) {
+                ((ImageLayer) layer).invalidateMaskedImage();
+            }
+        }
+
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB_PRE);
+        Graphics2D g = img.createGraphics();
+        boolean firstVisibleLayer = true;
+        for (Layer layer : comp.getLayers()) {
+            if (layer.isVisible()) {
+                BufferedImage result = layer.applyLayer(g, img, firstVisibleLayer);
+                if (result != null) {
+                    img = result;
+                    g.dispose();
+                    g = img.createGraphics();
+                }
+                firstVisibleLayer = false;
+            }
+        }
+        g.dispose();
+        return img;
+    }
+
+    private static void assertSamePixels(BufferedImage actual, BufferedImage expected,
+                                         int offsetX, int offsetY) {
+        WritableRaster actualRaster = actual.getRaster();
+        WritableRaster expectedRaster = expected.getRaster();
+        int[] actualPixel = new int[4];
+        int[] expectedPixel = new int[4];
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                // compare the raw premultiplied values
+                actualRaster.getPixel(x, y, actualPixel);
+                expectedRaster.getPixel(x + offsetX, y + offsetY, expectedPixel);
+                assertThat(actualPixel)
+                        .as("at " + x + ", " + y)
+                        .isEqualTo(expectedPixel);
+            }
+        }
+    }
+
+    private BufferedImage createRandomImage(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+        return img;
+    }
+
+    private void fillRandomGray(BufferedImage img) {
+        WritableRaster raster = img.getRaster();
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                raster.setSample(x, y, 0, random.nextInt(256));
+            }
+        }
+    }
+}
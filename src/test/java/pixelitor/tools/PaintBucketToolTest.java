@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.tools;
+
+import org.junit.Test;
+import pixelitor.utils.ImageUtils;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PaintBucketToolTest {
+    private static final int FILL_RGB = 0xFF_12_34_56;
+
+    private final Random random = new Random(17);
+
+    @Test
+    public void floodFillMatchesSimpleFill() {
+        for (int i = 0; i < 20; i++) {
+            // the first image is big enough to be processed in parallel
+            int width = i == 0 ? 800 : 1 + random.nextInt(150);
+            int height = i == 0 ? 600 : 1 + random.nextInt(100);
+            BufferedImage img = createRandomImage(width, height);
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int tolerance = random.nextInt(30);
+            int rgbAtMouse = img.getRGB(x, y);
+
+            int[] expected = ImageUtils.getPixelsAsArray(img).clone();
+            Rectangle expectedArea = simpleFloodFill(expected, width, height,
+                    x, y, tolerance, rgbAtMouse);
+
+            Rectangle area = PaintBucketTool.scanlineFloodFill(img,
+                    x, y, tolerance, rgbAtMouse, FILL_RGB);
+
+            assertThat(ImageUtils.getPixelsAsArray(img)).isEqualTo(expected);
+            assertThat(area).isEqualTo(expectedArea);
+        }
+    }
+
+    @Test
+    public void globalReplaceReplacesAllSimilarPixels() {
+        BufferedImage img = createRandomImage(97, 61);
+        int[] pixels = ImageUtils.getPixelsAsArray(img);
+        int[] before = pixels.clone();
+        int rgb = pixels[123];
+
+        PaintBucketTool.globalReplaceColor(img, 10, rgb, FILL_RGB);
+
+        for (int i = 0; i < pixels.length; i++) {
+            if (similar(before[i], rgb, 10)) {
+                assertThat(pixels[i]).isEqualTo(FILL_RGB);
+            } else {
+                assertThat(pixels[i]).isEqualTo(before[i]);
+            }
+        }
+    }
+
+    // a breadth-first fill of the 4-connected similar pixels
+    private static Rectangle simpleFloodFill(int[] pixels, int width, int height,
+                                             int x, int y, int tolerance, int rgb) {
+        boolean[] similar = new boolean[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            similar[i] = similar(pixels[i], rgb, tolerance);
+        }
+        similar[y * width + x] = true;
+
+        Rectangle area = new Rectangle(x, y, 1, 1);
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(y * width + x);
+        similar[y * width + x] = false;
+        while (!queue.isEmpty()) {
+            int p = queue.remove();
+            int px = p % width;
+            int py = p / width;
+            pixels[p] = FILL_RGB;
+            area.add(new Rectangle(px, py, 1, 1));
+
+            int[][] neighbours = {{px - 1, py}, {px + 1, py}, {px, py - 1}, {px, py + 1}};
+            for (int[] n : neighbours) {
+                if (n[0] >= 0 && n[0] < width && n[1] >= 0 && n[1] < height) {
+                    int index = n[1] * width + n[0];
+                    if (similar[index]) {
+                        similar[index] = false;
+                        queue.add(index);
+                    }
+                }
+            }
+        }
+        return area;
+    }
+
+    private static boolean similar(int c1, int c2, int tolerance) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            int diff = ((c1 >>> shift) & 0xFF) - ((c2 >>> shift) & 0xFF);
+            if (Math.abs(diff) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private BufferedImage createRandomImage(int width, int height) {
+        // few colors in 3x3 blocks, so that there are bigger regions
+        int[] colors = {0xFF_FF_00_00, 0xFF_FF_08_04, 0xFF_00_FF_00, 0xFF_00_00_FF, 0x80_FF_00_00};
+        BufferedImage img = new BufferedImage(width, height, TYPE_INT_ARGB);
+        for (int y = 0; y < height; y += 3) {
+            for (int x = 0; x < width; x += 3) {
+                int color = colors[random.nextInt(colors.length)];
+                for (int by = y; by < Math.min(y + 3, height); by++) {
+                    for (int bx = x; bx < Math.min(x + 3, width); bx++) {
+                        img.setRGB(bx, by, color);
+                    }
+                }
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020 Laszlo Balazs-Csiki and Contributors
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.utils;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ImagePyramidTest {
+    private final Random random = new Random(13);
+
+    @Test
+    public void levelFor() {
+        assertThat(ImagePyramid.levelFor(1.0, 1000, 1000)).isEqualTo(0);
+        assertThat(ImagePyramid.levelFor(0.7, 1000, 1000)).isEqualTo(0);
+        assertThat(ImagePyramid.levelFor(0.5, 1000, 1000)).isEqualTo(1);
+        assertThat(ImagePyramid.levelFor(0.33, 1000, 1000)).isEqualTo(1);
+        assertThat(ImagePyramid.levelFor(0.125, 1000, 1000)).isEqualTo(3);
+        // a level is never smaller than one pixel
+        assertThat(ImagePyramid.levelFor(0.01, 1000, 4)).isEqualTo(2);
+    }
+
+    @Test
+    public void canBeUsedFor() {
+        BufferedImage img = new BufferedImage(10, 10, TYPE_INT_ARGB_PRE);
+        assertThat(ImagePyramid.canBeUsedFor(img)).isTrue();
+        assertThat(ImagePyramid.canBeUsedFor(img.getSubimage(1, 1, 5, 5))).isFalse();
+        assertThat(ImagePyramid.canBeUsedFor(new BufferedImage(10, 10, TYPE_INT_ARGB))).isFalse();
+    }
+
+    @Test
+    public void levelsAreAverages() {
+        BufferedImage img = createRandomImage(37, 22);
+        var pyramid = new ImagePyramid();
+
+        assertThat(pyramid.getLevel(img, 0)).isSameAs(img);
+
+        BufferedImage level1 = pyramid.getLevel(img, 1);
+        assertThat(level1.getWidth()).isEqualTo(19);
+        assertThat(level1.getHeight()).isEqualTo(11);
+        assertIsHalfOf(level1, img);
+
+        BufferedImage level3 = pyramid.getLevel(img, 3);
+        assertThat(level3.getWidth()).isEqualTo(5);
+        assertThat(level3.getHeight()).isEqualTo(3);
+        assertIsHalfOf(level3, pyramid.getLevel(img, 2));
+
+        // the levels are reused
+        assertThat(pyramid.getLevel(img, 1)).isSameAs(level1);
+    }
+
+    @Test
+    public void changedRegionsAreUpdated() {
+        BufferedImage img = createRandomImage(64, 48);
+        var pyramid = new ImagePyramid();
+        BufferedImage level2 = pyramid.getLevel(img, 2);
+
+        // change a region in place
+        Rectangle region = new Rectangle(13, 5, 9, 30);
+        fillRandom(img, region);
+        pyramid.regionChanged(img, img, region);
+        assertThat(pyramid.getLevel(img, 2)).isSameAs(level2);
+        assertSamePixels(level2, new ImagePyramid().getLevel(img, 2));
+
+        // change a region in a copy
+        BufferedImage copy = ImageUtils.copyImage(img);
+        region = new Rectangle(50, 40, 14, 8);
+        fillRandom(copy, region);
+        pyramid.regionChanged(img, copy, region);
+        assertSamePixels(pyramid.getLevel(copy, 2), new ImagePyramid().getLevel(copy, 2));
+
+        // a new image is not updated, but the pyramid is built again
+        BufferedImage other = createRandomImage(64, 48);
+        assertSamePixels(pyramid.getLevel(other, 2), new ImagePyramid().getLevel(other, 2));
+    }
+
+    @Test
+    public void regionChangeOfUnknownImageClears() {
+        BufferedImage img = createRandomImage(64, 48);
+        var pyramid = new ImagePyramid();
+        pyramid.getLevel(img, 2);
+
+        // an image with the same size, built without the pyramid
+        // seeing it, and then updated in a region
+        BufferedImage other = createRandomImage(64, 48);
+        Rectangle region = new Rectangle(10, 10, 4, 4);
+        fillRandom(other, region);
+        pyramid.regionChanged(other, other, region);
+
+        // all levels must show the new image, not only the region
+        assertSamePixels(pyramid.getLevel(other, 2), new ImagePyramid().getLevel(other, 2));
+        assertSamePixels(pyramid.getLevel(other, 1), new ImagePyramid().getLevel(other, 1));
+    }
+
+    private static void assertIsHalfOf(BufferedImage half, BufferedImage img) {
+        int[] data = ImageUtils.getPixelsAsArray(img);
+        int[] halfData = ImageUtils.getPixelsAsArray(half);
+        int width = img.getWidth();
+        int height = img.getHeight();
+        for (int y = 0; y < half.getHeight(); y++) {
+            for (int x = 0; x < half.getWidth(); x++) {
+                int x2 = Math.min(2 * x + 1, width - 1);
+                int y2 = Math.min(2 * y + 1, height - 1);
+                int[] pixels = {
+                        data[2 * y * width + 2 * x], data[2 * y * width + x2],
+                        data[y2 * width + 2 * x], data[y2 * width + x2]};
+                int halfPixel = halfData[y * half.getWidth() + x];
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = 0;
+                    for (int p : pixels) {
+                        sum += (p >>> shift) & 0xFF;
+                    }
+                    assertThat((halfPixel >>> shift) & 0xFF)
+                            .as("at " + x + ", " + y)
+                            .isEqualTo((sum + 2) / 4);
+                }
+            }
+        }
+    }
+
+    private static void assertSamePixels(BufferedImage actual, BufferedImage expected) {
+        assertThat(ImageUtils.getPixelsAsArray(actual))
+                .isEqualTo(ImageUtils.getPixelsAsArray(expected));
+    }
+
+    private BufferedImage createRandomImage(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, TYPE_INT_ARGB_PRE);
+        fillRandom(img, new Rectangle(0, 0, width, height));
+        return img;
+    }
+
+    private void fillRandom(BufferedImage img, Rectangle region) {
+        for (int y = region.y; y < region.y + region.height; y++) {
+            for (int x = region.x; x < region.x + region.width; x++) {
+                // setRGB keeps the premultiplied values consistent
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+    }
+}